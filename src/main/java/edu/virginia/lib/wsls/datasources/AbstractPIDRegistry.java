@@ -0,0 +1,411 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument;
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
+
+/**
+ * The naming of the registry ids and the translation of dates and insertion
+ * point requests into entries, shared by every PIDRegistry implementation.
+ * Implementations need only store, look up and order RegistryEntry objects.
+ */
+public abstract class AbstractPIDRegistry implements PIDRegistry {
+
+    public static final String EXPORT_FORMAT = "wsls-pid-registry";
+
+    public static final int EXPORT_VERSION = 1;
+
+    /**
+     * The file, in the registry's directory, listing the PIDs reserved from
+     * fedora but not yet used, one per line.
+     */
+    static final String RESERVED_PIDS_FILENAME = "reserved-pids.txt";
+
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * The locks for getOrCreate(), chosen by the hash of the id, so that
+     * creations of unrelated entries don't wait on each other.
+     */
+    private final Object[] locks;
+
+    private final File reservedPidsFile;
+
+    /**
+     * @param dir the directory holding the registry
+     */
+    protected AbstractPIDRegistry(File dir) {
+        reservedPidsFile = new File(dir, RESERVED_PIDS_FILENAME);
+        locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i ++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns the PID registered for the given id, or null.
+     */
+    protected abstract String getPIDForID(String id) throws IOException;
+
+    /**
+     * Returns the entry for the given PID or null if there is none.
+     */
+    abstract RegistryEntry getEntryForPid(String pid) throws IOException;
+
+    /**
+     * Adds or replaces the entry for the id of the given entry.
+     */
+    abstract void writeEntry(RegistryEntry e) throws IOException;
+
+    /**
+     * Ends a bulk write by discarding every write made since
+     * beginBulkWrite(), leaving the registry as it was then.
+     */
+    abstract void abortBulkWrite() throws IOException;
+
+    /**
+     * Finds the last sibling that sorts at or before the given probe and the
+     * first one that sorts after it, ignoring any entry for the given pid.
+     * @param probe an entry for the position being inserted, with
+     *        Integer.MAX_VALUE for the date components that aren't sorted on
+     *        and a null pid to sort after every entry with the same date
+     * @param depth the number of leading date components (year, month, day)
+     *        that siblings must share with the probe
+     */
+    abstract String[] getInsertionPoint(String pid, RegistryEntry probe, int depth) throws IOException;
+
+    /**
+     * Passes every entry to the visitor in id order.
+     */
+    abstract void visitInIdOrder(EntryVisitor visitor) throws IOException;
+
+    interface EntryVisitor {
+        public void visit(RegistryEntry e) throws IOException;
+    }
+
+    public String getPIDForWSLSID(String id) throws IOException {
+        return getPIDForID(id);
+    }
+
+    public void setPIDforWSLSID(String id, String pid, PBCoreDocument pbcore) throws IOException {
+        writeKeyPair(id, pid, pbcore.getAssetVariablePrecisionDate(), "item");
+    }
+
+    public String getAnchorPIDForWSLSID(String id) throws IOException {
+        return getPIDForID("anchor-script-" + id);
+    }
+
+    public void setAnchorPIDForWSLSID(String id, String pid) throws IOException {
+        writeKeyPair("anchor-script-" + id, pid, "script");
+    }
+    
+    public String getWSLSCollectionPid() throws IOException {
+        return getPIDForID("collection");
+    }
+
+    public void setWSLSCollectionPid(String pid) throws IOException {
+        writeKeyPair("collection", pid, "collection");
+    }
+
+    private String getId(int year) {
+        return "year-" + year;
+    }
+
+    public String getYearPid(int year) throws IOException {
+        return getPIDForID(getId(year));
+    }
+
+    public void setYearPid(int year, String pid) throws IOException {
+        writeKeyPair(getId(year), pid, year, null, null, "year");
+    }
+
+    private String getId(int year, int month) {
+        return "year-" + year + "-month" + month;
+    }
+
+    public String getMonthPid(int year, int month) throws IOException {
+        return getPIDForID(getId(year, month));
+    }
+
+    public void setMonthPid(int year, int month, String pid) throws IOException {
+        writeKeyPair(getId(year, month), pid, year, month, null, "month");
+    }
+
+    public String getUnknownPid() throws IOException {
+        return getPIDForID("unknown-date");
+    }
+
+    public void setUnknownPid(String pid) throws IOException {
+        writeKeyPair("unknown-date", pid, Integer.MAX_VALUE, null, null, "year");
+    }
+
+    /**
+     * Reads the reserved PIDs from their own small file rather than from
+     * the entries, as they're neither ids nor registered objects.
+     */
+    public List<String> getReservedPids() throws IOException {
+        synchronized (reservedPidsFile) {
+            List<String> reserved = new ArrayList<String>();
+            if (reservedPidsFile.exists()) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(reservedPidsFile), "UTF-8"));
+                try {
+                    for (String line = in.readLine(); line != null; line = in.readLine()) {
+                        if (line.trim().length() > 0) {
+                            reserved.add(line.trim());
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            return reserved;
+        }
+    }
+
+    /**
+     * Replaces the file of reserved PIDs, writing a new one and renaming it
+     * over the old so that a crash leaves one or the other.
+     */
+    public void setReservedPids(List<String> reserved) throws IOException {
+        synchronized (reservedPidsFile) {
+            File temp = new File(reservedPidsFile.getPath() + ".tmp");
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                Writer out = new OutputStreamWriter(fos, "UTF-8");
+                for (String pid : reserved) {
+                    if (pid.trim().length() == 0 || pid.indexOf('\n') != -1) {
+                        throw new IllegalArgumentException("Invalid PID \"" + pid + "\"!");
+                    }
+                    out.write(pid + "\n");
+                }
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            if (!temp.renameTo(reservedPidsFile)) {
+                if (!reservedPidsFile.delete() || !temp.renameTo(reservedPidsFile)) {
+                    throw new IOException("Unable to rename " + temp + " to " + reservedPidsFile + "!");
+                }
+            }
+        }
+    }
+
+    public String getOrCreateWSLSCollectionPid(PIDCreator creator) throws Exception {
+        return getOrCreate(new RegistryEntry("collection", null, "collection", 0, 0, 0), creator);
+    }
+
+    public String getOrCreateYearPid(int year, PIDCreator creator) throws Exception {
+        return getOrCreate(new RegistryEntry(getId(year), null, "year", year, 0, 0), creator);
+    }
+
+    public String getOrCreateMonthPid(int year, int month, PIDCreator creator) throws Exception {
+        return getOrCreate(new RegistryEntry(getId(year, month), null, "month", year, month, 0), creator);
+    }
+
+    public String getOrCreateUnknownPid(PIDCreator creator) throws Exception {
+        return getOrCreate(new RegistryEntry("unknown-date", null, "year", Integer.MAX_VALUE, 0, 0), creator);
+    }
+
+    /**
+     * Returns the PID for the id of the given template, or creates one and
+     * registers it with the template's type and date.  The registry itself
+     * is safe for concurrent use, the lock only ensures that a single caller
+     * creates the object.  The PID is registered only once the object has
+     * been initialized, so that callers who find it registered (without
+     * taking the lock) never get an incomplete object.
+     */
+    private String getOrCreate(RegistryEntry template, PIDCreator creator) throws Exception {
+        String pid = getPIDForID(template.id);
+        if (pid != null) {
+            return pid;
+        }
+        synchronized (locks[(template.id.hashCode() & 0x7fffffff) % locks.length]) {
+            pid = getPIDForID(template.id);
+            if (pid == null) {
+                pid = creator.create();
+                creator.initialize(pid);
+                writeEntry(new RegistryEntry(template.id, pid, template.type, template.year, template.month, template.day));
+            }
+            return pid;
+        }
+    }
+
+    public void writeKeyPair(String id, String pid, String type) throws IOException {
+        writeKeyPair(id, pid, null, null, null, type);
+    }
+
+    public void writeKeyPair(String id, String pid, VariablePrecisionDate date, String type) throws IOException {
+        if (date == null) {
+            writeKeyPair(id, pid, null, null, null, type);
+        } else {
+            writeKeyPair(id, pid, date.getYear(), date.getMonth(), date.hasDay() ? date.getDay() : null, type);
+        }
+    }
+
+    private void writeKeyPair(String id, String pid, Integer year, Integer month, Integer day, String type) throws IOException {
+        writeEntry(new RegistryEntry(id, pid, type, year == null ? 0 : year, month == null ? 0 : month, day == null ? 0 : day));
+    }
+
+    public VariablePrecisionDate getDateForPid(String pid) throws IOException {
+        RegistryEntry e = getEntryForPid(pid);
+        if (e == null) {
+            throw new IllegalArgumentException("PID " + pid + " is unknown!");
+        }
+        return e.getDate();
+    }
+
+    public Map<String, VariablePrecisionDate> getItemDates() throws IOException {
+        final Map<String, VariablePrecisionDate> dates = new HashMap<String, VariablePrecisionDate>();
+        visitInIdOrder(new EntryVisitor() {
+            public void visit(RegistryEntry e) {
+                if ("item".equals(e.type)) {
+                    dates.put(e.pid, e.getDate());
+                }
+            }});
+        return dates;
+    }
+
+    public String[] getItemInsertionPoint(String pid, VariablePrecisionDate date) throws IOException {
+        // items will either have complete dates or no date
+        if (date != null) {
+            return getInsertionPoint(pid, date.getYear(), date.getMonth(), date.getDay(), "item");
+        } else {
+            // items in the "unknown" folder have a year, month and day of zero
+            // and are sorted by pid
+            return getInsertionPoint(pid, new RegistryEntry(null, pid, "item", 0, 0, 0), 3);
+        }
+    }
+
+    public String[] getMonthInsertionPoint(String pid, VariablePrecisionDate date) throws IOException {
+        return getInsertionPoint(pid, date.getYear(), date.getMonth(), null, "month");
+    }
+
+    public String[] getYearInsertionPoint(String pid, int year) throws IOException {
+        return getInsertionPoint(pid, year, null, null, "year");
+    }
+
+    public String[] getUnknownFolderInsertionPoint(String pid) throws IOException {
+        return getInsertionPoint(pid, Integer.MAX_VALUE, null, null, "year");
+    }
+
+    private String[] getInsertionPoint(String pid, int year, Integer month, Integer day, String type) throws IOException {
+        // siblings share every date component above the one that is sorted on
+        int depth = day != null ? 2 : month != null ? 1 : 0;
+        return getInsertionPoint(pid, new RegistryEntry(null, null, type, year,
+                month != null ? month : Integer.MAX_VALUE, day != null ? day : Integer.MAX_VALUE), depth);
+    }
+
+    public List<String> listAllPids() throws IOException {
+        final List<String> pids = new ArrayList<String>();
+        visitInIdOrder(new EntryVisitor() {
+            public void visit(RegistryEntry e) {
+                pids.add(e.pid);
+            }});
+        return pids;
+    }
+
+    public void dumpIndex(OutputStream os) throws Exception {
+        final PrintWriter out = new PrintWriter(os);
+        try {
+            visitInIdOrder(new EntryVisitor() {
+                public void visit(RegistryEntry e) {
+                    out.println(e.id + ", " + e.pid + ", " + e.type + ", " + e.year + "/" + e.month + "/" + e.day);
+                }});
+        } finally {
+            out.flush();
+        }
+    }
+
+    public void copyTo(final PIDRegistry target) throws IOException {
+        target.beginBulkWrite();
+        try {
+            visitInIdOrder(new EntryVisitor() {
+                public void visit(RegistryEntry e) throws IOException {
+                    if (target instanceof AbstractPIDRegistry) {
+                        ((AbstractPIDRegistry) target).writeEntry(e);
+                    } else {
+                        target.writeKeyPair(e.id, e.pid, e.year == 0 ? null : e.getDate(), e.type);
+                    }
+                }});
+        } finally {
+            target.endBulkWrite();
+        }
+    }
+
+    public void exportEntries(OutputStream os) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(os, 65536);
+        final Writer out = new BufferedWriter(new OutputStreamWriter(gzip, "UTF-8"), 65536);
+        out.write(EXPORT_FORMAT + "\t" + EXPORT_VERSION + "\n");
+        visitInIdOrder(new EntryVisitor() {
+            public void visit(RegistryEntry e) throws IOException {
+                for (String value : new String[] { e.id, e.pid, e.type }) {
+                    if (value.indexOf('\t') != -1 || value.indexOf('\n') != -1) {
+                        throw new IllegalStateException("Entry " + e.id + " can't be exported, \"" + value + "\" contains a tab or newline.");
+                    }
+                }
+                out.write(e.id + "\t" + e.pid + "\t" + e.type + "\t" + e.year + "\t" + e.month + "\t" + e.day + "\n");
+            }});
+        out.flush();
+        gzip.finish();
+    }
+
+    public int importEntries(InputStream is) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(is, 65536), "UTF-8"), 65536);
+        String header = in.readLine();
+        if (header == null || !header.startsWith(EXPORT_FORMAT + "\t")) {
+            throw new IllegalArgumentException("The stream is not a PID registry export!");
+        }
+        int version = Integer.parseInt(header.substring(EXPORT_FORMAT.length() + 1));
+        if (version != EXPORT_VERSION) {
+            throw new IllegalArgumentException("Unsupported PID registry export version " + version + "!");
+        }
+        // the entries are written as they're read, and the bulk write
+        // abandoned if the stream turns out to be malformed or truncated
+        int count = 0;
+        boolean complete = false;
+        beginBulkWrite();
+        try {
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != 6) {
+                    throw new IllegalArgumentException("Malformed entry on line " + (count + 2) + ": " + line);
+                }
+                RegistryEntry e;
+                try {
+                    e = new RegistryEntry(fields[0], fields[1], fields[2], Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5]));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Malformed date on line " + (count + 2) + ": " + line);
+                }
+                writeEntry(e);
+                count ++;
+            }
+            complete = true;
+        } finally {
+            if (complete) {
+                endBulkWrite();
+            } else {
+                abortBulkWrite();
+            }
+        }
+        return count;
+    }
+}
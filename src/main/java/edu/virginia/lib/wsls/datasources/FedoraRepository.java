@@ -2,18 +2,35 @@ package edu.virginia.lib.wsls.datasources;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
+import org.apache.commons.codec.digest.DigestUtils;
+
 import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
+import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 
+import edu.virginia.lib.wsls.fedora.CollectionGraph;
 import edu.virginia.lib.wsls.fedora.FedoraHelper;
+import edu.virginia.lib.wsls.fedora.RelsExt;
+import edu.virginia.lib.wsls.fedora.ResourceIndexBarrier;
 import edu.virginia.lib.wsls.fedora.RelationshipValidator;
 import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument;
 import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
@@ -25,13 +42,77 @@ public class FedoraRepository {
     public static final String UVA_RELS = "http://fedora.lib.virginia.edu/relationships#";
     public static final String WSLS_RELS = "http://fedora.lib.virginia.edu/wsls/relationships#";
 
+    /**
+     * The number of PIDs to reserve from fedora at a time.
+     */
+    public static final String PID_BLOCK_SIZE_PROPERTY = "pid-reservation-block-size";
+
+    /**
+     * The number of threads with which fixRelationships() moves misplaced
+     * items and corrects the order of each folder's children.
+     */
+    public static final String CORRECTION_THREADS_PROPERTY = "relationship-correction-threads";
+
+    private static final List<String> ITEM_CMODELS = Arrays.asList(new String[] { "uva-lib:pbcore2CModel", "uva-lib:eadItemCModel" });
+    private static final List<String> FOLDER_CMODELS = Arrays.asList(new String[] { "uva-lib:mods3.4CModel", "uva-lib:eadComponentCModel" });
+    private static final List<String> COLLECTION_CMODELS = Arrays.asList(new String[] { "uva-lib:eadCollectionCModel", "uva-lib:eadMetadataFragmentCModel" });
+
     private FedoraClient fc;
 
     private PIDRegistry pids;
 
+    private PIDAllocator allocator;
+
+    /**
+     * The relationships among the objects, loaded when this is created and
+     * updated with every relationship written here.
+     */
+    private CollectionGraph graph;
+
+    private int correctionThreads;
+
+    private AtomicLong uploads = new AtomicLong();
+    private AtomicLong uploadedBytes = new AtomicLong();
+    private AtomicLong skippedUploads = new AtomicLong();
+    private AtomicLong skippedUploadBytes = new AtomicLong();
+
+    /**
+     * Locks (one per parent) held while an object is linked into the
+     * sequence of its siblings, so that siblings inserted concurrently see
+     * each other.  The folders and collection are created through the
+     * registry's getOrCreate*Pid() methods so that concurrent ingest workers
+     * never create duplicates; parents are always resolved before a child is
+     * created.  A new folder is only registered once it's complete, so the
+     * lock is held until then.
+     */
+    private final Map<String, Object> sequenceLocks = new HashMap<String, Object>();
+
+    /**
+     * The parents whose sequence of children has changed, and which
+     * verifyRelationships() will check.
+     */
+    private final Set<String> changedParents = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    /**
+     * The items written (and those whose place in a sequence has changed)
+     * by this object, which getChangedPids() reports.
+     */
+    private final Set<String> changedObjects = Collections.synchronizedSet(new LinkedHashSet<String>());
+
     public FedoraRepository(FedoraClient client, File baseLuceneDir) throws Exception {
+        this(client, baseLuceneDir, new Properties());
+    }
+
+    /**
+     * @param config properties (typically from ingest.properties) that may
+     * select the PID registry backend and override its default settings
+     */
+    public FedoraRepository(FedoraClient client, File baseLuceneDir, Properties config) throws Exception {
         fc = client;
-        pids = new PIDRegistry(new File(baseLuceneDir, new java.net.URL(FedoraClient.describeRepository().execute(fc).getRepositoryInfo().getRepositoryBaseURL()).getHost()));
+        pids = PIDRegistryFactory.open(new File(baseLuceneDir, new java.net.URL(FedoraClient.describeRepository().execute(fc).getRepositoryInfo().getRepositoryBaseURL()).getHost()), config);
+        allocator = new PIDAllocator(fc, pids, Integer.parseInt(config.getProperty(PID_BLOCK_SIZE_PROPERTY, String.valueOf(PIDAllocator.DEFAULT_BLOCK_SIZE))));
+        graph = CollectionGraph.load(fc, pids.getWSLSCollectionPid());
+        correctionThreads = Integer.parseInt(config.getProperty(CORRECTION_THREADS_PROPERTY, "4"));
         //System.out.println("Lucene Index: ");
         //pids.dumpIndex(System.out);
     }
@@ -39,43 +120,77 @@ public class FedoraRepository {
     public PIDRegistry getPIDRegistry() {
         return this.pids;
     }
+
+    /**
+     * Gets the relationships among the objects, which (unlike the resource
+     * index) reflect every write made through this object.
+     */
+    public CollectionGraph getCollectionGraph() {
+        return graph;
+    }
+
+    /**
+     * Returns any PIDs reserved for new objects but not used to the registry
+     * and flushes it.  Call when done ingesting.
+     */
+    public void flush() throws IOException {
+        allocator.release();
+    }
     
     /**
-     * Stores/Updates the video/metadata object in fedora for a WSLS video
+     * Stores/Updates the video/metadata object in fedora for a WSLS video.
+     * New objects are created complete (relationships and metadata) by a
+     * single ingest of FOXML from pbcore2-to-foxml.xsl.
      */
     public String ingestWSLSVideoObject(PBCoreDocument pbcore) throws Exception {
         // locate the existing object (if present)
         String videoPid = pids.getPIDForWSLSID(pbcore.getId());
-        if (videoPid != null) {
-            // purge old relationships
-            FedoraClient.purgeDatastream(videoPid, "RELS-EXT").execute(fc);
+        if (videoPid == null) {
+            // create the complete object (including its place in the
+            // sequence) with a single ingest
+            String parentPid = getOrCreateParentInHierarchy(pbcore);
+            videoPid = allocator.nextPid();
+            synchronized (getSequenceLock(parentPid)) {
+                String[] insertionPoint = pids.getItemInsertionPoint(videoPid, pbcore.getAssetVariablePrecisionDate());
+                FedoraClient.ingest(videoPid).content(FoxmlBuilder.getVideoObjectFoxml(videoPid, pbcore.getId(), pbcore.getXMLAsString().getBytes("UTF-8"), parentPid, insertionPoint[0])).execute(fc);
+                graph.setRelationships(videoPid, Collections.singletonList(parentPid), toList(insertionPoint[0]), ITEM_CMODELS);
+                pids.setPIDforWSLSID(pbcore.getId(), videoPid, pbcore);
+                linkFollowing(videoPid, parentPid, insertionPoint[1]);
+            }
+            changedObjects.add(videoPid);
+            return videoPid;
         }
 
         // locate/create parent objects
         String parentPid = getOrCreateParentInHierarchy(pbcore);
 
-        // update/create video object
-        if (videoPid == null) {
-            videoPid = FedoraClient.ingest().execute(fc).getPid();
-            pids.setPIDforWSLSID(pbcore.getId(), videoPid, pbcore);
+        // if the object has moved to another parent, close the gap it leaves
+        RelsExt rels = RelsExt.load(fc, videoPid);
+        for (String oldParentPid : rels.getObjects(RelsExt.IS_PART_OF)) {
+            if (!oldParentPid.equals(parentPid)) {
+                synchronized (getSequenceLock(oldParentPid)) {
+                    unlinkFollowing(videoPid, oldParentPid, null);
+                }
+            }
         }
 
-        // add the relationship to the parent
-        FedoraClient.addRelationship(videoPid).object("info:fedora/" + parentPid).predicate(FEDORA_RELS + "isPartOf").execute(fc);
-
-        // insert in the sequence
-        String[] insertionPoint = pids.getItemInsertionPoint(videoPid, pbcore.getAssetVariablePrecisionDate());
-        String previousPid = insertionPoint[0];
-        String followingPid = insertionPoint[1];
-        FedoraHelper.insertBetween(fc, videoPid, previousPid, followingPid);
-
-        // add the content models
-        FedoraClient.addRelationship(videoPid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:pbcore2CModel").execute(fc);
-        FedoraClient.addRelationship(videoPid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:eadItemCModel").execute(fc);
+        // replace the relationships (including its place in the sequence)
+        // with a single request
+        synchronized (getSequenceLock(parentPid)) {
+            String[] insertionPoint = pids.getItemInsertionPoint(videoPid, pbcore.getAssetVariablePrecisionDate());
+            unlinkFollowing(videoPid, parentPid, insertionPoint[1]);
+            rels.clear().setObject(RelsExt.IS_PART_OF, parentPid).setObject(RelsExt.FOLLOWS, insertionPoint[0]).setObjects(RelsExt.HAS_MODEL, ITEM_CMODELS);
+            if (rels.save(fc)) {
+                changedParents.add(parentPid);
+            }
+            graph.update(rels);
+            linkFollowing(videoPid, parentPid, insertionPoint[1]);
+        }
 
-        // set the PBCore document
-        FedoraClient.addDatastream(videoPid, "metadata").controlGroup("M").mimeType("text/xml").dsLabel("PBCore metadata").content(pbcore.getXMLAsString()).execute(fc);
+        // set the PBCore document (unless it's unchanged)
+        updateManagedDatastream(videoPid, "metadata", "text/xml", FoxmlBuilder.METADATA_LABEL, pbcore.getXMLAsString());
 
+        changedObjects.add(videoPid);
         return videoPid;
     }
 
@@ -84,41 +199,121 @@ public class FedoraRepository {
         String videoPid = pids.getPIDForWSLSID(id);
         String scriptPid = pids.getAnchorPIDForWSLSID(id);
 
-        if (scriptPid != null) {
-            if (!update) {
-                return scriptPid;
-            } else {
-                // purge old relationships
-                FedoraClient.purgeDatastream(scriptPid, "RELS-EXT").execute(fc);
-            }
+        if (scriptPid != null && !update) {
+            return scriptPid;
         }
 
         if (videoPid == null) {
             throw new IllegalStateException("No video/metadata object found for id " + id + "!");
         }
 
-        // update/create script object
         if (scriptPid == null) {
-            scriptPid = FedoraClient.ingest().execute(fc).getPid();
+            // create the complete object with a single ingest
+            scriptPid = allocator.nextPid();
+            File foxml = FoxmlBuilder.writeAnchorScriptFoxml(scriptPid, videoPid, pdf, text, thumbnail);
+            try {
+                FedoraClient.ingest(scriptPid).content(foxml).execute(fc);
+            } finally {
+                foxml.delete();
+            }
             pids.setAnchorPIDForWSLSID(id, scriptPid);
+            return scriptPid;
         }
 
-        // add the relationship to the video/metadata
-        FedoraClient.addRelationship(scriptPid).predicate(WSLS_RELS + "isAnchorScriptFor").object("info:fedora/" + videoPid).execute(fc);
+        // replace the relationships to the video/metadata object and content
+        // model with a single request
+        RelsExt.load(fc, scriptPid).clear().setObject(WSLS_RELS + "isAnchorScriptFor", videoPid).setObject(RelsExt.HAS_MODEL, FoxmlBuilder.SCRIPT_CMODEL).save(fc);
 
-        // add the content model
-        FedoraClient.addRelationship(scriptPid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:wslsScriptCModel").execute(fc);
+        // replace any of the scriptPDF, scriptTXT and thumbnail datastreams
+        // that have changed
+        updateManagedDatastream(scriptPid, "scriptPDF", "application/pdf", "Anchor Script (PDF)", pdf);
+        updateManagedDatastream(scriptPid, "scriptTXT", "text/plain", "Anchor Script (keyed text)", text);
+        updateManagedDatastream(scriptPid, "thumbnail", "image/png", "Thumbnail image of anchor script", thumbnail);
 
-        // add the scriptPDF datastream
-        FedoraClient.addDatastream(scriptPid, "scriptPDF").controlGroup("M").mimeType("application/pdf").dsLabel("Anchor Script (PDF)").content(pdf).execute(fc);
+        return scriptPid;
+    }
 
-        // add the scriptTXT datastream
-        FedoraClient.addDatastream(scriptPid, "scriptTXT").controlGroup("M").mimeType("text/plain").dsLabel("Anchor Script (keyed text)").content(text).execute(fc);
+    /**
+     * Uploads the file as the content of a managed datastream unless the
+     * datastream already exists with the same MD5 checksum.
+     */
+    private void updateManagedDatastream(String pid, String dsId, String mimeType, String label, File content) throws Exception {
+        DatastreamProfile profile = getDatastreamProfile(pid, dsId);
+        if (isUnchanged(profile, md5Hex(content), content.length())) {
+            return;
+        }
+        if (profile == null) {
+            FedoraClient.addDatastream(pid, dsId).controlGroup("M").mimeType(mimeType).dsLabel(label).checksumType("MD5").content(content).execute(fc);
+        } else {
+            FedoraClient.modifyDatastream(pid, dsId).mimeType(mimeType).dsLabel(label).checksumType("MD5").content(content).execute(fc);
+        }
+    }
 
-        // add the thumbnail datastream
-        FedoraClient.addDatastream(scriptPid, "thumbnail").controlGroup("M").mimeType("image/png").dsLabel("Thumbnail image of anchor script").content(thumbnail).execute(fc);
+    /**
+     * Uploads the (UTF-8 encoded) text as the content of a managed datastream
+     * unless the datastream already exists with the same MD5 checksum.
+     */
+    private void updateManagedDatastream(String pid, String dsId, String mimeType, String label, String content) throws Exception {
+        DatastreamProfile profile = getDatastreamProfile(pid, dsId);
+        byte[] bytes = content.getBytes("UTF-8");
+        if (isUnchanged(profile, DigestUtils.md5Hex(bytes), bytes.length)) {
+            return;
+        }
+        if (profile == null) {
+            FedoraClient.addDatastream(pid, dsId).controlGroup("M").mimeType(mimeType).dsLabel(label).checksumType("MD5").content(content).execute(fc);
+        } else {
+            FedoraClient.modifyDatastream(pid, dsId).mimeType(mimeType).dsLabel(label).checksumType("MD5").content(content).execute(fc);
+        }
+    }
 
-        return scriptPid;
+    /**
+     * Compares the MD5 checksum that fedora has for a datastream with that
+     * of the content that would be uploaded and counts the upload or skipped
+     * upload.  Datastreams without an MD5 checksum (written before checksums
+     * were requested) are always uploaded, after which they'll have one.
+     */
+    private boolean isUnchanged(DatastreamProfile profile, String md5, long size) {
+        if (profile != null && "MD5".equals(profile.getDsChecksumType()) && md5.equalsIgnoreCase(profile.getDsChecksum())) {
+            skippedUploads.incrementAndGet();
+            skippedUploadBytes.addAndGet(size);
+            return true;
+        } else {
+            uploads.incrementAndGet();
+            uploadedBytes.addAndGet(size);
+            return false;
+        }
+    }
+
+    /**
+     * @return the profile of the datastream, or null if it doesn't exist
+     */
+    private DatastreamProfile getDatastreamProfile(String pid, String dsId) throws FedoraClientException {
+        try {
+            return FedoraClient.getDatastream(pid, dsId).execute(fc).getDatastreamProfile();
+        } catch (FedoraClientException ex) {
+            if (ex.getStatus() == 404) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    private static String md5Hex(File f) throws IOException {
+        InputStream in = new FileInputStream(f);
+        try {
+            return DigestUtils.md5Hex(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the number of datastream uploads made and skipped (because fedora
+     * already had the same content) and the bytes in each, as an array of
+     * four longs: uploads, uploaded bytes, skipped uploads and skipped bytes.
+     */
+    public long[] getUploadCounts() {
+        return new long[] { uploads.get(), uploadedBytes.get(), skippedUploads.get(), skippedUploadBytes.get() };
     }
 
     public void purgeWSLSAnchorScriptObject(String id) throws IOException {
@@ -145,21 +340,13 @@ public class FedoraRepository {
 
         String parentPid = getOrCreateCollectionPid();
 
-        // add isPartOf relationship to collection
-        FedoraClient.addRelationship(pid).object("info:fedora/" + parentPid).predicate(FEDORA_RELS + "isPartOf").execute(fc);
-
-        // add follows relationship to last date
-        String[] insertionPoint = pids.getUnknownFolderInsertionPoint(pid);
-        String previousPid = insertionPoint[0];
-        String followingPid = insertionPoint[1];
-        FedoraHelper.insertBetween(fc, pid, previousPid, followingPid);
-
-        // add UNDISCOVERABLE assertion
-        FedoraClient.addRelationship(pid).isLiteral(true).predicate(UVA_RELS + "visibility").object("UNDISCOVERABLE").execute(fc);
-
-        // add content models
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:mods3.4CModel").execute(fc);
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:eadComponentCModel").execute(fc);
+        // add isPartOf, UNDISCOVERABLE, content models and follows
+        // relationship to last date
+        synchronized (getSequenceLock(parentPid)) {
+            String[] insertionPoint = pids.getUnknownFolderInsertionPoint(pid);
+            createFolderRelationships(pid, parentPid, insertionPoint[0]);
+            linkFollowing(pid, parentPid, insertionPoint[1]);
+        }
 
         // add a MODS record
         FedoraClient.addDatastream(pid, "descMetadata").controlGroup("M").mimeType("text/xml").content(getMODSRecord("unknown", "Video clips and corresponding anchor scripts from an unknown date.", null)).execute(fc);
@@ -170,128 +357,170 @@ public class FedoraRepository {
 
     public String getOrCreateUnknownFolderPid() throws Exception {
         String pid = pids.getUnknownPid();
-        if (pid == null) {
-            pid = FedoraClient.ingest().execute(fc).getPid();
-            pids.setUnknownPid(pid);
-        } else {
+        if (pid != null) {
             // no need to update, just return
             return pid;
         }
 
-        String parentPid = getOrCreateCollectionPid();
-
-        // add isPartOf relationship to collection
-        FedoraClient.addRelationship(pid).object("info:fedora/" + parentPid).predicate(FEDORA_RELS + "isPartOf").execute(fc);
-
-        // add follows relationship to last date
-        String[] insertionPoint = pids.getUnknownFolderInsertionPoint(pid);
-        String previousPid = insertionPoint[0];
-        String followingPid = insertionPoint[1];
-        FedoraHelper.insertBetween(fc, pid, previousPid, followingPid);
-
-        // add UNDISCOVERABLE assertion
-        FedoraClient.addRelationship(pid).isLiteral(true).predicate(UVA_RELS + "visibility").object("UNDISCOVERABLE").execute(fc);
-
-        // add content models
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:mods3.4CModel").execute(fc);
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:eadComponentCModel").execute(fc);
-
-        // add a MODS record
-        FedoraClient.addDatastream(pid, "descMetadata").controlGroup("M").mimeType("text/xml").content(getMODSRecord("unknown", "Video clips and corresponding anchor scripts from an unknown date.", null)).execute(fc);
+        final String parentPid = getOrCreateCollectionPid();
+        synchronized (getSequenceLock(parentPid)) {
+            return pids.getOrCreateUnknownPid(new FolderCreator() {
+                void populate(String pid) throws Exception {
+                    // add a MODS record
+                    FedoraClient.addDatastream(pid, "descMetadata").controlGroup("M").mimeType("text/xml").content(getMODSRecord("unknown", "Video clips and corresponding anchor scripts from an unknown date.", null)).execute(fc);
+
+                    // add isPartOf, UNDISCOVERABLE, content models and follows
+                    // relationship to last date
+                    String[] insertionPoint = pids.getUnknownFolderInsertionPoint(pid);
+                    createFolderRelationships(pid, parentPid, insertionPoint[0]);
+                    linkFollowing(pid, parentPid, insertionPoint[1]);
+                }});
+        }
+    }
 
-        return pid;
+    /**
+     * Writes the complete RELS-EXT for a new (year, month or unknown date)
+     * folder in a single request.
+     * @param previousPid the sibling the folder follows (or null)
+     */
+    private void createFolderRelationships(String pid, String parentPid, String previousPid) throws Exception {
+        RelsExt rels = RelsExt.create(pid).setObject(RelsExt.IS_PART_OF, parentPid).setObject(RelsExt.FOLLOWS, previousPid).setLiteral(RelsExt.VISIBILITY, "UNDISCOVERABLE").setObjects(RelsExt.HAS_MODEL, FOLDER_CMODELS);
+        rels.save(fc);
+        graph.update(rels);
+        changedParents.add(parentPid);
     }
-/*
-    private String getNextPid() throws IOException, FedoraClientException {
-        InputStream is = FedoraClient.getNextPID().execute(fc).getEntityInputStream();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        IOUtils.copy(is, baos);
-        String response = new String(baos.toByteArray(), "UTF-8");
-        Pattern p = Pattern.compile(".*\\Q<pid>\\E(.*)\\Q</pid>\\E.*");
-        Matcher m = p.matcher(response);
-        if (m.matches()) {
-            return m.group(1);
-        } else {
-            throw new RuntimeException("Unable to parse pid from: " + response);
+
+    private Object getSequenceLock(String parentPid) {
+        synchronized (sequenceLocks) {
+            Object lock = sequenceLocks.get(parentPid);
+            if (lock == null) {
+                lock = new Object();
+                sequenceLocks.put(parentPid, lock);
+            }
+            return lock;
         }
     }
-*/
-    private String getOrCreateCollectionPid() throws FedoraClientException, IOException, URISyntaxException {
-        String pid = pids.getWSLSCollectionPid();
-        if (pid == null) {
-            pid = FedoraClient.ingest().execute(fc).getPid();
-            pids.setWSLSCollectionPid(pid);
-            FedoraClient.addDatastream(pid, "descMetadata").content(new File(getClass().getClassLoader().getResource("collection-ead-fragment.xml").toURI())).execute(fc);
-            FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:eadCollectionCModel").execute(fc);
-            FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:eadMetadataFragmentCModel").execute(fc);
-            FedoraClient.addRelationship(pid).isLiteral(true).predicate(UVA_RELS + "visibility").object("UNDISCOVERABLE").execute(fc);
-            return pid;
-        } else {
-            return pid;
+
+    /**
+     * Makes the sibling that should follow an object (just placed in the
+     * sequence) follow it.  The caller must hold the parent's sequence lock.
+     * @param followingPid the sibling (from the registry) or null if the
+     *        object is the last
+     */
+    private void linkFollowing(String pid, String parentPid, String followingPid) throws Exception {
+        if (followingPid != null && !graph.getPrevious(followingPid).equals(Collections.singletonList(pid))) {
+            graph.update(FedoraHelper.setFollows(fc, followingPid, pid));
+            changedParents.add(parentPid);
+            changedObjects.add(followingPid);
         }
     }
 
-    private String getOrCreateMonthPid(VariablePrecisionDate date) throws Exception {
-        String pid = pids.getMonthPid(date.getYear(), date.getMonth());
-        if (pid == null) {
-            pid = FedoraClient.ingest().execute(fc).getPid();
-            pids.setMonthPid(date.getYear(), date.getMonth(), pid);
-        } else {
-            // no need to update, lets just return...
-            return pid;
+    /**
+     * Closes the gap an object leaves when it's moved, by making whatever
+     * followed it follow what it followed.  The caller must hold the
+     * parent's sequence lock.
+     * @param exceptPid a sibling to leave alone, because it will follow the
+     *        object in its new place (or null)
+     */
+    private void unlinkFollowing(String pid, String parentPid, String exceptPid) throws Exception {
+        List<String> previous = graph.getPrevious(pid);
+        for (String nextPid : graph.getNext(pid)) {
+            if (!nextPid.equals(exceptPid)) {
+                graph.update(FedoraHelper.setFollows(fc, nextPid, previous.isEmpty() ? null : previous.get(0)));
+                changedParents.add(parentPid);
+                changedObjects.add(nextPid);
+            }
         }
+    }
 
-        String parentPid = getOrCreateYearPid(date.getYear());
+    private static List<String> toList(String pid) {
+        return pid == null ? Collections.<String>emptyList() : Collections.singletonList(pid);
+    }
 
-        // add isPartOf relationship to collection
-        FedoraClient.addRelationship(pid).object("info:fedora/" + parentPid).predicate(FEDORA_RELS + "isPartOf").execute(fc);
+    /**
+     * A PIDCreator for the collection and folder objects, which are created
+     * empty and then filled in by populate().  The relationships that link a
+     * folder into the collection are written last, so that if populate()
+     * fails the folder can simply be purged.
+     */
+    private abstract class FolderCreator implements PIDRegistry.PIDCreator {
+        public String create() throws Exception {
+            String pid = allocator.nextPid();
+            FedoraClient.ingest(pid).execute(fc);
+            return pid;
+        }
 
-        // update ordering
-        String[] insertionPoint = pids.getMonthInsertionPoint(pid, date);
-        FedoraHelper.insertBetween(fc, pid, insertionPoint[0], insertionPoint[1]);
+        public void initialize(String pid) throws Exception {
+            try {
+                populate(pid);
+            } catch (Exception ex) {
+                System.err.println("Unable to set up " + pid + ", purging it: " + ex);
+                try {
+                    FedoraClient.purgeObject(pid).execute(fc);
+                    graph.remove(pid);
+                } catch (Exception purgeEx) {
+                    System.err.println("Unable to purge " + pid + "!");
+                    purgeEx.printStackTrace();
+                }
+                throw ex;
+            }
+        }
 
-        // add UNDISCOVERABLE assertion
-        FedoraClient.addRelationship(pid).isLiteral(true).predicate(UVA_RELS + "visibility").object("UNDISCOVERABLE").execute(fc);
+        abstract void populate(String pid) throws Exception;
+    }
 
-        // add content models
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:mods3.4CModel").execute(fc);
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:eadComponentCModel").execute(fc);
+    private String getOrCreateCollectionPid() throws Exception {
+        return pids.getOrCreateWSLSCollectionPid(new FolderCreator() {
+            void populate(String pid) throws Exception {
+                FedoraClient.addDatastream(pid, "descMetadata").content(new File(getClass().getClassLoader().getResource("collection-ead-fragment.xml").toURI())).execute(fc);
+                RelsExt rels = RelsExt.create(pid).setObjects(RelsExt.HAS_MODEL, COLLECTION_CMODELS).setLiteral(RelsExt.VISIBILITY, "UNDISCOVERABLE");
+                rels.save(fc);
+                graph.update(rels);
+            }});
+    }
 
-        // add a MODS record
-        FedoraClient.addDatastream(pid, "descMetadata").controlGroup("M").mimeType("text/xml").content(getMODSRecord(date.getMonthString(), "Video clips and corresponding anchor scripts from " + date.getMonthString() + " of " + date.getYear() + ".", null)).execute(fc);
+    private String getOrCreateMonthPid(final VariablePrecisionDate date) throws Exception {
+        String pid = pids.getMonthPid(date.getYear(), date.getMonth());
+        if (pid != null) {
+            // no need to update, lets just return...
+            return pid;
+        }
 
-        return pid;
+        final String parentPid = getOrCreateYearPid(date.getYear());
+        synchronized (getSequenceLock(parentPid)) {
+            return pids.getOrCreateMonthPid(date.getYear(), date.getMonth(), new FolderCreator() {
+                void populate(String pid) throws Exception {
+                    // add a MODS record
+                    FedoraClient.addDatastream(pid, "descMetadata").controlGroup("M").mimeType("text/xml").content(getMODSRecord(date.getMonthString(), "Video clips and corresponding anchor scripts from " + date.getMonthString() + " of " + date.getYear() + ".", null)).execute(fc);
+
+                    // add isPartOf, UNDISCOVERABLE, content models and ordering
+                    String[] insertionPoint = pids.getMonthInsertionPoint(pid, date);
+                    createFolderRelationships(pid, parentPid, insertionPoint[0]);
+                    linkFollowing(pid, parentPid, insertionPoint[1]);
+                }});
+        }
     }
 
-    private String getOrCreateYearPid(int year) throws Exception {
+    private String getOrCreateYearPid(final int year) throws Exception {
         String pid = pids.getYearPid(year);
-        if (pid == null) {
-            pid = FedoraClient.ingest().execute(fc).getPid();
-            pids.setYearPid(year, pid);
-        } else {
+        if (pid != null) {
             // no need to update, just return
             return pid;
         }
-        String parentPid = getOrCreateCollectionPid();
-
-        // add isPartOf relationship to collection
-        FedoraClient.addRelationship(pid).object("info:fedora/" + parentPid).predicate(FEDORA_RELS + "isPartOf").execute(fc);
-
-        // update ordering
-        String[] insertionPoint = pids.getYearInsertionPoint(pid, year);
-        FedoraHelper.insertBetween(fc, pid, insertionPoint[0], insertionPoint[1]);
-
-        // add UNDISCOVERABLE assertion
-        FedoraClient.addRelationship(pid).isLiteral(true).predicate(UVA_RELS + "visibility").object("UNDISCOVERABLE").execute(fc);
-
-        // add content models
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:mods3.4CModel").execute(fc);
-        FedoraClient.addRelationship(pid).predicate(FEDORA_MODEL + "hasModel").object("info:fedora/uva-lib:eadComponentCModel").execute(fc);
-
-        // add a MODS record
-        FedoraClient.addDatastream(pid, "descMetadata").controlGroup("M").mimeType("text/xml").content(getMODSRecord(String.valueOf(year), "Video clips and corresponding anchor scripts from " + year + ".", null)).execute(fc);
 
-        return pid;
+        final String parentPid = getOrCreateCollectionPid();
+        synchronized (getSequenceLock(parentPid)) {
+            return pids.getOrCreateYearPid(year, new FolderCreator() {
+                void populate(String pid) throws Exception {
+                    // add a MODS record
+                    FedoraClient.addDatastream(pid, "descMetadata").controlGroup("M").mimeType("text/xml").content(getMODSRecord(String.valueOf(year), "Video clips and corresponding anchor scripts from " + year + ".", null)).execute(fc);
+
+                    // add isPartOf, UNDISCOVERABLE, content models and ordering
+                    String[] insertionPoint = pids.getYearInsertionPoint(pid, year);
+                    createFolderRelationships(pid, parentPid, insertionPoint[0]);
+                    linkFollowing(pid, parentPid, insertionPoint[1]);
+                }});
+        }
     }
 
     /**
@@ -304,20 +533,64 @@ public class FedoraRepository {
 
     }
 
+    /**
+     * Returns once the resource index reflects every write made so far.
+     * @return the time in milliseconds that took
+     */
+    public long waitForResourceIndex() throws Exception {
+        return new ResourceIndexBarrier(fc).sync();
+    }
+
     public void diagnoseParents() throws Exception {
-        RelationshipValidator validator = new RelationshipValidator(fc, pids);
+        RelationshipValidator validator = new RelationshipValidator(fc, pids, graph);
         validator.diagnoseParents();
     }
 
     public void fixParents() throws Exception {
-        RelationshipValidator validator = new RelationshipValidator(fc, pids);
-        validator.fixParents();
+        RelationshipValidator validator = new RelationshipValidator(fc, pids, graph);
+        validator.fixParents(correctionThreads);
     }
 
+    /**
+     * Checks and corrects the parent and ordering of every object in the
+     * collection.  This reloads the relationships from the resource index,
+     * so should be called once it has caught up (see waitForResourceIndex()).
+     */
     public void fixRelationships() throws IOException, Exception {
-        RelationshipValidator validator = new RelationshipValidator(fc, pids);
-        validator.fixParents();
-        validator.correctTree(pids.getWSLSCollectionPid());
+        graph = CollectionGraph.load(fc, pids.getWSLSCollectionPid());
+        RelationshipValidator validator = new RelationshipValidator(fc, pids, graph);
+        validator.fixParents(correctionThreads);
+        validator.correctTree(pids.getWSLSCollectionPid(), correctionThreads);
+    }
+
+    /**
+     * Checks (and corrects) the ordering of the children of only those
+     * objects whose children were added, moved or reordered by this object.
+     * As objects are linked into place as they're written this should find
+     * nothing to correct.
+     */
+    public void verifyRelationships() throws Exception {
+        List<String> parents = new ArrayList<String>();
+        synchronized (changedParents) {
+            parents.addAll(changedParents);
+        }
+        new RelationshipValidator(fc, pids, graph).verifyChildSets(parents);
+    }
+
+    /**
+     * Gets the pids of the items written by this object, of those whose
+     * place in a sequence changed as a result, and of the folders whose
+     * children changed; the objects whose index records may need updating.
+     */
+    public List<String> getChangedPids() {
+        Set<String> changed = new LinkedHashSet<String>();
+        synchronized (changedObjects) {
+            changed.addAll(changedObjects);
+        }
+        synchronized (changedParents) {
+            changed.addAll(changedParents);
+        }
+        return new ArrayList<String>(changed);
     }
 
     private String getMODSRecord(String title, String description, String w3cdtfDate) throws UnsupportedEncodingException, XMLStreamException {
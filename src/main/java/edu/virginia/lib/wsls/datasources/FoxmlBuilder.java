@@ -0,0 +1,204 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Builds complete FOXML documents for new WSLS objects so that each can be
+ * created (with its relationships and datastreams) by a single ingest
+ * request.
+ */
+public class FoxmlBuilder {
+
+    public static final String FOXML_NS = "info:fedora/fedora-system:def/foxml#";
+    public static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+    public static final String SCRIPT_CMODEL = "uva-lib:wslsScriptCModel";
+
+    /**
+     * The label of the metadata datastream, whether it's created by the
+     * ingest of a new object or later replaced.
+     */
+    public static final String METADATA_LABEL = "PBCore 2.0 metadata";
+
+    private static Templates videoObjectTemplates;
+
+    /**
+     * Gets the compiled pbcore2-to-foxml.xsl, which is compiled once and
+     * shared, as compiling it is far more expensive than applying it.
+     */
+    private static synchronized Templates getVideoObjectTemplates() throws TransformerException {
+        if (videoObjectTemplates == null) {
+            TransformerFactory tFactory = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+            videoObjectTemplates = tFactory.newTemplates(new StreamSource(FoxmlBuilder.class.getClassLoader().getResource("pbcore2-to-foxml.xsl").toString()));
+        }
+        return videoObjectTemplates;
+    }
+
+    /**
+     * Gets the FOXML for a new video/metadata object.
+     * @param pid the pid of the new object
+     * @param id the WSLS id
+     * @param metadata the PBCore document that will be the metadata
+     *        datastream; it's inlined as base64 so that fedora stores (and
+     *        computes the checksum of) exactly these bytes
+     * @param parentPid the folder to which the object belongs
+     */
+    public static String getVideoObjectFoxml(String pid, String id, byte[] metadata, String parentPid) throws TransformerException, IOException {
+        return getVideoObjectFoxml(pid, id, metadata, parentPid, null);
+    }
+
+    /**
+     * Gets the FOXML for a new video/metadata object.
+     * @param previousPid the sibling the object follows, or null if it is
+     *        the first
+     */
+    public static String getVideoObjectFoxml(String pid, String id, byte[] metadata, String parentPid, String previousPid) throws TransformerException, IOException {
+        Transformer t = getVideoObjectTemplates().newTransformer();
+        t.setParameter("pid", pid);
+        t.setParameter("id", id);
+        t.setParameter("parentPid", parentPid);
+        if (previousPid != null) {
+            t.setParameter("previousPid", previousPid);
+        }
+        t.setParameter("metadata", new String(Base64.encodeBase64(metadata), "US-ASCII"));
+        t.setParameter("metadataLabel", METADATA_LABEL);
+        StringWriter w = new StringWriter();
+        // everything comes from the parameters, so the source is a placeholder
+        t.transform(new StreamSource(new StringReader("<metadata/>")), new StreamResult(w));
+        return w.toString();
+    }
+
+    /**
+     * Writes the FOXML for a new anchor script object, with the PDF, text and
+     * thumbnail inlined as base64 encoded managed datastreams.  The files are
+     * encoded a block at a time so they are never all held in memory.
+     */
+    public static void writeAnchorScriptFoxml(String pid, String videoPid, File pdf, File text, File thumbnail, OutputStream out) throws XMLStreamException, IOException {
+        XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+        w.writeStartDocument("UTF-8", "1.0");
+        w.writeStartElement("foxml", "digitalObject", FOXML_NS);
+        w.writeNamespace("foxml", FOXML_NS);
+        w.writeAttribute("VERSION", "1.1");
+        w.writeAttribute("PID", pid);
+
+        w.writeStartElement("foxml", "objectProperties", FOXML_NS);
+        w.writeEmptyElement("foxml", "property", FOXML_NS);
+        w.writeAttribute("NAME", FedoraRepository.FEDORA_MODEL + "state");
+        w.writeAttribute("VALUE", "A");
+        w.writeEndElement(); // foxml:objectProperties
+
+        w.writeStartElement("foxml", "datastream", FOXML_NS);
+        w.writeAttribute("ID", "RELS-EXT");
+        w.writeAttribute("CONTROL_GROUP", "X");
+        w.writeAttribute("VERSIONABLE", "true");
+        w.writeStartElement("foxml", "datastreamVersion", FOXML_NS);
+        w.writeAttribute("ID", "RELS-EXT.0");
+        w.writeAttribute("FORMAT_URI", "info:fedora/fedora-system:FedoraRELSExt-1.0");
+        w.writeAttribute("MIMETYPE", "application/rdf+xml");
+        w.writeStartElement("foxml", "xmlContent", FOXML_NS);
+        w.writeStartElement("rdf", "RDF", RDF_NS);
+        w.writeNamespace("rdf", RDF_NS);
+        w.writeNamespace("model", FedoraRepository.FEDORA_MODEL);
+        w.writeNamespace("wsls", FedoraRepository.WSLS_RELS);
+        w.writeStartElement("rdf", "Description", RDF_NS);
+        w.writeAttribute("rdf", RDF_NS, "about", "info:fedora/" + pid);
+        w.writeEmptyElement("model", "hasModel", FedoraRepository.FEDORA_MODEL);
+        w.writeAttribute("rdf", RDF_NS, "resource", "info:fedora/" + SCRIPT_CMODEL);
+        w.writeEmptyElement("wsls", "isAnchorScriptFor", FedoraRepository.WSLS_RELS);
+        w.writeAttribute("rdf", RDF_NS, "resource", "info:fedora/" + videoPid);
+        w.writeEndElement(); // rdf:Description
+        w.writeEndElement(); // rdf:RDF
+        w.writeEndElement(); // foxml:xmlContent
+        w.writeEndElement(); // foxml:datastreamVersion
+        w.writeEndElement(); // foxml:datastream
+
+        writeManagedDatastream(w, "scriptPDF", "application/pdf", "Anchor Script (PDF)", pdf);
+        writeManagedDatastream(w, "scriptTXT", "text/plain", "Anchor Script (keyed text)", text);
+        writeManagedDatastream(w, "thumbnail", "image/png", "Thumbnail image of anchor script", thumbnail);
+
+        w.writeEndElement(); // foxml:digitalObject
+        w.writeEndDocument();
+        w.close();
+    }
+
+    /**
+     * Writes the FOXML for a new anchor script object to a temporary file,
+     * which the caller should delete once it has been ingested.
+     */
+    public static File writeAnchorScriptFoxml(String pid, String videoPid, File pdf, File text, File thumbnail) throws XMLStreamException, IOException {
+        File foxml = File.createTempFile("anchor-script-", ".xml");
+        FileOutputStream out = new FileOutputStream(foxml);
+        try {
+            writeAnchorScriptFoxml(pid, videoPid, pdf, text, thumbnail, out);
+        } catch (XMLStreamException ex) {
+            foxml.delete();
+            throw ex;
+        } catch (IOException ex) {
+            foxml.delete();
+            throw ex;
+        } finally {
+            out.close();
+        }
+        return foxml;
+    }
+
+    private static void writeManagedDatastream(XMLStreamWriter w, String dsId, String mimeType, String label, File content) throws XMLStreamException, IOException {
+        w.writeStartElement("foxml", "datastream", FOXML_NS);
+        w.writeAttribute("ID", dsId);
+        w.writeAttribute("STATE", "A");
+        w.writeAttribute("CONTROL_GROUP", "M");
+        w.writeAttribute("VERSIONABLE", "true");
+        w.writeStartElement("foxml", "datastreamVersion", FOXML_NS);
+        w.writeAttribute("ID", dsId + ".0");
+        w.writeAttribute("LABEL", label);
+        w.writeAttribute("MIMETYPE", mimeType);
+        // have fedora compute an MD5 checksum so later updates can be skipped
+        // when the content is unchanged
+        w.writeEmptyElement("foxml", "contentDigest", FOXML_NS);
+        w.writeAttribute("TYPE", "MD5");
+        w.writeStartElement("foxml", "binaryContent", FOXML_NS);
+        // a multiple of 3 so that every block but the last encodes without padding
+        byte[] buffer = new byte[3 * 16384];
+        InputStream in = new FileInputStream(content);
+        try {
+            int read = 0;
+            while ((read = readFully(in, buffer)) > 0) {
+                w.writeCharacters(new String(Base64.encodeBase64(read == buffer.length ? buffer : Arrays.copyOf(buffer, read)), "US-ASCII"));
+            }
+        } finally {
+            in.close();
+        }
+        w.writeEndElement(); // foxml:binaryContent
+        w.writeEndElement(); // foxml:datastreamVersion
+        w.writeEndElement(); // foxml:datastream
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read = 0;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
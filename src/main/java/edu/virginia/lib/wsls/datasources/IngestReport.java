@@ -39,6 +39,11 @@ public class IngestReport {
 
     StringBuffer ingested;
 
+    long uploads;
+    long uploadedBytes;
+    long skippedUploads;
+    long skippedUploadBytes;
+
     public IngestReport() {
         modifiedInMaster = new ArrayList<String>();
         modifiedInCataloger = new ArrayList<String>();
@@ -94,6 +99,17 @@ public class IngestReport {
         ingested.append("  " + id + " --> " + pid + "\n");
     }
 
+    /**
+     * Records the datastream uploads made and those skipped because fedora
+     * already had identical content.
+     */
+    public void datastreamUploads(long uploads, long uploadedBytes, long skippedUploads, long skippedUploadBytes) {
+        this.uploads = uploads;
+        this.uploadedBytes = uploadedBytes;
+        this.skippedUploads = skippedUploads;
+        this.skippedUploadBytes = skippedUploadBytes;
+    }
+
     public void relationshipsUpdated(long durationInMs) {
 
     }
@@ -144,6 +160,9 @@ public class IngestReport {
         }
         sb.append("\n");
 
+        sb.append(uploads + " datastreams uploaded (" + uploadedBytes + " bytes).\n");
+        sb.append(skippedUploads + " unchanged datastreams not uploaded (" + skippedUploadBytes + " bytes).\n\n");
+
         appendSummary(sb, "unrecognized id", problemToIdMap.get(UNRECOGNIZED_ID), Math.max(50, max));
         appendSummary(sb, "duplicate id", problemToIdMap.get(DUPLICATED_ID), Math.max(50, max));
         appendSummary(sb, "unknown title", problemToIdMap.get(UNKNOWN_TITLE), Math.max(50, max));
@@ -24,15 +24,15 @@ public class IngestStatusTracker {
         r.close();
     }
 
-    public boolean hasBeenIngested(String id) {
+    public synchronized boolean hasBeenIngested(String id) {
         return idToPidMap.containsKey(id);
     }
 
-    public int getAlreadyIngestedCount() {
+    public synchronized int getAlreadyIngestedCount() {
         return idToPidMap.size();
     }
 
-    public void notifyIngest(String id, String pid) throws IOException {
+    public synchronized void notifyIngest(String id, String pid) throws IOException {
         if (idToPidMap.containsKey(id)) {
             return;
         }
@@ -0,0 +1,524 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument;
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
+
+
+/**
+ * A PIDRegistry kept in a lucene index.
+ *
+ * All reads go through a single near-real-time searcher that is opened from
+ * the IndexWriter and only refreshed after a write, so lookups neither reopen
+ * the index nor need any file-system lock and may be made concurrently.
+ *
+ * Writes are group-committed: the lucene index is only committed once the
+ * configured number of writes have accumulated, the configured interval has
+ * passed, or flush() is called.  Until then every write is appended (and
+ * synced) to a small journal file next to the index, which is replayed the
+ * next time the registry is opened, so a PID that has been handed to fedora
+ * is never lost to a crash.
+ *
+ * The id to PID and PID to date/type mappings are also held in memory.  They
+ * are loaded from the index when the registry is opened and written through
+ * on every write, so getPIDFor*() and getDateForPid() never touch lucene.
+ * Each type of entry is also kept in a set ordered by date and pid, so the
+ * get*InsertionPoint() methods find the neighbours of a new folder or item
+ * in logarithmic time.
+ * Writes are serialized; reads use the concurrent maps and sets and the
+ * shared searcher and don't block.
+ * Each entry costs roughly 250 bytes of heap (one shared entry object, the
+ * id and PID strings and a slot in each of the two maps), so a registry of
+ * 1,000,000 entries needs about 250MB; the WSLS registries (tens of thousands
+ * of entries) need only a few megabytes.
+ *
+ * Every field is kept in lucene doc values (schema version 2, recorded in
+ * the commit data) so the index is read without decoding stored documents.
+ * Registries written with the original stored-field schema must be upgraded
+ * with PidRegistryMigrator before they can be opened.
+ */
+public class LucenePIDRegistry extends AbstractPIDRegistry {
+
+    public static final String COMMIT_BATCH_SIZE_PROPERTY = "pid-registry-commit-batch-size";
+    public static final String COMMIT_INTERVAL_PROPERTY = "pid-registry-commit-interval";
+
+    public static final int DEFAULT_COMMIT_BATCH_SIZE = 500;
+    public static final long DEFAULT_COMMIT_INTERVAL = 30000;
+
+    private static final String JOURNAL_FILENAME = "registry.journal";
+
+    /**
+     * The commit user data key under which the schema version is recorded.
+     * Indexes without it were written by the original, stored-field schema.
+     */
+    private static final String SCHEMA_VERSION_KEY = "pid-registry-schema";
+
+    /**
+     * Version 2 keeps every field in doc values and stores nothing.
+     */
+    private static final String SCHEMA_VERSION = "2";
+
+    private Analyzer analyzer;
+
+    private Directory luceneDirectory;
+
+    private IndexWriter writer;
+
+    private SearcherManager searcherManager;
+
+    private RandomAccessFile journal;
+
+    private int commitBatchSize;
+
+    private long commitInterval;
+
+    private int uncommittedWrites;
+
+    private long lastCommit;
+
+    private volatile boolean searcherIsStale;
+
+    private boolean bulkWrite;
+
+    private Map<String, RegistryEntry> entriesById;
+
+    private Map<String, RegistryEntry> entriesByPid;
+
+    private Map<String, NavigableSet<RegistryEntry>> entriesByType;
+
+    public LucenePIDRegistry(File luceneDir) throws IOException {
+        this(luceneDir, DEFAULT_COMMIT_BATCH_SIZE, DEFAULT_COMMIT_INTERVAL);
+    }
+
+    /**
+     * Creates a registry whose commit window is read from the
+     * "pid-registry-commit-batch-size" and "pid-registry-commit-interval"
+     * (milliseconds) properties, falling back to the defaults for either one
+     * that isn't specified.
+     */
+    public LucenePIDRegistry(File luceneDir, Properties p) throws IOException {
+        this(luceneDir,
+                Integer.parseInt(p.getProperty(COMMIT_BATCH_SIZE_PROPERTY, String.valueOf(DEFAULT_COMMIT_BATCH_SIZE)).trim()),
+                Long.parseLong(p.getProperty(COMMIT_INTERVAL_PROPERTY, String.valueOf(DEFAULT_COMMIT_INTERVAL)).trim()));
+    }
+
+    /**
+     * @param commitBatchSize the number of writes after which the index is
+     * committed, a value of 1 commits after every write
+     * @param commitInterval the maximum number of milliseconds a write may
+     * remain uncommitted (checked on each write)
+     */
+    public LucenePIDRegistry(File luceneDir, int commitBatchSize, long commitInterval) throws IOException {
+        super(luceneDir);
+        if (commitBatchSize < 1) {
+            throw new IllegalArgumentException("The commit batch size must be at least 1!");
+        }
+        this.commitBatchSize = commitBatchSize;
+        this.commitInterval = commitInterval;
+        luceneDirectory = FSDirectory.open(luceneDir);
+        analyzer = new StandardAnalyzer(Version.LUCENE_43);
+        boolean existingIndex = DirectoryReader.indexExists(luceneDirectory);
+        writer = openWriter();
+        if (!existingIndex) {
+            writer.setCommitData(Collections.singletonMap(SCHEMA_VERSION_KEY, SCHEMA_VERSION));
+            writer.commit();
+        } else if (!SCHEMA_VERSION.equals(writer.getCommitData().get(SCHEMA_VERSION_KEY))) {
+            writer.close();
+            luceneDirectory.close();
+            throw new IllegalStateException("The PID registry at " + luceneDir.getPath() + " uses an older schema, run "
+                    + "edu.virginia.lib.wsls.util.PidRegistryMigrator to upgrade it.");
+        }
+        searcherManager = new SearcherManager(writer, true, new SearcherFactory());
+
+        File journalFile = new File(luceneDir, JOURNAL_FILENAME);
+        if (journalFile.length() > 0) {
+            replayJournal(journalFile);
+        }
+        journal = new RandomAccessFile(journalFile, "rw");
+        journal.setLength(0);
+        lastCommit = System.currentTimeMillis();
+
+        loadEntries();
+    }
+
+    synchronized void writeEntry(RegistryEntry e) throws IOException {
+        if (!bulkWrite) {
+            appendToJournal(e.id, e.pid, e.type, e.year, e.month, e.day);
+        }
+        if (entriesById.containsKey(e.id)) {
+            updateDocument(e.id, e.pid, e.year, e.month, e.day, e.type);
+        } else {
+            // nothing to replace, so skip the delete-by-term
+            writer.addDocument(createDocument(e.id, e.pid, e.year, e.month, e.day, e.type));
+        }
+        cache(e);
+        searcherIsStale = true;
+        uncommittedWrites ++;
+        if (!bulkWrite && (uncommittedWrites >= commitBatchSize || System.currentTimeMillis() - lastCommit >= commitInterval)) {
+            flush();
+        }
+    }
+
+    /**
+     * Bulk writes are neither journaled nor committed until the bulk write
+     * ends, when a single commit covers all of them.
+     */
+    public synchronized void beginBulkWrite() throws IOException {
+        flush();
+        bulkWrite = true;
+    }
+
+    public synchronized void endBulkWrite() throws IOException {
+        bulkWrite = false;
+        flush();
+    }
+
+    /**
+     * Rolls the index back to the commit made by beginBulkWrite() (the
+     * writer is closed by the rollback, so it's reopened) and reloads the
+     * entries from it.
+     */
+    synchronized void abortBulkWrite() throws IOException {
+        bulkWrite = false;
+        searcherManager.close();
+        writer.rollback();
+        writer = openWriter();
+        searcherManager = new SearcherManager(writer, true, new SearcherFactory());
+        searcherIsStale = false;
+        uncommittedWrites = 0;
+        loadEntries();
+    }
+
+    private IndexWriter openWriter() throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_43, analyzer);
+        iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+        return new IndexWriter(luceneDirectory, iwc);
+    }
+
+    /**
+     * Adds or replaces the document for the given id.
+     */
+    private void updateDocument(String id, String pid, Integer year, Integer month, Integer day, String type) throws IOException {
+        writer.updateDocument(new Term("id", id), createDocument(id, pid, year, month, day, type));
+    }
+
+    /**
+     * The id and pid are indexed (for updates and deletes) but nothing is
+     * stored; every value is read back from doc values.
+     */
+    private Document createDocument(String id, String pid, Integer year, Integer month, Integer day, String type) {
+        Document doc = new Document();
+        doc.add(new StringField("id", id, Field.Store.NO));
+        doc.add(new SortedDocValuesField("id", new BytesRef(id)));
+        doc.add(new StringField("pid", pid, Field.Store.NO));
+        doc.add(new SortedDocValuesField("pid", new BytesRef(pid)));
+        doc.add(new SortedDocValuesField("type", new BytesRef(type)));
+        doc.add(new NumericDocValuesField("year", year == null ? 0 : year));
+        doc.add(new NumericDocValuesField("month", month == null ? 0 : month));
+        doc.add(new NumericDocValuesField("day", day == null ? 0 : day));
+        return doc;
+    }
+
+    /**
+     * Commits any outstanding writes to the lucene index and clears the
+     * journal.
+     */
+    public synchronized void flush() throws IOException {
+        if (uncommittedWrites > 0) {
+            writer.commit();
+            journal.setLength(0);
+            uncommittedWrites = 0;
+        }
+        lastCommit = System.currentTimeMillis();
+    }
+
+    /**
+     * Appends a single tab-delimited line for the write and forces it to
+     * disk before returning.
+     */
+    private void appendToJournal(String id, String pid, String type, int year, int month, int day) throws IOException {
+        byte[] line = (id + "\t" + pid + "\t" + type + "\t" + year + "\t" + month + "\t" + day + "\n").getBytes("UTF-8");
+        FileChannel channel = journal.getChannel();
+        channel.write(ByteBuffer.wrap(line), channel.size());
+        channel.force(false);
+    }
+
+    /**
+     * Applies every complete entry in the journal left by a registry that
+     * wasn't cleanly closed and commits them.
+     */
+    private void replayJournal(File journalFile) throws IOException {
+        List<RegistryEntry> entries = readJournal(journalFile);
+        for (RegistryEntry e : entries) {
+            updateDocument(e.id, e.pid, e.year, e.month, e.day, e.type);
+        }
+        writer.commit();
+        searcherManager.maybeRefresh();
+        System.out.println("Recovered " + entries.size() + " uncommitted PID registry entries from " + journalFile.getPath() + ".");
+    }
+
+    /**
+     * Reads the complete entries from a journal.  A partially written final
+     * line (if the crash happened mid-write) is ignored; the write it
+     * represents never returned so its PID was never used.
+     */
+    private static List<RegistryEntry> readJournal(File journalFile) throws IOException {
+        List<RegistryEntry> entries = new ArrayList<RegistryEntry>();
+        byte[] content = FileUtils.readFileToByteArray(journalFile);
+        int end = content.length;
+        while (end > 0 && content[end - 1] != '\n') {
+            end --;
+        }
+        if (end < content.length) {
+            System.err.println("Ignoring incomplete PID registry journal entry: " + new String(content, end, content.length - end, "UTF-8"));
+        }
+        for (String line : new String(content, 0, end, "UTF-8").split("\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length == 6) {
+                entries.add(new RegistryEntry(fields[0], fields[1], fields[2], Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5])));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Acquires the shared searcher, first reopening it (from the writer, so
+     * uncommitted writes are included) if anything has been written since it
+     * was last opened.  Callers must release the searcher.
+     */
+    private IndexSearcher acquireSearcher() throws IOException {
+        if (searcherIsStale) {
+            searcherIsStale = false;
+            searcherManager.maybeRefresh();
+        }
+        return searcherManager.acquire();
+    }
+
+    /**
+     * Populates the in-memory maps with every entry in the index.
+     */
+    private void loadEntries() throws IOException {
+        entriesById = new ConcurrentHashMap<String, RegistryEntry>();
+        entriesByPid = new ConcurrentHashMap<String, RegistryEntry>();
+        entriesByType = new ConcurrentHashMap<String, NavigableSet<RegistryEntry>>();
+        visitInIdOrder(new EntryVisitor() {
+            public void visit(RegistryEntry e) {
+                cache(e);
+            }});
+    }
+
+    private void cache(RegistryEntry e) {
+        RegistryEntry previous = entriesById.put(e.id, e);
+        if (previous != null) {
+            entriesByType.get(previous.type).remove(previous);
+            if (!previous.pid.equals(e.pid)) {
+                entriesByPid.remove(previous.pid);
+            }
+        }
+        NavigableSet<RegistryEntry> siblings = entriesByType.get(e.type);
+        if (siblings == null) {
+            siblings = new ConcurrentSkipListSet<RegistryEntry>();
+            entriesByType.put(e.type, siblings);
+        }
+        siblings.add(e);
+        previous = entriesByPid.put(e.pid, e);
+        if (previous != null && !previous.id.equals(e.id)) {
+            System.err.println("PID " + e.pid + " is registered for both " + previous.id + " and " + e.id + "!");
+        }
+    }
+
+    protected String getPIDForID(String id) {
+        RegistryEntry e = entriesById.get(id);
+        return e == null ? null : e.pid;
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        journal.close();
+        searcherManager.close();
+        writer.close();
+        luceneDirectory.close();
+    }
+
+    RegistryEntry getEntryForPid(String pid) {
+        return entriesByPid.get(pid);
+    }
+
+    String[] getInsertionPoint(String pid, RegistryEntry probe, int depth) {
+        NavigableSet<RegistryEntry> siblings = entriesByType.get(probe.type);
+        if (siblings == null) {
+            return new String[] { null, null };
+        }
+        return new String[] {
+                findSibling(siblings.headSet(probe, true).descendingIterator(), pid, probe, depth),
+                findSibling(siblings.tailSet(probe, false).iterator(), pid, probe, depth) };
+    }
+
+    private String findSibling(Iterator<RegistryEntry> it, String pid, RegistryEntry probe, int depth) {
+        while (it.hasNext()) {
+            RegistryEntry e = it.next();
+            if (!e.isSibling(probe, depth)) {
+                return null;
+            } else if (!e.pid.equals(pid)) {
+                return e.pid;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes every live entry in the index to the visitor in id order.  The
+     * ordinals of the "id" doc values are already in id order, so this is a
+     * single pass over the documents to map ordinals to documents followed
+     * by a pass over the ordinals; no stored fields are read.
+     */
+    void visitInIdOrder(EntryVisitor visitor) throws IOException {
+        IndexSearcher searcher = acquireSearcher();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            SortedDocValues ids = MultiDocValues.getSortedValues(reader, "id");
+            if (ids == null) {
+                // no entries
+                return;
+            }
+            SortedDocValues pids = MultiDocValues.getSortedValues(reader, "pid");
+            SortedDocValues types = MultiDocValues.getSortedValues(reader, "type");
+            NumericDocValues years = MultiDocValues.getNumericValues(reader, "year");
+            NumericDocValues months = MultiDocValues.getNumericValues(reader, "month");
+            NumericDocValues days = MultiDocValues.getNumericValues(reader, "day");
+
+            int[] docForOrd = new int[ids.getValueCount()];
+            Arrays.fill(docForOrd, -1);
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            for (int doc = 0; doc < reader.maxDoc(); doc ++) {
+                if (liveDocs == null || liveDocs.get(doc)) {
+                    docForOrd[ids.getOrd(doc)] = doc;
+                }
+            }
+
+            BytesRef id = new BytesRef();
+            BytesRef pid = new BytesRef();
+            BytesRef type = new BytesRef();
+            for (int ord = 0; ord < docForOrd.length; ord ++) {
+                int doc = docForOrd[ord];
+                if (doc != -1) {
+                    ids.lookupOrd(ord, id);
+                    pids.get(doc, pid);
+                    types.get(doc, type);
+                    visitor.visit(new RegistryEntry(id.utf8ToString(), pid.utf8ToString(), type.utf8ToString(),
+                            (int) years.get(doc), (int) months.get(doc), (int) days.get(doc)));
+                }
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * Rewrites a registry written with the original (stored-field) schema
+     * using the current one.  The old index is moved aside to a directory
+     * with a ".v1" suffix, which may be deleted once the new one has been
+     * checked.  Any journal left beside the old index is applied.
+     * @return the number of entries migrated
+     */
+    public static int migrate(File luceneDir) throws IOException {
+        Map<String, RegistryEntry> entries = new LinkedHashMap<String, RegistryEntry>();
+        Directory oldDirectory = FSDirectory.open(luceneDir);
+        try {
+            DirectoryReader reader = DirectoryReader.open(oldDirectory);
+            try {
+                if (SCHEMA_VERSION.equals(reader.getIndexCommit().getUserData().get(SCHEMA_VERSION_KEY))) {
+                    throw new IllegalStateException("The PID registry at " + luceneDir.getPath() + " is already current.");
+                }
+                for (AtomicReaderContext context : reader.leaves()) {
+                    AtomicReader leaf = context.reader();
+                    Bits liveDocs = leaf.getLiveDocs();
+                    for (int i = 0; i < leaf.maxDoc(); i ++) {
+                        if (liveDocs == null || liveDocs.get(i)) {
+                            Document doc = leaf.document(i);
+                            entries.put(doc.get("id"), new RegistryEntry(doc.get("id"), doc.get("pid"), doc.get("type"),
+                                    doc.getField("year").numericValue().intValue(),
+                                    doc.getField("month").numericValue().intValue(),
+                                    doc.getField("day").numericValue().intValue()));
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            oldDirectory.close();
+        }
+        File journalFile = new File(luceneDir, JOURNAL_FILENAME);
+        if (journalFile.length() > 0) {
+            for (RegistryEntry e : readJournal(journalFile)) {
+                entries.put(e.id, e);
+            }
+        }
+
+        File backup = new File(luceneDir.getParentFile(), luceneDir.getName() + ".v1");
+        if (backup.exists()) {
+            throw new IllegalStateException(backup.getPath() + " already exists!");
+        }
+        if (!luceneDir.renameTo(backup)) {
+            throw new IOException("Unable to move " + luceneDir.getPath() + " to " + backup.getPath() + "!");
+        }
+        LucenePIDRegistry registry = new LucenePIDRegistry(luceneDir);
+        try {
+            for (RegistryEntry e : entries.values()) {
+                registry.updateDocument(e.id, e.pid, e.year, e.month, e.day, e.type);
+            }
+            registry.writer.commit();
+        } finally {
+            registry.close();
+        }
+        return entries.size();
+    }
+}
@@ -0,0 +1,844 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.virginia.lib.wsls.spreadsheet.SortKey;
+
+/**
+ * A PIDRegistry kept in a handful of memory-mapped files, for when lucene is
+ * more than is needed for what is mostly an exact-match lookup.
+ *
+ * registry.dat is an append-only log of entry records (each string is
+ * stored as a length followed by its UTF-16 chars so that keys can be
+ * compared in place).  ids.hash and pids.hash are open-addressing hash
+ * tables of record offsets keyed by id and by PID, which are rehashed into
+ * a table twice the size whenever they become half full.  order.dat lists
+ * the record offsets sorted by type, date and PID and is used for the
+ * insertion point queries.  The hash tables and order.dat are only indexes
+ * of registry.dat: each records how much of registry.dat it covers, and any
+ * records beyond that (or every record, if a table is missing or unreadable)
+ * are indexed again when the registry is opened.
+ *
+ * Opening the registry just maps the files, and lookups read the mapped
+ * records directly, allocating nothing but the returned PID.  Writes append
+ * a record and update the hash tables in place; the entries written since
+ * order.dat was last rebuilt are kept in memory until flush() (or every
+ * 10,000 writes) merges them into a new order.dat and forces every file to
+ * disk.  Because the mapped files survive the process, writes since the last
+ * flush are only lost if the operating system itself fails; entries not yet
+ * in order.dat are found again when the registry is next opened.
+ *
+ * Offsets are limited to 2GB, which is roughly ten million entries.
+ */
+public class MappedPIDRegistry extends AbstractPIDRegistry {
+
+    private static final int DATA_MAGIC = 0x57534c44;
+
+    private static final int HASH_MAGIC = 0x57534c48;
+
+    private static final int DATA_HEADER_SIZE = 16;
+
+    private static final int HASH_HEADER_SIZE = 24;
+
+    private static final int SLOT_SIZE = 12;
+
+    private static final int ORDER_HEADER_SIZE = 12;
+
+    private static final int INITIAL_DATA_SIZE = 1024 * 1024;
+
+    private static final int INITIAL_HASH_CAPACITY = 1024;
+
+    private static final int MAX_PENDING_ENTRIES = 10000;
+
+    private static final int ID = 0;
+
+    private static final int PID = 1;
+
+    private File dir;
+
+    private RandomAccessFile dataFile;
+
+    private MappedByteBuffer data;
+
+    private int dataEnd;
+
+    private HashFile ids;
+
+    private HashFile pids;
+
+    private RandomAccessFile orderFile;
+
+    private MappedByteBuffer order;
+
+    private int orderCount;
+
+    /**
+     * Entries written since order.dat was built, mapped to their offsets.
+     */
+    private TreeMap<RegistryEntry, Integer> pending;
+
+    private Map<String, RegistryEntry> pendingById;
+
+    private boolean bulkWrite;
+
+    /**
+     * The end of registry.dat when the current bulk write began.
+     */
+    private int bulkWriteStart;
+
+    public MappedPIDRegistry(File dir) throws IOException {
+        super(dir);
+        this.dir = dir;
+        dir.mkdirs();
+
+        File f = new File(dir, "registry.dat");
+        boolean created = !f.exists();
+        dataFile = new RandomAccessFile(f, "rw");
+        if (created) {
+            dataFile.setLength(INITIAL_DATA_SIZE);
+        }
+        data = dataFile.getChannel().map(MapMode.READ_WRITE, 0, dataFile.length());
+        if (created) {
+            data.putInt(0, DATA_MAGIC);
+            data.putInt(4, 1);
+            data.putLong(8, DATA_HEADER_SIZE);
+        } else if (data.getInt(0) != DATA_MAGIC) {
+            throw new IllegalStateException(f.getPath() + " is not a PID registry!");
+        }
+        dataEnd = (int) data.getLong(8);
+
+        ids = new HashFile(new File(dir, "ids.hash"), ID);
+        pids = new HashFile(new File(dir, "pids.hash"), PID);
+        if (ids.indexedEnd > dataEnd || pids.indexedEnd > dataEnd) {
+            // the tables don't belong with this registry.dat
+            ids.reset();
+            pids.reset();
+        }
+        int indexedEnd = Math.min(ids.indexedEnd, pids.indexedEnd);
+        if (indexedEnd < dataEnd) {
+            // the tables may be missing any record written after they were last forced to disk
+            int count = 0;
+            for (int offset = indexedEnd; offset < dataEnd; offset = nextRecord(offset)) {
+                index(readEntry(offset), offset);
+                count ++;
+            }
+            ids.force(dataEnd);
+            pids.force(dataEnd);
+            System.out.println("Indexed " + count + " PID registry records in " + dir.getPath() + " that were missing from its hash tables.");
+        }
+
+        pending = new TreeMap<RegistryEntry, Integer>();
+        pendingById = new HashMap<String, RegistryEntry>();
+        int orderedEnd = openOrder();
+        // pick up anything written after order.dat was last rebuilt
+        for (int offset = orderedEnd; offset < dataEnd; offset = nextRecord(offset)) {
+            if (isLive(offset)) {
+                addPending(readEntry(offset), offset);
+            }
+        }
+    }
+
+    protected synchronized String getPIDForID(String id) {
+        int offset = ids.find(id);
+        return offset == 0 ? null : readString(pidPosition(offset));
+    }
+
+    synchronized RegistryEntry getEntryForPid(String pid) {
+        int offset = pids.find(pid);
+        return offset == 0 ? null : readEntry(offset);
+    }
+
+    synchronized void writeEntry(RegistryEntry e) throws IOException {
+        int previous = ids.find(e.id);
+        if (previous != 0 && compareRecord(previous, e) == 0) {
+            // unchanged
+            return;
+        }
+        int offset = appendRecord(e);
+        int other = index(e, offset);
+        if (other != 0) {
+            System.err.println("PID " + e.pid + " is registered for both " + readString(other) + " and " + e.id + "!");
+        }
+        if (!bulkWrite) {
+            addPending(e, offset);
+            if (pending.size() >= MAX_PENDING_ENTRIES) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Points the hash tables at the record for the entry at the given
+     * offset.  Records must be indexed in the order they were written, but
+     * may be indexed more than once.
+     * @return the offset of the record for another id that had the same PID,
+     *         or 0
+     */
+    private int index(RegistryEntry e, int offset) throws IOException {
+        int previous = ids.put(e.id, offset);
+        if (previous != 0 && previous != offset) {
+            String previousPid = readString(pidPosition(previous));
+            if (!previousPid.equals(e.pid)) {
+                pids.remove(previousPid, previous);
+            }
+        }
+        int other = pids.put(e.pid, offset);
+        return other == previous || other == offset ? 0 : other;
+    }
+
+    /**
+     * Entries written during a bulk write aren't merged into order.dat one
+     * batch at a time; order.dat is instead rebuilt from every entry once
+     * the bulk write ends.
+     */
+    public synchronized void beginBulkWrite() throws IOException {
+        flush();
+        bulkWrite = true;
+        bulkWriteStart = dataEnd;
+    }
+
+    /**
+     * Truncates registry.dat to where it ended when the bulk write began and
+     * rebuilds the hash tables from what remains, as the bulk write may have
+     * changed any of their slots.  order.dat isn't touched by a bulk write
+     * until it ends, so it's still correct.
+     */
+    synchronized void abortBulkWrite() throws IOException {
+        bulkWrite = false;
+        dataEnd = bulkWriteStart;
+        data.putLong(8, dataEnd);
+        data.force();
+        ids.reset();
+        pids.reset();
+        for (int offset = DATA_HEADER_SIZE; offset < dataEnd; offset = nextRecord(offset)) {
+            index(readEntry(offset), offset);
+        }
+        ids.force(dataEnd);
+        pids.force(dataEnd);
+    }
+
+    public synchronized void endBulkWrite() throws IOException {
+        bulkWrite = false;
+        pending.clear();
+        pendingById.clear();
+        for (int slot = 0; slot < ids.capacity; slot ++) {
+            int offset = ids.getOffset(slot);
+            if (offset > 0) {
+                addPending(readEntry(offset), offset);
+            }
+        }
+        orderCount = 0;
+        flush();
+    }
+
+    synchronized String[] getInsertionPoint(String pid, RegistryEntry probe, int depth) {
+        // the first entry in order.dat that sorts after the probe
+        int low = 0;
+        int high = orderCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareRecord(getOrdered(mid), probe) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        int before = 0;
+        for (int i = low - 1; i >= 0 && before == 0; i --) {
+            int offset = getOrdered(i);
+            if (!isSibling(offset, probe, depth)) {
+                break;
+            } else if (isLive(offset) && !pidEquals(offset, pid)) {
+                before = offset;
+            }
+        }
+        int after = 0;
+        for (int i = low; i < orderCount && after == 0; i ++) {
+            int offset = getOrdered(i);
+            if (!isSibling(offset, probe, depth)) {
+                break;
+            } else if (isLive(offset) && !pidEquals(offset, pid)) {
+                after = offset;
+            }
+        }
+
+        RegistryEntry pendingBefore = findPendingSibling(pending.headMap(probe, true).descendingMap().keySet().iterator(), pid, probe, depth);
+        RegistryEntry pendingAfter = findPendingSibling(pending.tailMap(probe, false).keySet().iterator(), pid, probe, depth);
+
+        String previous = null;
+        if (pendingBefore != null && (before == 0 || compareRecord(before, pendingBefore) < 0)) {
+            previous = pendingBefore.pid;
+        } else if (before != 0) {
+            previous = readString(pidPosition(before));
+        }
+        String next = null;
+        if (pendingAfter != null && (after == 0 || compareRecord(after, pendingAfter) > 0)) {
+            next = pendingAfter.pid;
+        } else if (after != 0) {
+            next = readString(pidPosition(after));
+        }
+        return new String[] { previous, next };
+    }
+
+    private RegistryEntry findPendingSibling(Iterator<RegistryEntry> it, String pid, RegistryEntry probe, int depth) {
+        while (it.hasNext()) {
+            RegistryEntry e = it.next();
+            if (!e.isSibling(probe, depth)) {
+                return null;
+            } else if (!e.pid.equals(pid)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    synchronized void visitInIdOrder(EntryVisitor visitor) throws IOException {
+        List<RegistryEntry> entries = new ArrayList<RegistryEntry>(ids.size);
+        for (int slot = 0; slot < ids.capacity; slot ++) {
+            int offset = ids.getOffset(slot);
+            if (offset > 0) {
+                entries.add(readEntry(offset));
+            }
+        }
+        Collections.sort(entries, new Comparator<RegistryEntry>() {
+            public int compare(RegistryEntry a, RegistryEntry b) {
+                return a.id.compareTo(b.id);
+            }});
+        for (RegistryEntry e : entries) {
+            visitor.visit(e);
+        }
+    }
+
+    /**
+     * Merges the pending entries into a new order.dat and forces every file
+     * to disk.
+     */
+    public synchronized void flush() throws IOException {
+        data.force();
+        ids.force(dataEnd);
+        pids.force(dataEnd);
+        if (pending.isEmpty() && orderFile != null) {
+            return;
+        }
+
+        File tmp = new File(dir, "order.dat.tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            List<Integer> merged = new ArrayList<Integer>(orderCount + pending.size());
+            Iterator<Map.Entry<RegistryEntry, Integer>> it = pending.entrySet().iterator();
+            Map.Entry<RegistryEntry, Integer> next = it.hasNext() ? it.next() : null;
+            for (int i = 0; i < orderCount; i ++) {
+                int offset = getOrdered(i);
+                if (isLive(offset)) {
+                    while (next != null && compareRecord(offset, next.getKey()) > 0) {
+                        merged.add(next.getValue());
+                        next = it.hasNext() ? it.next() : null;
+                    }
+                    merged.add(offset);
+                }
+            }
+            while (next != null) {
+                merged.add(next.getValue());
+                next = it.hasNext() ? it.next() : null;
+            }
+            out.writeLong(dataEnd);
+            out.writeInt(merged.size());
+            for (Integer offset : merged) {
+                out.writeLong(offset);
+            }
+        } finally {
+            out.close();
+        }
+        if (orderFile != null) {
+            orderFile.close();
+        }
+        File f = new File(dir, "order.dat");
+        if (f.exists() && !f.delete()) {
+            throw new IOException("Unable to replace " + f.getPath() + "!");
+        }
+        if (!tmp.renameTo(f)) {
+            throw new IOException("Unable to rename " + tmp.getPath() + "!");
+        }
+        openOrder();
+        pending.clear();
+        pendingById.clear();
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        orderFile.close();
+        ids.close();
+        pids.close();
+        dataFile.close();
+    }
+
+    /**
+     * Maps order.dat (if it exists) and returns the offset of the first
+     * record that it doesn't include.
+     */
+    private int openOrder() throws IOException {
+        File f = new File(dir, "order.dat");
+        if (!f.exists()) {
+            orderFile = null;
+            order = null;
+            orderCount = 0;
+            return DATA_HEADER_SIZE;
+        }
+        orderFile = new RandomAccessFile(f, "r");
+        order = orderFile.getChannel().map(MapMode.READ_ONLY, 0, orderFile.length());
+        orderCount = order.getInt(8);
+        return (int) order.getLong(0);
+    }
+
+    private int getOrdered(int i) {
+        return (int) order.getLong(ORDER_HEADER_SIZE + (i * 8));
+    }
+
+    private void addPending(RegistryEntry e, int offset) {
+        RegistryEntry replaced = pendingById.put(e.id, e);
+        if (replaced != null) {
+            pending.remove(replaced);
+        }
+        pending.put(e, offset);
+    }
+
+    /**
+     * A record is live if it is the current one for its id.
+     */
+    private boolean isLive(int offset) {
+        return ids.findRecord(offset) == offset;
+    }
+
+    private int appendRecord(RegistryEntry e) throws IOException {
+        int length = 4 * 6 + 2 * (e.id.length() + e.pid.length() + e.type.length());
+        if (dataEnd + length > data.capacity()) {
+            long size = Math.max(data.capacity() * 2L, dataEnd + length);
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException("The PID registry in " + dir.getPath() + " is full!");
+            }
+            dataFile.setLength(size);
+            data = dataFile.getChannel().map(MapMode.READ_WRITE, 0, size);
+        }
+        int offset = dataEnd;
+        int position = writeString(offset, e.id);
+        position = writeString(position, e.pid);
+        position = writeString(position, e.type);
+        data.putInt(position, e.year);
+        data.putInt(position + 4, e.month);
+        data.putInt(position + 8, e.day);
+        dataEnd = position + 12;
+        data.putLong(8, dataEnd);
+        return offset;
+    }
+
+    private int writeString(int position, String value) {
+        data.putInt(position, value.length());
+        position += 4;
+        for (int i = 0; i < value.length(); i ++) {
+            data.putChar(position, value.charAt(i));
+            position += 2;
+        }
+        return position;
+    }
+
+    private String readString(int position) {
+        char[] chars = new char[data.getInt(position)];
+        for (int i = 0; i < chars.length; i ++) {
+            chars[i] = data.getChar(position + 4 + (i * 2));
+        }
+        return new String(chars);
+    }
+
+    private int skipString(int position) {
+        return position + 4 + (2 * data.getInt(position));
+    }
+
+    private int pidPosition(int offset) {
+        return skipString(offset);
+    }
+
+    private int typePosition(int offset) {
+        return skipString(pidPosition(offset));
+    }
+
+    private int datePosition(int offset) {
+        return skipString(typePosition(offset));
+    }
+
+    private int nextRecord(int offset) {
+        return datePosition(offset) + 12;
+    }
+
+    private RegistryEntry readEntry(int offset) {
+        int date = datePosition(offset);
+        return new RegistryEntry(readString(offset), readString(pidPosition(offset)), readString(typePosition(offset)),
+                data.getInt(date), data.getInt(date + 4), data.getInt(date + 8));
+    }
+
+    private boolean stringEquals(int position, String value) {
+        int length = data.getInt(position);
+        if (length != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i ++) {
+            if (data.getChar(position + 4 + (i * 2)) != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean stringEquals(int position, int other) {
+        int length = data.getInt(position);
+        if (length != data.getInt(other)) {
+            return false;
+        }
+        for (int i = 0; i < length; i ++) {
+            if (data.getChar(position + 4 + (i * 2)) != data.getChar(other + 4 + (i * 2))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the String.hashCode() of the string at the given position.
+     */
+    private int stringHashCode(int position) {
+        int h = 0;
+        int length = data.getInt(position);
+        for (int i = 0; i < length; i ++) {
+            h = 31 * h + data.getChar(position + 4 + (i * 2));
+        }
+        return h;
+    }
+
+    /**
+     * Compares the string at the given position to the value in the same
+     * way as String.compareTo(), with a null value sorting last.
+     */
+    private int compareString(int position, String value) {
+        if (value == null) {
+            return -1;
+        }
+        int length = data.getInt(position);
+        int common = Math.min(length, value.length());
+        for (int i = 0; i < common; i ++) {
+            char c = data.getChar(position + 4 + (i * 2));
+            if (c != value.charAt(i)) {
+                return c - value.charAt(i);
+            }
+        }
+        return length - value.length();
+    }
+
+    private boolean pidEquals(int offset, String pid) {
+        return stringEquals(pidPosition(offset), pid);
+    }
+
+    /**
+     * Compares the record at the given offset with the entry in the order
+     * defined by RegistryEntry.compareTo().
+     */
+    private int compareRecord(int offset, RegistryEntry e) {
+        int pid = pidPosition(offset);
+        int type = skipString(pid);
+        int date = skipString(type);
+        int c = compareString(type, e.type);
+        if (c == 0) {
+            c = SortKey.compare(SortKey.pack(data.getInt(date), data.getInt(date + 4), data.getInt(date + 8)), e.dateKey);
+        }
+        if (c == 0) {
+            c = compareString(pid, e.pid);
+        }
+        if (c == 0) {
+            c = compareString(offset, e.id);
+        }
+        return c;
+    }
+
+    private boolean isSibling(int offset, RegistryEntry probe, int depth) {
+        int type = typePosition(offset);
+        int date = skipString(type);
+        return stringEquals(type, probe.type)
+                && (depth < 1 || data.getInt(date) == probe.year)
+                && (depth < 2 || data.getInt(date + 4) == probe.month)
+                && (depth < 3 || data.getInt(date + 8) == probe.day);
+    }
+
+    /**
+     * An open-addressing (linear probing) hash table in a mapped file whose
+     * slots hold the hash code of a key and the offset of the record in
+     * registry.dat that it identifies.  The key is the record's id or PID.
+     * An offset of zero marks an empty slot and -1 a removed one.  The
+     * header records the end of the last record in registry.dat known to be
+     * in the table, which is only advanced once the table has been forced to
+     * disk.
+     */
+    private class HashFile {
+
+        private File file;
+
+        private int keyField;
+
+        private RandomAccessFile raf;
+
+        private MappedByteBuffer buffer;
+
+        private int capacity;
+
+        private int size;
+
+        /**
+         * The number of slots that are either full or have been removed.
+         */
+        private int used;
+
+        /**
+         * The offset in registry.dat up to which every record is in the
+         * table.
+         */
+        private int indexedEnd;
+
+        /**
+         * Opens the table, starting an empty one if it's missing or isn't
+         * a complete table (for instance if it was being replaced when the
+         * process stopped).
+         */
+        public HashFile(File file, int keyField) throws IOException {
+            this.file = file;
+            this.keyField = keyField;
+            if (!file.exists()) {
+                create(file, INITIAL_HASH_CAPACITY).close();
+            }
+            if (!open()) {
+                System.err.println(file.getPath() + " is incomplete, rebuilding it.");
+                reset();
+            }
+        }
+
+        private boolean open() throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            long length = raf.length();
+            buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, length);
+            if (length < HASH_HEADER_SIZE || buffer.getInt(0) != HASH_MAGIC
+                    || length != HASH_HEADER_SIZE + ((long) buffer.getInt(4) * SLOT_SIZE)) {
+                return false;
+            }
+            capacity = buffer.getInt(4);
+            size = buffer.getInt(8);
+            used = buffer.getInt(12);
+            indexedEnd = (int) buffer.getLong(16);
+            return true;
+        }
+
+        /**
+         * Replaces the table with an empty one.
+         */
+        void reset() throws IOException {
+            raf.close();
+            create(file, INITIAL_HASH_CAPACITY).close();
+            open();
+        }
+
+        private RandomAccessFile create(File f, int slots) throws IOException {
+            if (f.exists() && !f.delete()) {
+                throw new IOException("Unable to replace " + f.getPath() + "!");
+            }
+            RandomAccessFile r = new RandomAccessFile(f, "rw");
+            r.setLength(HASH_HEADER_SIZE + ((long) slots * SLOT_SIZE));
+            r.writeInt(HASH_MAGIC);
+            r.writeInt(slots);
+            r.writeInt(0);
+            r.writeInt(0);
+            r.writeLong(DATA_HEADER_SIZE);
+            return r;
+        }
+
+        int getOffset(int slot) {
+            return (int) buffer.getLong(HASH_HEADER_SIZE + (slot * SLOT_SIZE) + 4);
+        }
+
+        private int getHash(int slot) {
+            return buffer.getInt(HASH_HEADER_SIZE + (slot * SLOT_SIZE));
+        }
+
+        private void setSlot(MappedByteBuffer b, int slot, int hash, long offset) {
+            b.putInt(HASH_HEADER_SIZE + (slot * SLOT_SIZE), hash);
+            b.putLong(HASH_HEADER_SIZE + (slot * SLOT_SIZE) + 4, offset);
+        }
+
+        private int keyPosition(int offset) {
+            return keyField == ID ? offset : pidPosition(offset);
+        }
+
+        /**
+         * Returns the offset of the record with the given key or 0.
+         */
+        public int find(String key) {
+            int slot = findSlot(key);
+            return slot < 0 ? 0 : getOffset(slot);
+        }
+
+        /**
+         * Returns the offset of the current record with the same key as the
+         * record at the given offset, without reading the key into a String.
+         */
+        public int findRecord(int offset) {
+            int key = keyPosition(offset);
+            int hash = hash(stringHashCode(key));
+            int mask = capacity - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int o = getOffset(slot);
+                if (o == 0) {
+                    return 0;
+                } else if (o > 0 && getHash(slot) == hash && stringEquals(keyPosition(o), key)) {
+                    return o;
+                }
+            }
+        }
+
+        /**
+         * Returns the slot holding the given key or -1.
+         */
+        private int findSlot(String key) {
+            int hash = hash(key.hashCode());
+            int mask = capacity - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int offset = getOffset(slot);
+                if (offset == 0) {
+                    return -1;
+                } else if (offset > 0 && getHash(slot) == hash && stringEquals(keyPosition(offset), key)) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Points the given key at a record, returning the offset it
+         * previously pointed to (or 0).
+         */
+        public int put(String key, int offset) throws IOException {
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                int previous = getOffset(slot);
+                setSlot(buffer, slot, getHash(slot), offset);
+                return previous;
+            }
+            int hash = hash(key.hashCode());
+            int mask = capacity - 1;
+            slot = hash & mask;
+            while (getOffset(slot) > 0) {
+                slot = (slot + 1) & mask;
+            }
+            if (getOffset(slot) == 0) {
+                used ++;
+            }
+            setSlot(buffer, slot, hash, offset);
+            size ++;
+            writeHeader();
+            if (used * 2 > capacity) {
+                rehash(size * 4 > capacity ? capacity * 2 : capacity);
+            }
+            return 0;
+        }
+
+        /**
+         * Removes the key if it still points to the given record.
+         */
+        public void remove(String key, int offset) {
+            int slot = findSlot(key);
+            if (slot >= 0 && getOffset(slot) == offset) {
+                setSlot(buffer, slot, getHash(slot), -1);
+                size --;
+                writeHeader();
+            }
+        }
+
+        private void writeHeader() {
+            buffer.putInt(8, size);
+            buffer.putInt(12, used);
+        }
+
+        /**
+         * Copies every entry into a new table of the given capacity and
+         * replaces this file with it.
+         */
+        private void rehash(int newCapacity) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            RandomAccessFile r = create(tmp, newCapacity);
+            MappedByteBuffer b = r.getChannel().map(MapMode.READ_WRITE, 0, r.length());
+            int mask = newCapacity - 1;
+            for (int slot = 0; slot < capacity; slot ++) {
+                int offset = getOffset(slot);
+                if (offset > 0) {
+                    int hash = getHash(slot);
+                    int newSlot = hash & mask;
+                    while (b.getLong(HASH_HEADER_SIZE + (newSlot * SLOT_SIZE) + 4) != 0) {
+                        newSlot = (newSlot + 1) & mask;
+                    }
+                    setSlot(b, newSlot, hash, offset);
+                }
+            }
+            b.putInt(8, size);
+            b.putInt(12, size);
+            b.putLong(16, indexedEnd);
+            b.force();
+            raf.close();
+            if (!tmp.renameTo(file)) {
+                // where a file can't be renamed over another, a table lost
+                // between these steps is rebuilt when the registry is opened
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    throw new IOException("Unable to replace " + file.getPath() + "!");
+                }
+            }
+            raf = r;
+            buffer = b;
+            capacity = newCapacity;
+            used = size;
+        }
+
+        /**
+         * Forces the table to disk, and then records that it includes every
+         * record up to the given offset.
+         */
+        public void force(int dataEnd) {
+            buffer.force();
+            if (indexedEnd != dataEnd) {
+                indexedEnd = dataEnd;
+                buffer.putLong(16, indexedEnd);
+                buffer.force();
+            }
+        }
+
+        public void close() throws IOException {
+            buffer.force();
+            raf.close();
+        }
+    }
+
+    /**
+     * Spreads the higher bits of a String hash code into the lower ones that
+     * are used to pick a slot.
+     */
+    private static int hash(int h) {
+        return h ^ (h >>> 16);
+    }
+
+}
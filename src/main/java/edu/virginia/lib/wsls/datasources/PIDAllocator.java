@@ -0,0 +1,75 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+
+/**
+ * Hands out PIDs for new objects from blocks reserved from fedora with a
+ * single getNextPID request, so that a new object's PID is known (and its
+ * complete FOXML can be built) before anything is written to fedora.
+ *
+ * PIDs that are reserved but unused when release() is called are recorded
+ * in the PID registry and handed out first the next time.  PIDs taken by
+ * an allocator are removed from the registry's record while in use, so a
+ * crash can only waste PIDs, never hand the same one out twice.
+ */
+public class PIDAllocator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    private FedoraClient fc;
+
+    private PIDRegistry registry;
+
+    private int blockSize;
+
+    private LinkedList<String> available;
+
+    public PIDAllocator(FedoraClient fc, PIDRegistry registry, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid block size: " + blockSize);
+        }
+        this.fc = fc;
+        this.registry = registry;
+        this.blockSize = blockSize;
+        available = new LinkedList<String>();
+    }
+
+    public synchronized String nextPid() throws Exception {
+        if (available.isEmpty()) {
+            List<String> reserved = registry.getReservedPids();
+            if (!reserved.isEmpty()) {
+                registry.setReservedPids(Collections.<String>emptyList());
+                available.addAll(reserved);
+            } else {
+                available.addAll(reserve(blockSize));
+            }
+        }
+        return available.removeFirst();
+    }
+
+    /**
+     * Requests a block of PIDs from fedora.
+     */
+    protected List<String> reserve(int count) throws Exception {
+        return FedoraClient.getNextPID().numPIDs(count).execute(fc).getPids().getPid();
+    }
+
+    /**
+     * Returns any unused PIDs to the registry (making them available to the
+     * next allocator) and flushes it.
+     */
+    public synchronized void release() throws IOException {
+        if (!available.isEmpty()) {
+            List<String> reserved = registry.getReservedPids();
+            reserved.addAll(available);
+            registry.setReservedPids(reserved);
+            available.clear();
+        }
+        registry.flush();
+    }
+}
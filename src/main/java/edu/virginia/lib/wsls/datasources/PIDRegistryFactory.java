@@ -0,0 +1,32 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Opens the PIDRegistry implementation named by the "pid-registry-backend"
+ * property: "lucene" (the default) or "mapped".
+ */
+public class PIDRegistryFactory {
+
+    public static final String BACKEND_PROPERTY = "pid-registry-backend";
+
+    public static final String LUCENE = "lucene";
+
+    public static final String MAPPED = "mapped";
+
+    public static PIDRegistry open(File dir, Properties p) throws IOException {
+        return open(dir, p.getProperty(BACKEND_PROPERTY, LUCENE).trim(), p);
+    }
+
+    public static PIDRegistry open(File dir, String backend, Properties p) throws IOException {
+        if (LUCENE.equals(backend)) {
+            return new LucenePIDRegistry(dir, p);
+        } else if (MAPPED.equals(backend)) {
+            return new MappedPIDRegistry(dir);
+        } else {
+            throw new IllegalArgumentException("Unknown PID registry backend \"" + backend + "\"!");
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package edu.virginia.lib.wsls.datasources;
+
+import edu.virginia.lib.wsls.spreadsheet.SortKey;
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
+
+/**
+ * A single PID registry entry.  Date components that aren't known are zero.
+ * Entries sort by type, year, month, day, then pid (and id, so that a pid
+ * registered twice isn't lost) with a null pid or id sorting last, which is
+ * the order in which siblings appear in the collection hierarchy.
+ */
+final class RegistryEntry implements Comparable<RegistryEntry> {
+
+    final String id;
+
+    final String pid;
+
+    final String type;
+
+    final int year;
+
+    final int month;
+
+    final int day;
+
+    /**
+     * The date as a SortKey, so that entries are compared on one long.
+     */
+    final long dateKey;
+
+    RegistryEntry(String id, String pid, String type, int year, int month, int day) {
+        this.id = id;
+        this.pid = pid;
+        this.type = type.intern();
+        this.year = year;
+        this.month = month;
+        this.day = day;
+        dateKey = SortKey.pack(year, month, day);
+    }
+
+    VariablePrecisionDate getDate() {
+        return new VariablePrecisionDate(year, month, day);
+    }
+
+    /**
+     * Returns true if this entry has the same type and first "depth" date
+     * components as the given entry.
+     */
+    boolean isSibling(RegistryEntry e, int depth) {
+        return type.equals(e.type) && (depth < 1 || year == e.year) && (depth < 2 || month == e.month) && (depth < 3 || day == e.day);
+    }
+
+    public int compareTo(RegistryEntry e) {
+        int c = type.compareTo(e.type);
+        if (c == 0) {
+            c = SortKey.compare(dateKey, e.dateKey);
+        }
+        if (c == 0) {
+            c = compare(pid, e.pid);
+        }
+        if (c == 0) {
+            c = compare(id, e.id);
+        }
+        return c;
+    }
+
+    static int compare(String a, String b) {
+        if (a == null) {
+            return b == null ? 0 : 1;
+        } else {
+            return b == null ? -1 : a.compareTo(b);
+        }
+    }
+}
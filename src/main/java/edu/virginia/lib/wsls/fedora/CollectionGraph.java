@@ -0,0 +1,230 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+
+/**
+ * An in-memory copy of the isPartOf, follows and hasModel relationships of
+ * the objects in the collection, so that the collection hierarchy can be
+ * walked without a resource index query for every node.  The graph is
+ * loaded with a handful of bulk queries, and should be kept current by
+ * calling update() (or setRelationships()) after every RELS-EXT write, at
+ * which point it is more up to date than the resource index itself.
+ *
+ * The objects included are those in the tree below the collection object
+ * and every item (object with the pbcore2CModel content model), whether or
+ * not it's in the collection, so that items that have lost their place can
+ * be found and corrected.
+ */
+public class CollectionGraph {
+
+    private static final String ITEM_MODEL = "uva-lib:pbcore2CModel";
+
+    /**
+     * Loads the graph from the resource index.
+     * @param collectionPid the root of the tree to load, or null if there
+     *        is no collection object yet
+     */
+    public static CollectionGraph load(FedoraClient fc, String collectionPid) throws Exception {
+        long start = System.currentTimeMillis();
+        final CollectionGraph g = new CollectionGraph();
+        if (collectionPid != null) {
+            g.getNode(collectionPid);
+            ResourceIndexQuery.walkParts(fc, collectionPid, RelsExt.IS_PART_OF, new ResourceIndexQuery.RowHandler() {
+                public void row(String[] values) {
+                    // (a walk may repeat rows)
+                    Node n = g.getNode(values[0]);
+                    if (!n.parents.contains(values[1])) {
+                        n.parents.add(values[1]);
+                        g.getNode(values[1]).children.add(values[0]);
+                    }
+                }});
+        }
+        ResourceIndexQuery.itql(fc, "select $s from <#ri> where $s <" + RelsExt.HAS_MODEL + "> <info:fedora/" + ITEM_MODEL + ">", new ResourceIndexQuery.RowHandler() {
+            public void row(String[] values) {
+                g.getNode(values[0]);
+            }});
+        List<String> pids = new ArrayList<String>(g.nodes.keySet());
+        for (Map.Entry<String, List<String>> e : ResourceIndexQuery.getObjects(fc, pids, RelsExt.FOLLOWS).entrySet()) {
+            Node n = g.getNode(e.getKey());
+            for (String previous : e.getValue()) {
+                if (!n.previous.contains(previous)) {
+                    n.previous.add(previous);
+                    g.getNode(previous).next.add(e.getKey());
+                }
+            }
+        }
+        for (Map.Entry<String, List<String>> e : ResourceIndexQuery.getObjects(fc, pids, RelsExt.HAS_MODEL).entrySet()) {
+            Node n = g.getNode(e.getKey());
+            for (String model : e.getValue()) {
+                if (!n.models.contains(model)) {
+                    n.models.add(model);
+                    g.getModelSet(model).add(e.getKey());
+                }
+            }
+        }
+        System.err.println("Loaded relationships of " + g.nodes.size() + " objects in " + (System.currentTimeMillis() - start) + "ms.");
+        return g;
+    }
+
+    private Map<String, Node> nodes;
+
+    private Map<String, Set<String>> subjectsByModel;
+
+    public CollectionGraph() {
+        nodes = new HashMap<String, Node>();
+        subjectsByModel = new HashMap<String, Set<String>>();
+    }
+
+    /**
+     * Gets the objects that are part of the given one, in no particular order.
+     */
+    public synchronized List<String> getChildren(String pid) {
+        Node n = nodes.get(pid);
+        return n == null ? new ArrayList<String>() : new ArrayList<String>(n.children);
+    }
+
+    public synchronized List<String> getParents(String pid) {
+        Node n = nodes.get(pid);
+        return n == null ? new ArrayList<String>() : new ArrayList<String>(n.parents);
+    }
+
+    /**
+     * Gets the parents, grandparents and so on of the given object (nearest
+     * first), for instance the month, year and collection of an item.
+     */
+    public synchronized List<String> getAncestors(String pid) {
+        Set<String> ancestors = new LinkedHashSet<String>();
+        List<String> generation = getParents(pid);
+        while (!generation.isEmpty()) {
+            List<String> next = new ArrayList<String>();
+            for (String parentPid : generation) {
+                if (ancestors.add(parentPid)) {
+                    next.addAll(getParents(parentPid));
+                }
+            }
+            generation = next;
+        }
+        return new ArrayList<String>(ancestors);
+    }
+
+    /**
+     * Gets the objects the given one follows.
+     */
+    public synchronized List<String> getPrevious(String pid) {
+        Node n = nodes.get(pid);
+        return n == null ? new ArrayList<String>() : new ArrayList<String>(n.previous);
+    }
+
+    /**
+     * Gets the objects that follow the given one.
+     */
+    public synchronized List<String> getNext(String pid) {
+        Node n = nodes.get(pid);
+        return n == null ? new ArrayList<String>() : new ArrayList<String>(n.next);
+    }
+
+    public synchronized List<String> getSubjectsWithModel(String model) {
+        Set<String> subjects = subjectsByModel.get(model);
+        return subjects == null ? new ArrayList<String>() : new ArrayList<String>(subjects);
+    }
+
+    /**
+     * Gets the children of the given object in the order defined by their
+     * follows relationships, failing (as FedoraHelper.getOrderedParts() does)
+     * if they don't form a single chain.
+     */
+    public synchronized List<String> getOrderedChildren(String pid) {
+        Map<String, String> prevToNextMap = new HashMap<String, String>();
+        List<String> first = new ArrayList<String>();
+        for (String child : getChildren(pid)) {
+            List<String> previous = nodes.get(child).previous;
+            if (previous.isEmpty()) {
+                first.add(child);
+            } else {
+                for (String prev : previous) {
+                    prevToNextMap.put(prev, child);
+                }
+            }
+        }
+        return FedoraHelper.orderParts(pid, first, prevToNextMap);
+    }
+
+    /**
+     * Updates the graph to reflect the given (saved) relationships.
+     */
+    public void update(RelsExt rels) {
+        setRelationships(rels.getPid(), rels.getObjects(RelsExt.IS_PART_OF), rels.getObjects(RelsExt.FOLLOWS), rels.getObjects(RelsExt.HAS_MODEL));
+    }
+
+    /**
+     * Replaces the isPartOf, follows and hasModel relationships of an object.
+     */
+    public synchronized void setRelationships(String pid, List<String> parents, List<String> previous, List<String> models) {
+        Node n = getNode(pid);
+        for (String parent : n.parents) {
+            nodes.get(parent).children.remove(pid);
+        }
+        for (String prev : n.previous) {
+            nodes.get(prev).next.remove(pid);
+        }
+        for (String model : n.models) {
+            subjectsByModel.get(model).remove(pid);
+        }
+        n.parents = new ArrayList<String>(parents);
+        n.previous = new ArrayList<String>(previous);
+        n.models = new ArrayList<String>(models);
+        for (String parent : parents) {
+            getNode(parent).children.add(pid);
+        }
+        for (String prev : previous) {
+            getNode(prev).next.add(pid);
+        }
+        for (String model : models) {
+            getModelSet(model).add(pid);
+        }
+    }
+
+    /**
+     * Removes an object (for instance once it's purged) from the graph.
+     */
+    public synchronized void remove(String pid) {
+        setRelationships(pid, Collections.<String>emptyList(), Collections.<String>emptyList(), Collections.<String>emptyList());
+        if (nodes.get(pid).children.isEmpty() && nodes.get(pid).next.isEmpty()) {
+            nodes.remove(pid);
+        }
+    }
+
+    private Node getNode(String pid) {
+        Node n = nodes.get(pid);
+        if (n == null) {
+            n = new Node();
+            nodes.put(pid, n);
+        }
+        return n;
+    }
+
+    private Set<String> getModelSet(String model) {
+        Set<String> subjects = subjectsByModel.get(model);
+        if (subjects == null) {
+            subjects = new LinkedHashSet<String>();
+            subjectsByModel.put(model, subjects);
+        }
+        return subjects;
+    }
+
+    private static class Node {
+        List<String> parents = new ArrayList<String>();
+        List<String> previous = new ArrayList<String>();
+        List<String> models = new ArrayList<String>();
+        Set<String> children = new LinkedHashSet<String>();
+        Set<String> next = new LinkedHashSet<String>();
+    }
+}
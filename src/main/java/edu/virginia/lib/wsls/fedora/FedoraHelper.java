@@ -5,16 +5,12 @@ package edu.virginia.lib.wsls.fedora;
  * These may either be referenced directly or via static
  * imports to other classes.
  */
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
@@ -49,18 +45,7 @@ public class FedoraHelper {
         if (predicate == null) {
             throw new NullPointerException("predicate must not be null!");
         }
-        String itqlQuery = "select $object from <#ri> where <info:fedora/" + subject + "> <" + predicate + "> $object";
-        BufferedReader reader = new BufferedReader(new InputStreamReader(FedoraClient.riSearch(itqlQuery).lang("itql").format("simple").execute(fc).getEntityInputStream()));
-        List<String> pids = new ArrayList<String>();
-        String line = null;
-        Pattern p = Pattern.compile("\\Qobject : <info:fedora/\\E([^\\>]+)\\Q>\\E");
-        while ((line = reader.readLine()) != null) {
-            Matcher m = p.matcher(line);
-            if (m.matches()) {
-                pids.add(m.group(1));
-            }
-        }
-        return pids;
+        return selectPids(fc, "select $object from <#ri> where <info:fedora/" + subject + "> <" + predicate + "> $object");
     }
     
     /**
@@ -79,18 +64,7 @@ public class FedoraHelper {
         if (predicate == null) {
             throw new NullPointerException("predicate must not be null!");
         }
-        String itqlQuery = "select $subject from <#ri> where $subject <" + predicate + "> <info:fedora/" + object + ">";
-        BufferedReader reader = new BufferedReader(new InputStreamReader(FedoraClient.riSearch(itqlQuery).lang("itql").format("simple").execute(fc).getEntityInputStream()));
-        List<String> pids = new ArrayList<String>();
-        String line = null;
-        Pattern p = Pattern.compile("\\Qsubject : <info:fedora/\\E([^\\>]+)\\Q>\\E");
-        while ((line = reader.readLine()) != null) {
-            Matcher m = p.matcher(line);
-            if (m.matches()) {
-                pids.add(m.group(1));
-            }
-        }
-        return pids;
+        return selectPids(fc, "select $subject from <#ri> where $subject <" + predicate + "> <info:fedora/" + object + ">");
     }
     
     /**
@@ -109,32 +83,11 @@ public class FedoraHelper {
         if (predicate == null) {
             throw new NullPointerException("predicate must not be null!");
         }
-        String itqlQuery = "select $subject from <#ri> where $subject <" + predicate + "> '" + literal + "'";
-        BufferedReader reader = new BufferedReader(new InputStreamReader(FedoraClient.riSearch(itqlQuery).lang("itql").format("simple").execute(fc).getEntityInputStream()));
-        List<String> pids = new ArrayList<String>();
-        String line = null;
-        Pattern p = Pattern.compile("\\Qsubject : <info:fedora/\\E([^\\>]+)\\Q>\\E");
-        while ((line = reader.readLine()) != null) {
-            Matcher m = p.matcher(line);
-            if (m.matches()) {
-                pids.add(m.group(1));
-            }
-        }
-        return pids;
+        return selectPids(fc, "select $subject from <#ri> where $subject <" + predicate + "> '" + literal + "'");
     }
 
     public static String getFirstPart(FedoraClient fc, String parent, String isPartOfPredicate, String followsPredicate) throws Exception {
-        String itqlQuery = "select $object from <#ri> where $object <" + isPartOfPredicate + "> <info:fedora/" + parent + "> minus $object <" + followsPredicate + "> $other";
-        BufferedReader reader = new BufferedReader(new InputStreamReader(FedoraClient.riSearch(itqlQuery).lang("itql").format("simple").execute(fc).getEntityInputStream()));
-        List<String> pids = new ArrayList<String>();
-        String line = null;
-        Pattern p = Pattern.compile("\\Qobject : <info:fedora/\\E([^\\>]+)\\Q>\\E");
-        while ((line = reader.readLine()) != null) {
-            Matcher m = p.matcher(line);
-            if (m.matches()) {
-                pids.add(m.group(1));
-            }
-        }
+        List<String> pids = selectPids(fc, "select $object from <#ri> where $object <" + isPartOfPredicate + "> <info:fedora/" + parent + "> minus $object <" + followsPredicate + "> $other");
         if (pids.isEmpty()) {
             return null;
         } else if (pids.size() == 1) {
@@ -144,120 +97,91 @@ public class FedoraHelper {
         }
     }
 
+    /**
+     * Gets the parts of the parent in the order defined by their follows
+     * relationships.  The parts and the objects they follow (if any) are
+     * fetched by a single query.
+     */
     public static List<String> getOrderedParts(FedoraClient fc, String parent, String isPartOfPredicate, String followsPredicate) throws Exception {
-        String itqlQuery = "select $object $previous from <#ri> where $object <" + isPartOfPredicate + "> <info:fedora/" + parent + "> and $object <" + followsPredicate + "> $previous";
-        BufferedReader reader = new BufferedReader(new InputStreamReader(FedoraClient.riSearch(itqlQuery).lang("itql").format("csv").execute(fc).getEntityInputStream()));
-        Map<String, String> prevToNextMap = new HashMap<String, String>();
-        String line = reader.readLine(); // read the csv labels
-        Pattern p = Pattern.compile("\\Qinfo:fedora/\\E([^,]*),\\Qinfo:fedora/\\E([^,]*)");
-        while ((line = reader.readLine()) != null) {
-            Matcher m = p.matcher(line);
-            if (m.matches()) {
-                prevToNextMap.put(m.group(2), m.group(1));
-            } else {
-                throw new RuntimeException(line + " does not match pattern!");
-            }
+        String sparqlQuery = "SELECT ?object ?previous FROM <#ri> WHERE { ?object <" + isPartOfPredicate + "> <info:fedora/" + parent + "> . OPTIONAL { ?object <" + followsPredicate + "> ?previous } }";
+        final Map<String, String> prevToNextMap = new HashMap<String, String>();
+        final List<String> first = new ArrayList<String>();
+        ResourceIndexQuery.sparql(fc, sparqlQuery, new ResourceIndexQuery.RowHandler() {
+            public void row(String[] values) {
+                if (values[1] == null) {
+                    first.add(values[0]);
+                } else {
+                    prevToNextMap.put(values[1], values[0]);
+                }
+            }});
+        return orderParts(parent, first, prevToNextMap);
+    }
+
+    /**
+     * Follows the chain of parts from the first.
+     * @param first the parts that follow nothing (there should be exactly one
+     *        unless there are no parts at all)
+     * @param prevToNextMap a map from each part to the one that follows it
+     */
+    static List<String> orderParts(String parent, List<String> first, Map<String, String> prevToNextMap) {
+        if (first.size() > 1) {
+            throw new RuntimeException(parent + ": Multiple items are \"first\"! " + first.get(0) + ", " + first.get(1) + ")");
         }
-        
-        List<String> pids = new ArrayList<String>();
-        String pid = getFirstPart(fc, parent, isPartOfPredicate, followsPredicate);
+        String pid = first.isEmpty() ? null : first.get(0);
         if (pid == null && !prevToNextMap.isEmpty()) {
             throw new RuntimeException("There is no first child of " + parent + " (among " + prevToNextMap.size() + ")");
-            // this is to handle some broke objects... in effect it treats
-            // objects whose "previous" is not a sibling as if they had
-            // no "previous"
-            /*
-            for (String prev : prevToNextMap.keySet()) {
-                if (!prevToNextMap.values().contains(prev)) {
-                    if (pid == null) {
-                        pid = prev;
-                    } else {
-                        throw new RuntimeException("Two \"first\" children!");
-                    }
-                }
-            }
-            */
         }
+        List<String> pids = new ArrayList<String>();
         while (pid != null) {
             pids.add(pid);
-            String nextPid = prevToNextMap.get(pid);
-            prevToNextMap.remove(pid);
-            pid = nextPid;
-            
+            pid = prevToNextMap.remove(pid);
         }
         if (!prevToNextMap.isEmpty()) {
-            for (Map.Entry<String, String> entry : prevToNextMap.entrySet()) {
-                //System.err.println(entry.getKey() + " --> " + entry.getValue());
-            }
             throw new RuntimeException("Broken relationship chain in children of " + parent);
         }
         return pids;
     }
-    
 
     /**
-     * A helper method that updates the relationships of the objects described
-     * by the provided pids to insert the object with "pid" between the object
-     * specified as previous and following.
-     * @throws Exception 
+     * Runs an ITQL query selecting a single variable, streaming the results.
      */
-    public static void insertBetween(FedoraClient fc, String pid, String previousPid, String followingPid) throws Exception {
-        /*
-        //System.out.println("Inserting: " + previousPid + " --next--> " + pid + " --next--> " + followingPid);
-        if (previousPid != null) {
-            FedoraClient.addRelationship(pid).predicate(UVA_RELS + "follows").object("info:fedora/" + previousPid).execute(fc);
-            //System.out.println("  " + pid + " follows " + previousPid);
-        }
-        if (followingPid != null) {
-            // delete any existing previous relationships
-            // This is complicated... on subsequent runs of this application
-            // the previous pid for that object may *not* point to this object
-            // because of the evolving and half-complete nature of the cache
-            for (String uri : getPreviousObjectURIsFromRelsExt(fc, followingPid)) {
-                FedoraClient.purgeRelationship(followingPid).predicate(UVA_RELS + "follows").object(uri).execute(fc);
-            }
-
-            FedoraClient.addRelationship(followingPid).predicate(UVA_RELS + "follows").object("info:fedora/" + pid).execute(fc);
-            //System.out.println("  " + followingPid + " follows " + pid);
-        }
-        */
+    private static List<String> selectPids(FedoraClient fc, String itqlQuery) throws Exception {
+        final List<String> pids = new ArrayList<String>();
+        ResourceIndexQuery.itql(fc, itqlQuery, new ResourceIndexQuery.RowHandler() {
+            public void row(String[] values) {
+                pids.add(values[0]);
+            }});
+        return pids;
     }
+    
 
-    public static void setParent(FedoraClient fc, String pid, String parent) throws Exception {
-        // clear any existing
-        for (String uri : getParentObjectURIsFromRelsExt(fc, pid)) {
-            System.out.println("PURGING " + pid + " -isPartOf-> " + uri.substring("info:fedora/".length()));
-            FedoraClient.purgeRelationship(pid).predicate(FEDORA_RELS + "isPartOf").object(uri).execute(fc);
-        }
-        if (parent != null) {
-            System.out.println("ADDING " + pid + " -isPartOf-> " + parent);
-            FedoraClient.addRelationship(pid).predicate(FEDORA_RELS + "isPartOf").object("info:fedora/" + parent).execute(fc);
+    /**
+     * Makes the given parent the only parent of the object.  The RELS-EXT is
+     * read once and written (in a single request) only if it changes.
+     * @return the (saved) relationships of the object
+     */
+    public static RelsExt setParent(FedoraClient fc, String pid, String parent) throws Exception {
+        RelsExt rels = RelsExt.load(fc, pid);
+        List<String> current = rels.getObjects(RelsExt.IS_PART_OF);
+        if (rels.setObject(RelsExt.IS_PART_OF, parent).save(fc)) {
+            System.out.println("UPDATING " + pid + " -isPartOf-> " + parent + " (was " + current + ")");
         }
+        return rels;
     }
 
-    public static void setFollows(FedoraClient fc, String pid, String prev) throws Exception {
-        List<String> currentlyFollowing = getPreviousObjectURIsFromRelsExt(fc, pid);
-        if (prev == null) {
-            // clear any existing 
-            for (String uri : currentlyFollowing) {
-                System.out.println("PURGING " + uri.substring("info:fedora/".length()) + " --> " + pid);
-                FedoraClient.purgeRelationship(pid).predicate(UVA_RELS + "follows").object(uri).execute(fc);
-            }
-        } else {
-            boolean hasExistingFollowRelationship = false;
-            for (String uri : currentlyFollowing) {
-                if (uri.equals("info:fedora/" + prev)) {
-                    hasExistingFollowRelationship = true;
-                } else {
-                    System.out.println("PURGING " + uri.substring("info:fedora/".length()) + " --> " + pid);
-                    FedoraClient.purgeRelationship(pid).predicate(UVA_RELS + "follows").object(uri).execute(fc);
-                }
-            }
-            if (!hasExistingFollowRelationship) {
-                System.out.println("ADDING " + prev + " --> " + pid);
-                FedoraClient.addRelationship(pid).predicate(UVA_RELS + "follows").object("info:fedora/" + prev).execute(fc);
-            }
+    /**
+     * Makes the given object the only object the given pid follows (or
+     * clears the follows relationship when prev is null).  The RELS-EXT is
+     * read once and written (in a single request) only if it changes.
+     * @return the (saved) relationships of the object
+     */
+    public static RelsExt setFollows(FedoraClient fc, String pid, String prev) throws Exception {
+        RelsExt rels = RelsExt.load(fc, pid);
+        List<String> current = rels.getObjects(RelsExt.FOLLOWS);
+        if (rels.setObject(RelsExt.FOLLOWS, prev).save(fc)) {
+            System.out.println("UPDATING " + prev + " --> " + pid + " (was " + current + ")");
         }
+        return rels;
     }
 
     public static List<String> getPreviousObjectURIsFromRelsExt(FedoraClient fc, String pid) throws Exception {
@@ -0,0 +1,174 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, multi-stage pipeline for ingesting records.  Items are
+ * submitted (in order) by a single thread that has already done the first
+ * stage of the work for them, then:
+ * <ol>
+ *   <li>the "derivatives" stage runs on a shared pool, in any order</li>
+ *   <li>the "write" stage runs on one of the workers, chosen by the item's
+ *       partition key, so items with the same key are written one at a
+ *       time in the order they were submitted</li>
+ *   <li>the "record" stage runs (one item at a time) on the worker once the
+ *       write has succeeded</li>
+ * </ol>
+ * Every queue is bounded, so submit() blocks when the workers fall behind.
+ * After the first failure no further items are processed; the failure is
+ * thrown by submit() or finish().
+ */
+public class IngestPipeline<T> {
+
+    public interface Stage<T> {
+        public void process(T item) throws Exception;
+    }
+
+    private static final int QUEUE_SIZE_PER_WORKER = 16;
+
+    private Stage<T> derivatives;
+
+    private Stage<T> write;
+
+    private Stage<T> record;
+
+    private ThreadPoolExecutor derivativePool;
+
+    private List<BlockingQueue<Task>> queues;
+
+    private List<Thread> workers;
+
+    private volatile Throwable failure;
+
+    public IngestPipeline(int workerCount, Stage<T> derivatives, Stage<T> write, Stage<T> record) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is required!");
+        }
+        this.derivatives = derivatives;
+        this.write = write;
+        this.record = record;
+        // when the derivative queue is full the submitting thread generates
+        // the derivatives itself, which slows down submission
+        derivativePool = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(workerCount * QUEUE_SIZE_PER_WORKER), new ThreadPoolExecutor.CallerRunsPolicy());
+        queues = new ArrayList<BlockingQueue<Task>>();
+        workers = new ArrayList<Thread>();
+        for (int i = 0; i < workerCount; i ++) {
+            final BlockingQueue<Task> queue = new ArrayBlockingQueue<Task>(QUEUE_SIZE_PER_WORKER);
+            queues.add(queue);
+            Thread worker = new Thread("ingest-worker-" + i) {
+                public void run() {
+                    work(queue);
+                }};
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues an item, blocking while the worker for its partition is busy.
+     * @param partition items with equal partition keys are written in the
+     *        order in which they are submitted
+     */
+    public void submit(final T item, Object partition) throws Exception {
+        rethrowFailure();
+        Future<?> derivativesDone = derivativePool.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+                derivatives.process(item);
+                return null;
+            }});
+        queues.get((partition.hashCode() & 0x7fffffff) % queues.size()).put(new Task(item, derivativesDone));
+    }
+
+    /**
+     * Waits for every submitted item to be processed and stops the workers.
+     * @throws Exception the first failure of any stage
+     */
+    public void finish() throws Exception {
+        shutdown();
+        rethrowFailure();
+    }
+
+    /**
+     * Waits for the items already submitted and stops the workers, logging
+     * rather than throwing any failure.  For use when the submitting thread
+     * itself fails.
+     */
+    public void abort() {
+        try {
+            shutdown();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            System.err.println("Ingest worker failed: " + failure);
+        }
+    }
+
+    private void shutdown() throws InterruptedException {
+        for (BlockingQueue<Task> queue : queues) {
+            queue.put(new Task(null, null));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        derivativePool.shutdown();
+    }
+
+    private void work(BlockingQueue<Task> queue) {
+        try {
+            for (Task task = queue.take(); task.item != null; task = queue.take()) {
+                if (failure == null) {
+                    try {
+                        task.derivativesDone.get();
+                        write.process(task.item);
+                        synchronized (record) {
+                            record.process(task.item);
+                        }
+                    } catch (ExecutionException ex) {
+                        fail(ex.getCause());
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            fail(ex);
+        }
+    }
+
+    private synchronized void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    private void rethrowFailure() throws Exception {
+        Throwable t = failure;
+        if (t instanceof Exception) {
+            throw (Exception) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    private class Task {
+        private T item;
+        private Future<?> derivativesDone;
+
+        public Task(T item, Future<?> derivativesDone) {
+            this.item = item;
+            this.derivativesDone = derivativesDone;
+        }
+    }
+}
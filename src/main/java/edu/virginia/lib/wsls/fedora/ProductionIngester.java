@@ -21,6 +21,7 @@ import edu.virginia.lib.wsls.proc.ImageMagickProcess;
 import edu.virginia.lib.wsls.solr.PostSolrDocument;
 import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument;
 import edu.virginia.lib.wsls.spreadsheet.PBCoreSpreadsheetRow;
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
 import edu.virginia.lib.wsls.util.PBCoreSpreadsheetComparison;
 import edu.virginia.lib.wsls.util.SpreadsheetAnalyzer;
 import org.apache.commons.io.FileUtils;
@@ -33,8 +34,7 @@ public class ProductionIngester {
 
         // TODO: add support for copyrighted materials
 
-        PostSolrDocument solr = new PostSolrDocument();
-        solr.reindexWSLSCollection(true);
+        p.reindex();
     }
 
     private List<String> idsToInclude;
@@ -68,6 +68,16 @@ public class ProductionIngester {
 
     private File snapshotDir;
 
+    private int workers;
+
+    private boolean verifyOrdering;
+
+    /**
+     * What is reindexed once the records are ingested: "incremental" (just
+     * the objects this run changed), "full" (the whole collection) or "none".
+     */
+    private String reindexMode;
+
     public ProductionIngester() throws Exception {
         // initialize report
         report = new IngestReport();
@@ -83,7 +93,16 @@ public class ProductionIngester {
 
         snapshotDir = new File(p.getProperty("snapshot-dir"));
 
-        fedora = new FedoraRepository(fc, new File(p.getProperty("pid-registry-root")));
+        workers = Integer.parseInt(p.getProperty("ingest-workers", "1"));
+
+        verifyOrdering = Boolean.parseBoolean(p.getProperty("verify-ordering", "true"));
+
+        reindexMode = p.getProperty("reindex", "incremental");
+        if (!reindexMode.equals("incremental") && !reindexMode.equals("full") && !reindexMode.equals("none")) {
+            throw new IllegalArgumentException("Unknown reindex mode \"" + reindexMode + "\"!");
+        }
+
+        fedora = new FedoraRepository(fc, new File(p.getProperty("pid-registry-root")), p);
 
         // initialize connection to google drive
         d = snapshotDir.exists() ? new DriveHelper(snapshotDir) : new DriveHelper();
@@ -266,70 +285,68 @@ public class ProductionIngester {
         return (r.getTitle() != null && r.getTitle().trim().length() > 0);
     }
 
+    /**
+     * Ingests up to "max" of the eligible records.  Records are passed
+     * through an IngestPipeline with the number of workers given by the
+     * "ingest-workers" property (1 by default).  Records from the same month
+     * are always written by the same worker in master spreadsheet order so
+     * that their placement within the month folder is deterministic.
+     */
     public void ingestRecords(int max) throws Exception {
         boolean success = false;
         try {
-            int i = 0;
-            // for every eligible entry
-            for (PBCoreSpreadsheetRow r : master) {
-                String id = r.getId();
-                if (ingestStatusTracker.hasBeenIngested(id) && !changed.contains(id) && !redo.contains(id)) {
-                    System.out.println(id);
-                    System.out.println("  ingested (previous run)");
-                } else if (skip.contains(id) && !incompleteIdsToAllow.contains(id)) {
-                } else if (idsToInclude.contains(id)) {
-                    if (i ++ >= max) {
-                        break;
-                    }
-                    System.out.println(id);
-                    // build the PBCore record
-                    PBCoreSpreadsheetRow gm = m.getRowForId(id);
-                    PBCoreDocument doc = (gm == null ? new PBCoreDocument(r) : new PBCoreDocument(gm, r));
-                    doc.setKalturaUrl(videos.getKalturaUrl(id));
-                    System.out.println("  " + (doc.getAssetDate() == null ? "no date" : new SimpleDateFormat("MM/dd/yyyy").format(doc.getAssetDate())));
-
-                    // ingest the Video/Metadata object
-                    String pid = fedora.ingestWSLSVideoObject(doc);
-                    System.out.println("  " + pid);
-
-                    // ensure that the PDF is present
-                    File pdf = pdfs.getPDFFile(id);
-                    if (pdf== null || !pdf.exists()) {
-                        if (!incompleteIdsToAllow.contains(id) && 2 != r.getProcessingCode()) {
-                            throw new IllegalStateException("PDF is not present!");
-                        } else {
-                            // fall through and ingest the record without 
-                            // an anchor script (purging the anchor script if present)
-                            fedora.purgeWSLSAnchorScriptObject(id);
-                        }
-                    } else {
-                        // ensure that the TXT is present 
-                        File txt = txts.getTXTFile(id);
-                        if (txt == null || !txt.exists()) {
-                            throw new IllegalStateException("TXT is not present!");
+            IngestPipeline<RecordIngest> pipeline = new IngestPipeline<RecordIngest>(workers,
+                    new IngestPipeline.Stage<RecordIngest>() {
+                        public void process(RecordIngest record) throws Exception {
+                            record.generateDerivatives();
+                        }},
+                    new IngestPipeline.Stage<RecordIngest>() {
+                        public void process(RecordIngest record) throws Exception {
+                            record.writeToFedora();
+                        }},
+                    new IngestPipeline.Stage<RecordIngest>() {
+                        public void process(RecordIngest record) throws Exception {
+                            record.recordStatus();
+                        }});
+            boolean submitted = false;
+            try {
+                int i = 0;
+                // for every eligible entry
+                for (PBCoreSpreadsheetRow r : master) {
+                    String id = r.getId();
+                    if (ingestStatusTracker.hasBeenIngested(id) && !changed.contains(id) && !redo.contains(id)) {
+                        System.out.println(id);
+                        System.out.println("  ingested (previous run)");
+                    } else if (skip.contains(id) && !incompleteIdsToAllow.contains(id)) {
+                    } else if (idsToInclude.contains(id)) {
+                        if (i ++ >= max) {
+                            break;
                         }
-    
-                        // generate the Thumbnail
-                        File thumbnailFile = File.createTempFile("thumbnail-", ".png");
-                        thumbnailFile.deleteOnExit();
-                        t.generateThubmnail(pdf, thumbnailFile);
-    
-                        // ingest the Anchor script object
-                        System.out.println("  " + fedora.ingestWSLSAnchorScriptObject(id, pdf, thumbnailFile, txt, changedScripts.contains(id)));
+                        RecordIngest record = new RecordIngest(r);
+                        pipeline.submit(record, record.getPartition());
                     }
-                    ingestStatusTracker.notifyIngest(id, pid);
-                    report.ingested(id, pid);
+                }
+                submitted = true;
+            } finally {
+                if (!submitted) {
+                    pipeline.abort();
                 }
             }
+            pipeline.finish();
 
-            // wait for the resource index
-            Thread.sleep(10000);
-            fedora.fixRelationships();
+            // objects are linked into order as they're written, so just
+            // check the folders that changed
+            if (verifyOrdering) {
+                fedora.verifyRelationships();
+            }
             success = true;
         } finally {
+            fedora.flush();
             snapshotRemoteResources();
 
             report.setEndingCount(ingestStatusTracker.getAlreadyIngestedCount());
+            long[] uploads = fedora.getUploadCounts();
+            report.datastreamUploads(uploads[0], uploads[1], uploads[2], uploads[3]);
             if (success) {
                 report.sendSuccess();
             } else {
@@ -338,6 +355,117 @@ public class ProductionIngester {
         }
     }
 
+    /**
+     * The work to ingest a single record, split into the stages of the
+     * IngestPipeline.  The PBCore record is built and the source files are
+     * checked when it is created (on the thread reading the master
+     * spreadsheet); output for the record is buffered and printed once the
+     * record is complete so that the output of concurrent records isn't
+     * interleaved.
+     */
+    private class RecordIngest {
+
+        private String id;
+
+        private PBCoreDocument doc;
+
+        private File pdf;
+
+        private File txt;
+
+        private File thumbnailFile;
+
+        private String pid;
+
+        private StringBuffer log;
+
+        public RecordIngest(PBCoreSpreadsheetRow r) throws Exception {
+            id = r.getId();
+            log = new StringBuffer();
+            log.append(id + "\n");
+
+            // build the PBCore record
+            PBCoreSpreadsheetRow gm = m.getRowForId(id);
+            doc = (gm == null ? new PBCoreDocument(r) : new PBCoreDocument(gm, r));
+            doc.setKalturaUrl(videos.getKalturaUrl(id));
+            log.append("  " + (doc.getAssetDate() == null ? "no date" : new SimpleDateFormat("MM/dd/yyyy").format(doc.getAssetDate())) + "\n");
+
+            // ensure that the PDF is present
+            pdf = pdfs.getPDFFile(id);
+            if (pdf== null || !pdf.exists()) {
+                if (!incompleteIdsToAllow.contains(id) && 2 != r.getProcessingCode()) {
+                    throw new IllegalStateException("PDF is not present for " + id + "!");
+                }
+                // fall through and ingest the record without
+                // an anchor script (purging the anchor script if present)
+                pdf = null;
+            } else {
+                // ensure that the TXT is present
+                txt = txts.getTXTFile(id);
+                if (txt == null || !txt.exists()) {
+                    throw new IllegalStateException("TXT is not present for " + id + "!");
+                }
+            }
+        }
+
+        /**
+         * Gets the month (or "unknown" for undated records) under which the
+         * record will be placed.
+         */
+        public String getPartition() {
+            VariablePrecisionDate date = doc.getAssetVariablePrecisionDate();
+            return date == null || date.getYear() == 0 ? "unknown" : date.toWC3DTF();
+        }
+
+        public void generateDerivatives() throws Exception {
+            if (pdf != null) {
+                thumbnailFile = File.createTempFile("thumbnail-", ".png");
+                thumbnailFile.deleteOnExit();
+                t.generateThubmnail(pdf, thumbnailFile);
+            }
+        }
+
+        public void writeToFedora() throws Exception {
+            // ingest the Video/Metadata object
+            pid = fedora.ingestWSLSVideoObject(doc);
+            log.append("  " + pid + "\n");
+
+            if (pdf == null) {
+                fedora.purgeWSLSAnchorScriptObject(id);
+            } else {
+                // ingest the Anchor script object
+                log.append("  " + fedora.ingestWSLSAnchorScriptObject(id, pdf, thumbnailFile, txt, changedScripts.contains(id)) + "\n");
+            }
+        }
+
+        public void recordStatus() throws Exception {
+            System.out.print(log);
+            ingestStatusTracker.notifyIngest(id, pid);
+            report.ingested(id, pid);
+        }
+    }
+
+    /**
+     * Updates the solr index, according to the "reindex" property, to
+     * reflect the ingest, once the resource index (from which the records
+     * are partly generated, and a full reindex lists the objects) has caught
+     * up with the changes.  An incremental reindex regenerates and posts
+     * the records of just the objects this run changed and the folders that
+     * contain them.
+     */
+    public void reindex() throws Exception {
+        if (reindexMode.equals("none")) {
+            return;
+        }
+        PostSolrDocument solr = new PostSolrDocument();
+        System.out.println("Waited " + fedora.waitForResourceIndex() + "ms for the resource index.");
+        if (reindexMode.equals("full")) {
+            solr.reindexWSLSCollection(true);
+        } else {
+            solr.reindexChanged(fedora.getChangedPids(), fedora.getCollectionGraph(), true);
+        }
+    }
+
     public void snapshotRemoteResources() throws IOException {
         for (File f : d.getSpreadsheets()) {
             File dest = new File(snapshotDir, f.getName());
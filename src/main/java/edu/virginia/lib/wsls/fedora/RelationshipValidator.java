@@ -1,14 +1,26 @@
 package edu.virginia.lib.wsls.fedora;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import com.ibm.icu.text.DecimalFormat;
 import com.yourmediashelf.fedora.client.FedoraClient;
 
 import edu.virginia.lib.wsls.datasources.PIDRegistry;
+import edu.virginia.lib.wsls.spreadsheet.SortKey;
 import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
 
 public class RelationshipValidator {
@@ -20,90 +32,250 @@ public class RelationshipValidator {
 
     private PIDRegistry pids;
 
+    private CollectionGraph graph;
+
+    /**
+     * Creates a validator that loads the relationships from the resource
+     * index (in bulk) when first needed.
+     */
     public RelationshipValidator(FedoraClient client, PIDRegistry pr) {
+        this(client, pr, null);
+    }
+
+    /**
+     * Creates a validator that walks the given graph rather than querying
+     * the resource index, and keeps it up to date with any corrections.
+     */
+    public RelationshipValidator(FedoraClient client, PIDRegistry pr, CollectionGraph g) {
         fc = client;
         pids = pr;
+        graph = g;
+    }
+
+    private CollectionGraph getGraph() throws Exception {
+        if (graph == null) {
+            graph = CollectionGraph.load(fc, pids.getWSLSCollectionPid());
+        }
+        return graph;
     }
 
+    /**
+     * Writes a report of the misplaced items to standard out.  Everything
+     * else (such as the summary of the check) goes to standard error, so the
+     * output is just the report.
+     */
     public void diagnoseParents() throws Exception {
-        processParents(false);
+        Writer w = new OutputStreamWriter(System.out);
+        diagnoseParents(w);
+        w.flush();
+    }
+
+    /**
+     * Writes a tab-separated report with a line for each item that isn't
+     * (only) in the folder for its date: the item's pid, its current
+     * parents (space separated), the parent it should have (if known) and
+     * the problem ("wrong-parent" or "unregistered").
+     */
+    public void diagnoseParents(Writer report) throws Exception {
+        List<String[]> misplaced = findMisplacedItems();
+        report.write("pid\tparents\texpected-parent\tproblem\n");
+        for (String[] item : misplaced) {
+            report.write(item[0] + "\t" + item[1] + "\t" + (item[2] == null ? "" : item[2]) + "\t" + (item[2] == null ? "unregistered" : "wrong-parent") + "\n");
+        }
+        report.flush();
     }
 
     public void fixParents() throws Exception {
-        processParents(true);
+        fixParents(1);
     }
 
-    private void processParents(boolean fix) throws Exception {
-        if (fix) {
-            System.out.println("Fixing parent relationships:\n");
-        } else {
-            System.out.println("Diagnosing parent relationships:\n");
-        }
-        StringBuffer report = new StringBuffer();
-        int i = 0;
-        for (String pid : FedoraHelper.getSubjects(fc, "info:fedora/fedora-system:def/model#hasModel", "uva-lib:pbcore2CModel")) {
-            boolean fail = false;
-            VariablePrecisionDate date = pids.getDateForPid(pid);
-            String expectedParentPid = null;
-            List<String> parents = FedoraHelper.getObjects(fc, pid, "info:fedora/fedora-system:def/relations-external#isPartOf");
-            if (date == null || date.getMonth() == 0) {
-                expectedParentPid = pids.getUnknownPid();
+    /**
+     * Moves each misplaced item into the folder for its date, using the
+     * given number of threads.  Items whose date isn't known are reported
+     * but left alone.
+     */
+    public void fixParents(int threads) throws Exception {
+        List<Callable<String>> fixes = new ArrayList<Callable<String>>();
+        for (final String[] item : findMisplacedItems()) {
+            if (item[2] == null) {
+                System.err.println(item[0] + " is not in the PID registry!");
             } else {
-                expectedParentPid = pids.getMonthPid(date.getYear(), date.getMonth());
-            }
-            if (expectedParentPid == null) {
-                expectedParentPid = pids.getUnknownPid();
+                fixes.add(new Callable<String>() {
+                    public String call() throws Exception {
+                        getGraph().update(FedoraHelper.setParent(fc, item[0], item[2]));
+                        return item[0] + " moved to " + item[2];
+                    }});
             }
-            if (!parents.contains(expectedParentPid) || parents.size() != 1) {
-                fail = true;
-                if (fix) {
-                    FedoraHelper.setParent(fc, pid, expectedParentPid);
-                } else {
-                    report.append(pid + " should be in " + expectedParentPid + "!\n");
-                    System.out.print("X");
-                    break;
+        }
+        long start = System.currentTimeMillis();
+        runConcurrently(fixes, threads);
+        System.out.println("Fixed the parent of " + fixes.size() + " items in " + (System.currentTimeMillis() - start) + "ms.");
+    }
+
+    /**
+     * Finds the items that aren't (only) in the folder for their date by
+     * comparing, in memory, the parents from the relationship graph with
+     * the dates from a single pass over the PID registry.
+     * @return an array for each misplaced item of its pid, its current
+     *         parents (space separated) and its expected parent (or null if
+     *         it isn't in the registry)
+     */
+    private List<String[]> findMisplacedItems() throws Exception {
+        long start = System.currentTimeMillis();
+        Map<String, VariablePrecisionDate> dates = pids.getItemDates();
+        String unknownPid = pids.getUnknownPid();
+        Map<String, String> monthPids = new HashMap<String, String>();
+        List<String[]> misplaced = new ArrayList<String[]>();
+        List<String> items = getGraph().getSubjectsWithModel("uva-lib:pbcore2CModel");
+        for (String pid : items) {
+            List<String> parents = getGraph().getParents(pid);
+            String expectedParentPid = null;
+            if (dates.containsKey(pid)) {
+                VariablePrecisionDate date = dates.get(pid);
+                if (date != null && date.getMonth() != 0) {
+                    String key = date.getYear() + "-" + date.getMonth();
+                    if (!monthPids.containsKey(key)) {
+                        monthPids.put(key, pids.getMonthPid(date.getYear(), date.getMonth()));
+                    }
+                    expectedParentPid = monthPids.get(key);
                 }
-            } else {
-                if (!fix) {
-                    System.out.print(".");
+                if (expectedParentPid == null) {
+                    expectedParentPid = unknownPid;
                 }
             }
-
-            if (!fix) {
-                System.out.flush();
-                if (++ i % 80 == 0) {
-                    System.out.println();
+            if (expectedParentPid == null || !parents.contains(expectedParentPid) || parents.size() != 1) {
+                StringBuffer current = new StringBuffer();
+                for (String parent : parents) {
+                    current.append(current.length() == 0 ? "" : " ").append(parent);
                 }
+                misplaced.add(new String[] { pid, current.toString(), expectedParentPid });
             }
         }
-        System.out.println("\n\n" + report.toString());
+        System.err.println(misplaced.size() + " of " + items.size() + " items are misplaced (checked in " + (System.currentTimeMillis() - start) + "ms).");
+        return misplaced;
     }
 
     public void correctTree(String rootPid) throws Exception {
-        //System.out.println(rootPid);
-        correctChildSet(rootPid, IS_PART_OF, RelationshipValidator.Child.Precision.YEAR);
-        for (String yearPid : getValidChildSet(rootPid, IS_PART_OF)) {
+        correctTree(rootPid, 1);
+    }
+
+    /**
+     * Corrects the order of the children of the root, of each year and of
+     * each month.  The children of each parent are independent of those of
+     * every other, so the parents are corrected concurrently by the given
+     * number of threads (each parent by only one).
+     */
+    public void correctTree(String rootPid, int threads) throws Exception {
+        final Map<String, Child.Precision> parents = new LinkedHashMap<String, Child.Precision>();
+        parents.put(rootPid, Child.Precision.YEAR);
+        for (String yearPid : getGraph().getChildren(rootPid)) {
             if (yearPid.equals("uva-lib:2215692")) {
                 // unknown date
-                correctChildSet(yearPid, IS_PART_OF, RelationshipValidator.Child.Precision.PID);
+                parents.put(yearPid, Child.Precision.PID);
             } else {
-                correctChildSet(yearPid, IS_PART_OF, RelationshipValidator.Child.Precision.MONTH);
-              //System.out.println("  " + yearPid);
-                for (String monthPid : getValidChildSet(yearPid, IS_PART_OF)) {
-                    correctChildSet(monthPid, IS_PART_OF, RelationshipValidator.Child.Precision.DAY);
-                    //System.out.println("    " + monthPid);
-                    for (String itemPid : getValidChildSet(monthPid, IS_PART_OF)) {
-                        //System.out.println("      " + itemPid);
+                parents.put(yearPid, Child.Precision.MONTH);
+                for (String monthPid : getGraph().getChildren(yearPid)) {
+                    parents.put(monthPid, Child.Precision.DAY);
+                }
+            }
+        }
+
+        List<Callable<String>> corrections = new ArrayList<Callable<String>>();
+        for (final Map.Entry<String, Child.Precision> parent : parents.entrySet()) {
+            corrections.add(new Callable<String>() {
+                public String call() throws Exception {
+                    long folderStart = System.currentTimeMillis();
+                    int changes = correctChildSet(parent.getKey(), IS_PART_OF, parent.getValue());
+                    return parent.getKey() + ": " + getGraph().getChildren(parent.getKey()).size() + " children, " + changes + " relinked (" + (System.currentTimeMillis() - folderStart) + "ms)";
+                }});
+        }
+        long start = System.currentTimeMillis();
+        runConcurrently(corrections, threads);
+        System.out.println("Corrected the order of the children of " + parents.size() + " objects in " + (System.currentTimeMillis() - start) + "ms using " + threads + " threads.");
+    }
+
+    /**
+     * Runs the tasks on the given number of threads, printing the result
+     * of each (as progress) when it completes.  Every task is run even if
+     * some fail; the first failure is then thrown.
+     */
+    private void runConcurrently(List<Callable<String>> tasks, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CompletionService<String> completed = new ExecutorCompletionService<String>(pool);
+            for (Callable<String> task : tasks) {
+                completed.submit(task);
+            }
+            Throwable failure = null;
+            for (int i = 1; i <= tasks.size(); i ++) {
+                try {
+                    System.out.println("[" + i + "/" + tasks.size() + "] " + completed.take().get());
+                } catch (ExecutionException ex) {
+                    System.err.println("[" + i + "/" + tasks.size() + "] " + ex.getCause());
+                    if (failure == null) {
+                        failure = ex.getCause();
                     }
                 }
             }
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            } else if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+        } finally {
+            pool.shutdown();
         }
     }
 
+    /**
+     * Checks the order of the children of each of the given objects (for
+     * instance just those changed by an ingest) and corrects any that are
+     * out of order.  Unlike correctTree(), nothing is written for objects
+     * whose children are already in order.
+     */
+    public void verifyChildSets(Collection<String> parentPids) throws Exception {
+        String collectionPid = pids.getWSLSCollectionPid();
+        String unknownPid = pids.getUnknownPid();
+        int corrected = 0;
+        for (String parentPid : parentPids) {
+            Child.Precision p = null;
+            if (parentPid.equals(collectionPid)) {
+                p = Child.Precision.YEAR;
+            } else if (parentPid.equals(unknownPid)) {
+                p = Child.Precision.PID;
+            } else if (getGraph().getParents(parentPid).contains(collectionPid)) {
+                p = Child.Precision.MONTH;
+            } else {
+                p = Child.Precision.DAY;
+            }
+            List<String> ordered = null;
+            try {
+                ordered = getGraph().getOrderedChildren(parentPid);
+            } catch (RuntimeException ex) {
+                System.err.println(ex.getMessage());
+            }
+            List<Child> children = new ArrayList<Child>();
+            for (String pid : getGraph().getChildren(parentPid)) {
+                children.add(new Child(pid, pids.getDateForPid(pid), p));
+            }
+            Collections.sort(children);
+            List<String> expected = new ArrayList<String>();
+            for (Child c : children) {
+                expected.add(c.pid);
+            }
+            if (!expected.equals(ordered)) {
+                System.out.println("Children of " + parentPid + " are out of order.");
+                correctChildSet(parentPid, IS_PART_OF, p);
+                corrected ++;
+            }
+        }
+        System.out.println("Verified the order of the children of " + parentPids.size() + " objects, " + corrected + " needed correction.");
+    }
+
     private List<String> getValidChildSet(String object, String predicate) throws Exception {
-        List<String> unordered = FedoraHelper.getSubjects(fc, IS_PART_OF, object);
+        List<String> unordered = getGraph().getChildren(object);
         try {
-            List<String> ordered = FedoraHelper.getOrderedParts(fc, object, IS_PART_OF, FOLLOWS);
+            List<String> ordered = getGraph().getOrderedChildren(object);
             if (ordered.size() == unordered.size()) {
                 unordered.removeAll(ordered);
                 if (unordered.isEmpty()) {
@@ -118,25 +290,40 @@ public class RelationshipValidator {
         }
     }
 
-    public void correctChildSet(String object, String predicate, Child.Precision p) throws IOException, Exception {
+    /**
+     * Sorts the children of the object and relinks any that aren't already
+     * in place.  Nothing is written for those that are.
+     * @return the number of children that were relinked
+     */
+    public int correctChildSet(String object, String predicate, Child.Precision p) throws IOException, Exception {
         List<Child> children = new ArrayList<Child>();
         for (String pid : getValidChildSet(object, predicate)) {
             children.add(new Child(pid, pids.getDateForPid(pid), p));
         }
-        System.out.println("Current order:");
+        StringBuffer log = new StringBuffer();
+        log.append("Current order of " + object + ":\n");
         for (Child c : children) {
-            System.out.println(c.pid + " (" + c.d + ")");
+            log.append(c.pid + " (" + c.d + ")\n");
         }
-        System.out.println("\nCorrected order:");
+        log.append("\nCorrected order:\n");
         Collections.sort(children);
         for (Child c : children) {
-            System.out.println(c.pid + " (" + c.d + ")");
+            log.append(c.pid + " (" + c.d + ")\n");
         }
+        int changes = 0;
         String prev = null;
         for (Child c : children) {
-            FedoraHelper.setFollows(fc, c.pid, prev);
+            if (!getGraph().getPrevious(c.pid).equals(prev == null ? Collections.<String>emptyList() : Collections.singletonList(prev))) {
+                getGraph().update(FedoraHelper.setFollows(fc, c.pid, prev));
+                changes ++;
+            }
             prev = c.pid;
         }
+        if (changes > 0) {
+            // printed at once so that concurrent corrections don't interleave
+            System.out.print(log);
+        }
+        return changes;
     }
 
     private static final class Child implements Comparable<Child> {
@@ -154,26 +341,25 @@ public class RelationshipValidator {
 
         private Precision precision;
 
+        /**
+         * The date to the given precision as a SortKey, computed once so
+         * that comparisons need neither formatting nor allocation.
+         */
+        private long key;
+
         public Child(String pid, VariablePrecisionDate d, Precision p) {
             this.pid = pid;
             this.d = d;
             precision = p;
+            key = p == Precision.PID ? 0 : SortKey.truncate(d.getSortKey(), p == Precision.YEAR ? 1 : p == Precision.MONTH ? 2 : 3);
         }
 
         public int compareTo(Child c) {
-            DecimalFormat YF = new DecimalFormat("0000");
-            DecimalFormat DF = new DecimalFormat("00");
-            if (!precision.equals(c.precision)) {
+            if (precision != c.precision) {
                 throw new RuntimeException("Precision mismatch!");
-            } else if (precision.equals(Precision.PID)) {
-                return pid.compareTo(c.pid);
-            } else if (precision.equals(Precision.YEAR)) {
-                return (YF.format(d.getYear()) + pid).compareTo(YF.format(c.d.getYear()) + c.pid);
-            } else if (precision.equals(Precision.MONTH)) {
-                return (YF.format(d.getYear()) + DF.format(d.getMonth()) + pid).compareTo(YF.format(c.d.getYear()) + DF.format(c.d.getMonth()) + c.pid);
-            } else {
-                return (YF.format(d.getYear()) + DF.format(d.getMonth()) + DF.format(d.getDay()) + pid).compareTo(YF.format(c.d.getYear()) + DF.format(c.d.getMonth()) + DF.format(c.d.getDay()) + c.pid);
             }
+            int result = SortKey.compare(key, c.key);
+            return result != 0 ? result : pid.compareTo(c.pid);
         }
     }
 }
@@ -0,0 +1,299 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+
+/**
+ * The complete set of relationships in the RELS-EXT datastream of one
+ * object.  Rather than purging and adding relationships one request at a
+ * time, the desired relationships are set locally and then written with
+ * a single request by save(), which does nothing at all if the result is
+ * what's already stored.
+ */
+public class RelsExt {
+
+    public static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+
+    public static final String FEDORA_MODEL = "info:fedora/fedora-system:def/model#";
+
+    public static final String HAS_MODEL = FEDORA_MODEL + "hasModel";
+    public static final String IS_PART_OF = FedoraHelper.FEDORA_RELS + "isPartOf";
+    public static final String FOLLOWS = FedoraHelper.UVA_RELS + "follows";
+    public static final String VISIBILITY = FedoraHelper.UVA_RELS + "visibility";
+
+    private static final Map<String, String> PREFIXES = new LinkedHashMap<String, String>();
+    static {
+        PREFIXES.put(RDF_NS, "rdf");
+        PREFIXES.put(FEDORA_MODEL, "fedora-model");
+        PREFIXES.put(FedoraHelper.FEDORA_RELS, "fedora");
+        PREFIXES.put(FedoraHelper.UVA_RELS, "uva-lib");
+        PREFIXES.put("http://fedora.lib.virginia.edu/wsls/relationships#", "wsls");
+    }
+
+    /**
+     * Loads the current relationships of an object.  An object without a
+     * RELS-EXT datastream has no relationships.
+     */
+    public static RelsExt load(FedoraClient fc, String pid) throws Exception {
+        InputStream in = null;
+        try {
+            in = FedoraClient.getDatastreamDissemination(pid, "RELS-EXT").execute(fc).getEntityInputStream();
+        } catch (FedoraClientException ex) {
+            if (ex.getStatus() == 404) {
+                return new RelsExt(pid);
+            }
+            throw ex;
+        }
+        try {
+            return read(pid, in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the stored RELS-EXT content of an object.
+     */
+    static RelsExt read(String pid, InputStream in) throws XMLStreamException, UnsupportedEncodingException {
+        RelsExt rels = new RelsExt(pid);
+        rels.parse(in);
+        rels.exists = true;
+        rels.stored = rels.serialize();
+        return rels;
+    }
+
+    /**
+     * Creates the (initially empty) relationships for an object that has no
+     * RELS-EXT datastream.
+     */
+    public static RelsExt create(String pid) {
+        return new RelsExt(pid);
+    }
+
+    private String pid;
+
+    private List<Triple> triples;
+
+    private boolean exists;
+
+    /**
+     * The serialization of the relationships as they were loaded.
+     */
+    private String stored;
+
+    private RelsExt(String pid) {
+        this.pid = pid;
+        triples = new ArrayList<Triple>();
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    /**
+     * Gets the pids of the objects related to this one by the given predicate.
+     */
+    public List<String> getObjects(String predicate) {
+        List<String> objects = new ArrayList<String>();
+        for (Triple t : triples) {
+            if (t.predicate.equals(predicate) && !t.literal) {
+                objects.add(t.object.startsWith("info:fedora/") ? t.object.substring("info:fedora/".length()) : t.object);
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Replaces any relationships with the given predicate with one to the
+     * given object, or removes them if the pid is null.
+     */
+    public RelsExt setObject(String predicate, String objectPid) {
+        return setObjects(predicate, objectPid == null ? Collections.<String>emptyList() : Collections.singletonList(objectPid));
+    }
+
+    /**
+     * Replaces any relationships with the given predicate with ones to each
+     * of the given objects.
+     */
+    public RelsExt setObjects(String predicate, List<String> objectPids) {
+        remove(predicate);
+        for (String objectPid : objectPids) {
+            triples.add(new Triple(predicate, "info:fedora/" + objectPid, false));
+        }
+        return this;
+    }
+
+    /**
+     * Replaces any relationships with the given predicate with a literal
+     * value, or removes them if the value is null.
+     */
+    public RelsExt setLiteral(String predicate, String value) {
+        remove(predicate);
+        if (value != null) {
+            triples.add(new Triple(predicate, value, true));
+        }
+        return this;
+    }
+
+    /**
+     * Removes every relationship.
+     */
+    public RelsExt clear() {
+        triples.clear();
+        return this;
+    }
+
+    public RelsExt remove(String predicate) {
+        for (Iterator<Triple> it = triples.iterator(); it.hasNext(); ) {
+            if (it.next().predicate.equals(predicate)) {
+                it.remove();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Indicates whether the relationships differ from those that were loaded.
+     */
+    public boolean isModified() throws XMLStreamException, UnsupportedEncodingException {
+        return !exists || !serialize().equals(stored);
+    }
+
+    /**
+     * Writes the relationships to fedora in a single request if they differ
+     * from what is stored.
+     * @return true if a request was made
+     */
+    public boolean save(FedoraClient fc) throws Exception {
+        String content = serialize();
+        if (exists && content.equals(stored)) {
+            return false;
+        }
+        if (exists) {
+            FedoraClient.modifyDatastream(pid, "RELS-EXT").mimeType("application/rdf+xml").content(content).execute(fc);
+        } else {
+            FedoraClient.addDatastream(pid, "RELS-EXT").controlGroup("X").mimeType("application/rdf+xml").formatURI("info:fedora/fedora-system:FedoraRELSExt-1.0").content(content).execute(fc);
+            exists = true;
+        }
+        stored = content;
+        return true;
+    }
+
+    /**
+     * Serializes the relationships.  They are sorted so that the same set of
+     * relationships always has the same serialization.
+     */
+    public String serialize() throws XMLStreamException, UnsupportedEncodingException {
+        List<Triple> sorted = new ArrayList<Triple>(triples);
+        Collections.sort(sorted);
+        Map<String, String> prefixes = new LinkedHashMap<String, String>(PREFIXES);
+        for (Triple t : sorted) {
+            if (!prefixes.containsKey(t.getNamespace())) {
+                prefixes.put(t.getNamespace(), "ns" + prefixes.size());
+            }
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(baos, "UTF-8");
+        w.writeStartElement("rdf", "RDF", RDF_NS);
+        for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+            w.writeNamespace(prefix.getValue(), prefix.getKey());
+        }
+        w.writeStartElement("rdf", "Description", RDF_NS);
+        w.writeAttribute("rdf", RDF_NS, "about", "info:fedora/" + pid);
+        for (Triple t : sorted) {
+            String prefix = prefixes.get(t.getNamespace());
+            if (t.literal) {
+                w.writeStartElement(prefix, t.getLocalName(), t.getNamespace());
+                w.writeCharacters(t.object);
+                w.writeEndElement();
+            } else {
+                w.writeEmptyElement(prefix, t.getLocalName(), t.getNamespace());
+                w.writeAttribute("rdf", RDF_NS, "resource", t.object);
+            }
+        }
+        w.writeEndElement(); // rdf:Description
+        w.writeEndElement(); // rdf:RDF
+        w.close();
+        return new String(baos.toByteArray(), "UTF-8");
+    }
+
+    private void parse(InputStream in) throws XMLStreamException {
+        XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        try {
+            int depth = 0;
+            while (r.hasNext()) {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth ++;
+                    // rdf:RDF/rdf:Description/predicate
+                    if (depth == 3) {
+                        String predicate = r.getNamespaceURI() + r.getLocalName();
+                        String resource = r.getAttributeValue(RDF_NS, "resource");
+                        if (resource != null) {
+                            triples.add(new Triple(predicate, resource, false));
+                        } else {
+                            triples.add(new Triple(predicate, r.getElementText(), true));
+                            depth --;
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth --;
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    private static class Triple implements Comparable<Triple> {
+
+        private String predicate;
+
+        private String object;
+
+        private boolean literal;
+
+        public Triple(String predicate, String object, boolean literal) {
+            this.predicate = predicate;
+            this.object = object;
+            this.literal = literal;
+        }
+
+        public String getNamespace() {
+            return predicate.substring(0, Math.max(predicate.lastIndexOf('#'), predicate.lastIndexOf('/')) + 1);
+        }
+
+        public String getLocalName() {
+            return predicate.substring(getNamespace().length());
+        }
+
+        public int compareTo(Triple t) {
+            int c = predicate.compareTo(t.predicate);
+            if (c == 0) {
+                c = object.compareTo(t.object);
+            }
+            if (c == 0 && literal != t.literal) {
+                c = literal ? 1 : -1;
+            }
+            return c;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.util.UUID;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+
+/**
+ * Waits for fedora's resource index to catch up with the writes made so far.
+ * Because the resource index is updated asynchronously, queries issued just
+ * after an ingest may not reflect it.  Rather than sleeping for a fixed time
+ * (too long when the index is idle, too short when it's busy) sync() writes
+ * a new sentinel value to the RELS-EXT of a dedicated object and polls the
+ * resource index, backing off between polls, until the sentinel appears.
+ * Since the resource index applies updates in order, everything written
+ * before the sentinel is then visible too.  The sentinel object is created
+ * by the first sync, with a RELS-EXT that keeps no old versions.
+ */
+public class ResourceIndexBarrier {
+
+    public static final String SYNC_TOKEN = FedoraHelper.UVA_RELS + "riSyncToken";
+
+    public static final String SENTINEL_PID = "uva-lib:wslsResourceIndexSentinel";
+
+    public static final long DEFAULT_TIMEOUT = 10 * 60 * 1000;
+
+    private static final long INITIAL_POLL_INTERVAL = 50;
+
+    private static final long MAX_POLL_INTERVAL = 5000;
+
+    private FedoraClient fc;
+
+    private String sentinelPid;
+
+    private long timeout;
+
+    public ResourceIndexBarrier(FedoraClient fc) {
+        this(fc, SENTINEL_PID, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param sentinelPid the object whose RELS-EXT will hold the sentinel,
+     *        which must be used for nothing else (its RELS-EXT is replaced)
+     */
+    public ResourceIndexBarrier(FedoraClient fc, String sentinelPid, long timeout) {
+        if (sentinelPid == null) {
+            throw new IllegalArgumentException("A sentinel object is required!");
+        }
+        this.fc = fc;
+        this.sentinelPid = sentinelPid;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Writes a new sentinel and returns once the resource index contains it.
+     * @return the time (in milliseconds) the resource index took to catch up
+     * @throws IllegalStateException if the timeout is reached first
+     */
+    public long sync() throws Exception {
+        String token = UUID.randomUUID().toString();
+        writeSentinel(token);
+        long start = System.currentTimeMillis();
+        long interval = INITIAL_POLL_INTERVAL;
+        int polls = 0;
+        while (true) {
+            polls ++;
+            if (FedoraHelper.getSubjectsWithLiteral(fc, SYNC_TOKEN, token).contains(sentinelPid)) {
+                long lag = System.currentTimeMillis() - start;
+                System.out.println("Resource index caught up after " + lag + "ms (" + polls + " queries).");
+                return lag;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            if (elapsed >= timeout) {
+                throw new IllegalStateException("Resource index did not catch up within " + timeout + "ms!");
+            }
+            Thread.sleep(Math.min(interval, timeout - elapsed));
+            interval = Math.min(interval * 2, MAX_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Replaces the RELS-EXT of the sentinel object with one holding just the
+     * given token, creating the object if it doesn't yet exist.
+     */
+    private void writeSentinel(String token) throws Exception {
+        String content = RelsExt.create(sentinelPid).setLiteral(SYNC_TOKEN, token).serialize();
+        try {
+            FedoraClient.modifyDatastream(sentinelPid, "RELS-EXT").mimeType("application/rdf+xml").versionable(false).content(content).execute(fc);
+        } catch (FedoraClientException ex) {
+            if (ex.getStatus() != 404) {
+                throw ex;
+            }
+            synchronized (ResourceIndexBarrier.class) {
+                try {
+                    FedoraClient.getObjectProfile(sentinelPid).execute(fc);
+                } catch (FedoraClientException missing) {
+                    if (missing.getStatus() != 404) {
+                        throw missing;
+                    }
+                    FedoraClient.ingest(sentinelPid).label("WSLS resource index sentinel").execute(fc);
+                    System.out.println("Created resource index sentinel " + sentinelPid + ".");
+                }
+                FedoraClient.addDatastream(sentinelPid, "RELS-EXT").controlGroup("X").mimeType("application/rdf+xml").formatURI("info:fedora/fedora-system:FedoraRELSExt-1.0").versionable(false).content(content).execute(fc);
+            }
+        }
+    }
+}
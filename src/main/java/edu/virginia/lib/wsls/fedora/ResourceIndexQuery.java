@@ -0,0 +1,196 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+
+/**
+ * Resource index queries whose results are streamed, a row at a time, from
+ * the SPARQL XML result format through a pull parser to a callback, rather
+ * than being read into memory and pattern matched line by line.  Also
+ * provides batched queries, that get the relationships of many subjects
+ * (or of a whole subtree) with a single request.
+ */
+public class ResourceIndexQuery {
+
+    /**
+     * The maximum number of subjects named in one batched query, to keep
+     * the request a reasonable size.
+     */
+    public static final int MAX_BATCH_SIZE = 200;
+
+    private static final String MULGARA_IS = "http://mulgara.org/mulgara#is";
+
+    /**
+     * Receives each row of a query's results.
+     */
+    public static interface RowHandler {
+
+        /**
+         * @param values the values of the selected variables, in the order
+         *        they were selected; pids for fedora objects (with the
+         *        "info:fedora/" removed), other URIs and literals as they
+         *        are, and null for unbound variables
+         */
+        public void row(String[] values) throws Exception;
+    }
+
+    public static void itql(FedoraClient fc, String query, RowHandler handler) throws Exception {
+        execute(fc, "itql", query, handler);
+    }
+
+    public static void sparql(FedoraClient fc, String query, RowHandler handler) throws Exception {
+        execute(fc, "sparql", query, handler);
+    }
+
+    private static void execute(FedoraClient fc, String lang, String query, RowHandler handler) throws Exception {
+        InputStream in = FedoraClient.riSearch(query).lang(lang).format("Sparql").execute(fc).getEntityInputStream();
+        try {
+            parse(in, handler);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the objects related by the given predicate to each of the given
+     * subjects, in as few requests as possible.
+     * @return a map from each subject with at least one such relationship to
+     *         the pids of the objects
+     */
+    public static Map<String, List<String>> getObjects(FedoraClient fc, Collection<String> subjects, String predicate) throws Exception {
+        final Map<String, List<String>> objects = new LinkedHashMap<String, List<String>>();
+        for (String query : getObjectsQueries(subjects, predicate)) {
+            itql(fc, query, new RowHandler() {
+                public void row(String[] values) {
+                    List<String> list = objects.get(values[0]);
+                    if (list == null) {
+                        list = new ArrayList<String>();
+                        objects.put(values[0], list);
+                    }
+                    list.add(values[1]);
+                }});
+        }
+        return objects;
+    }
+
+    /**
+     * Builds the queries for getObjects(), each naming at most
+     * MAX_BATCH_SIZE subjects.
+     */
+    static List<String> getObjectsQueries(Collection<String> subjects, String predicate) {
+        List<String> queries = new ArrayList<String>();
+        Iterator<String> it = subjects.iterator();
+        while (it.hasNext()) {
+            StringBuffer query = new StringBuffer();
+            query.append("select $s $o from <#ri> where $s <" + predicate + "> $o and (");
+            for (int i = 0; i < MAX_BATCH_SIZE && it.hasNext(); i ++) {
+                if (i > 0) {
+                    query.append(" or ");
+                }
+                query.append("$s <" + MULGARA_IS + "> <info:fedora/" + it.next() + ">");
+            }
+            query.append(")");
+            queries.add(query.toString());
+        }
+        return queries;
+    }
+
+    /**
+     * Gets every relationship (as a child, parent row) with the given
+     * predicate in the tree below the root, with a single request.
+     */
+    public static void walkParts(FedoraClient fc, String rootPid, String isPartOfPredicate, RowHandler handler) throws Exception {
+        itql(fc, getWalkPartsQuery(rootPid, isPartOfPredicate), handler);
+    }
+
+    static String getWalkPartsQuery(String rootPid, String isPartOfPredicate) {
+        return "select $child $parent from <#ri> where walk($child <" + isPartOfPredicate + "> <info:fedora/" + rootPid + "> and $child <" + isPartOfPredicate + "> $parent)";
+    }
+
+    /**
+     * Parses the results in the SPARQL XML result format.  Both the current
+     * W3C format (with binding elements) and the earlier one that fedora
+     * produces (with an element named for each variable) are understood.
+     */
+    static void parse(InputStream in, RowHandler handler) throws Exception {
+        XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        try {
+            List<String> variables = new ArrayList<String>();
+            Map<String, Integer> columns = new HashMap<String, Integer>();
+            while (r.hasNext()) {
+                if (r.next() == XMLStreamConstants.START_ELEMENT) {
+                    if (r.getLocalName().equals("variable")) {
+                        columns.put(r.getAttributeValue(null, "name"), variables.size());
+                        variables.add(r.getAttributeValue(null, "name"));
+                    } else if (r.getLocalName().equals("result")) {
+                        String[] row = new String[variables.size()];
+                        readRow(r, columns, row);
+                        handler.row(row);
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Reads the values within a result element, leaving the reader at the
+     * end of it.
+     */
+    private static void readRow(XMLStreamReader r, Map<String, Integer> columns, String[] row) throws XMLStreamException {
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String variable = r.getLocalName();
+                if (variable.equals("binding")) {
+                    // <binding name="x"><uri>...</uri></binding>
+                    variable = r.getAttributeValue(null, "name");
+                    String value = null;
+                    while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        value = r.getLocalName().equals("uri") ? toPid(r.getElementText()) : r.getElementText();
+                    }
+                    setValue(columns, row, variable, value);
+                } else {
+                    // <x uri="..."/>, <x>literal</x> or <x bound="false"/>
+                    String uri = r.getAttributeValue(null, "uri");
+                    if (uri != null) {
+                        setValue(columns, row, variable, toPid(uri));
+                        r.nextTag();
+                    } else if ("false".equals(r.getAttributeValue(null, "bound"))) {
+                        r.nextTag();
+                    } else {
+                        setValue(columns, row, variable, r.getElementText());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void setValue(Map<String, Integer> columns, String[] row, String variable, String value) {
+        Integer column = columns.get(variable);
+        if (column == null) {
+            throw new IllegalStateException("Result included unselected variable \"" + variable + "\"!");
+        }
+        row[column] = value;
+    }
+
+    private static String toPid(String uri) {
+        return uri.startsWith("info:fedora/") ? uri.substring("info:fedora/".length()) : uri;
+    }
+}
@@ -22,13 +22,13 @@ public class SortChildren {
         FedoraClient fc = new FedoraClient(new FedoraCredentials(p.getProperty("fedora-url"), p.getProperty("fedora-username"), p.getProperty("fedora-password")));
     }
     
-    private static void sortMonths(FedoraClient fc, String yearPid) throws Exception {
+    private static void sortMonths(FedoraClient fc, CollectionGraph graph, String yearPid) throws Exception {
      // pull all of the children of a node
         List<Node> children = new ArrayList<Node>();
-        for (String child : getSubjects(fc, "info:fedora/fedora-system:def/relations-external#isPartOf", yearPid)) {
+        for (String child : graph.getChildren(yearPid)) {
             Node n = new Node();
             n.pid = child;
-            n.previousPids = getObjects(fc, child, "http://fedora.lib.virginia.edu/relationships#follows");
+            n.previousPids = graph.getPrevious(child);
             children.add(n);
             System.out.println(n.pid + " follows " + n.previousPids.size() + " other objects");
         }
@@ -50,26 +50,21 @@ public class SortChildren {
             Collections.sort(children);
             String follows = null;
             for (Node n : children) {
-                for (String previousPid : n.previousPids) {
-                    FedoraClient.purgeRelationship(n.pid).predicate("http://fedora.lib.virginia.edu/relationships#follows").object("info:fedora/" + previousPid).execute(fc);
-                    System.out.println(n.pid + " follows " + previousPid);
-                }
-                if (follows != null) {
-                    FedoraClient.addRelationship(n.pid).predicate("http://fedora.lib.virginia.edu/relationships#follows").object("info:fedora/" + follows).execute(fc);
-                }
+                // replaces every previous follows relationship in one request
+                graph.update(setFollows(fc, n.pid, follows));
                 follows = n.pid;
             }
         }
 
     }
     
-    private static void sortEntries(FedoraClient fc, String nodePid) throws Exception {
+    private static void sortEntries(FedoraClient fc, CollectionGraph graph, String nodePid) throws Exception {
         // pull all of the children of a node
         List<Node> children = new ArrayList<Node>();
-        for (String child : getSubjects(fc, "info:fedora/fedora-system:def/relations-external#isPartOf", nodePid)) {
+        for (String child : graph.getChildren(nodePid)) {
             Node n = new Node();
             n.pid = child;
-            n.previousPids = getObjects(fc, child, "http://fedora.lib.virginia.edu/relationships#follows");
+            n.previousPids = graph.getPrevious(child);
             children.add(n);
             //System.out.println(n.pid + " follows " + n.previousPids.size() + " other objects");
         }
@@ -91,13 +86,8 @@ public class SortChildren {
             Collections.sort(children);
             String follows = null;
             for (Node n : children) {
-                for (String previousPid : n.previousPids) {
-                    FedoraClient.purgeRelationship(n.pid).predicate("http://fedora.lib.virginia.edu/relationships#follows").object("info:fedora/" + previousPid).execute(fc);
-                    System.out.println(n.pid + " follows " + previousPid);
-                }
-                if (follows != null) {
-                    FedoraClient.addRelationship(n.pid).predicate("http://fedora.lib.virginia.edu/relationships#follows").object("info:fedora/" + follows).execute(fc);
-                }
+                // replaces every previous follows relationship in one request
+                graph.update(setFollows(fc, n.pid, follows));
                 follows = n.pid;
             }
         }
@@ -30,8 +30,13 @@ public class ImageMagickProcess {
         convertCommandPath = path;
     }
     
+    /**
+     * Generates a PNG thumbnail of the first page of the PDF.  The creation
+     * and modification time chunks are left out of the PNG so that the same
+     * PDF always results in the same bytes.
+     */
     public void generateThubmnail(File inputPdf, File outputPng) throws IOException, InterruptedException {
-        Process p = new ProcessBuilder(convertCommandPath, "-thumbnail", "120x120", inputPdf.getPath() + "[0]", outputPng.getPath()).start();
+        Process p = new ProcessBuilder(convertCommandPath, "-thumbnail", "120x120", "-define", "png:exclude-chunk=date,time", inputPdf.getPath() + "[0]", outputPng.getPath()).start();
         new Thread(new OutputDrainerThread(p.getInputStream())).start();
         new Thread(new OutputDrainerThread(p.getErrorStream())).start();
         int returnCode = p.waitFor();
@@ -0,0 +1,119 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A file backed list of the pids of objects that couldn't be indexed, so
+ * that they may be retried later (even by another run).  Pids are appended
+ * to the file as soon as they're added; removals are only written out by
+ * save() (which should only be called once the index updates are
+ * committed), so after a crash or a rollback some already indexed objects
+ * may be retried, which is harmless.
+ */
+public class IndexRetryQueue {
+
+    private File file;
+
+    private Set<String> pids;
+
+    private OutputStream out;
+
+    public IndexRetryQueue(File file) throws IOException {
+        this.file = file;
+        read();
+    }
+
+    private void read() throws IOException {
+        pids = new LinkedHashSet<String>();
+        if (file.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    if (line.trim().length() > 0) {
+                        pids.add(line.trim());
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+    }
+
+    public synchronized void add(String pid) throws IOException {
+        if (pids.add(pid)) {
+            if (out == null) {
+                out = new FileOutputStream(file, true);
+            }
+            out.write((pid + "\n").getBytes("UTF-8"));
+            out.flush();
+        }
+    }
+
+    public synchronized void remove(String pid) {
+        pids.remove(pid);
+    }
+
+    public synchronized boolean contains(String pid) {
+        return pids.contains(pid);
+    }
+
+    public synchronized List<String> getPids() {
+        return new ArrayList<String>(pids);
+    }
+
+    public synchronized int size() {
+        return pids.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Forgets the removals since the file was last saved, for instance when
+     * the updates that indexed those objects have been rolled back.
+     */
+    public synchronized void revert() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        read();
+    }
+
+    /**
+     * Rewrites the file to hold just the pids that remain.
+     */
+    public synchronized void save() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream o = new FileOutputStream(temp);
+        try {
+            for (String pid : pids) {
+                o.write((pid + "\n").getBytes("UTF-8"));
+            }
+        } finally {
+            o.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file + "!");
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to rename " + temp + " to " + file + "!");
+        }
+    }
+}
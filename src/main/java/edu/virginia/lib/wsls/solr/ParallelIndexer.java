@@ -0,0 +1,96 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Indexes a set of objects on a fixed number of threads, reporting the
+ * progress (and rate) as it goes.  Objects that fail are added to a retry
+ * queue rather than ending the run; those that succeed are removed from it.
+ */
+public class ParallelIndexer {
+
+    public interface Indexer {
+        public void index(String pid) throws Exception;
+    }
+
+    /**
+     * The least time between progress reports.
+     */
+    private static final long PROGRESS_INTERVAL = 10000;
+
+    private int threads;
+
+    private Indexer indexer;
+
+    private IndexRetryQueue retries;
+
+    /**
+     * @param retries the queue to which failures are added, or null
+     */
+    public ParallelIndexer(int threads, Indexer indexer, IndexRetryQueue retries) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required!");
+        }
+        this.threads = threads;
+        this.indexer = indexer;
+        this.retries = retries;
+    }
+
+    /**
+     * Indexes the given objects, returning once each has been attempted.
+     * @param description a description of the objects for progress reports
+     * @return the pids of the objects that couldn't be indexed
+     * @throws Exception if a failure couldn't be added to the retry queue
+     */
+    public List<String> index(String description, Collection<String> pids) throws Exception {
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        if (pids.isEmpty()) {
+            return failures;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, pids.size()));
+        try {
+            CompletionService<String> completed = new ExecutorCompletionService<String>(pool);
+            for (final String pid : pids) {
+                completed.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        try {
+                            indexer.index(pid);
+                            if (retries != null) {
+                                retries.remove(pid);
+                            }
+                        } catch (Throwable t) {
+                            System.err.println("Unable to index " + pid + ": " + t);
+                            failures.add(pid);
+                            if (retries != null) {
+                                retries.add(pid);
+                            }
+                        }
+                        return pid;
+                    }});
+            }
+            long start = System.currentTimeMillis();
+            long lastReport = start;
+            for (int i = 1; i <= pids.size(); i ++) {
+                completed.take().get();
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL || i == pids.size()) {
+                    lastReport = now;
+                    System.out.println("Indexed " + i + "/" + pids.size() + " " + description + " in " + (now - start) + "ms ("
+                            + (now == start ? "-" : String.format("%.1f", i * 1000d / (now - start))) + "/s), "
+                            + failures.size() + " failed.");
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return new ArrayList<String>(failures);
+    }
+}
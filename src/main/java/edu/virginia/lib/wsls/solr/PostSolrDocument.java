@@ -1,20 +1,21 @@
 package edu.virginia.lib.wsls.solr;
 
-import static edu.virginia.lib.wsls.fedora.FedoraHelper.getSubjects;
-
 import java.io.*;
 import java.net.SocketTimeoutException;
-import java.net.URLEncoder;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
 
 import com.yourmediashelf.fedora.generated.access.DatastreamType;
 import org.apache.commons.httpclient.HttpClient;
@@ -22,7 +23,6 @@ import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
-import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.FilePartSource;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
@@ -33,18 +33,66 @@ import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.client.FedoraCredentials;
 
+import edu.virginia.lib.wsls.fedora.CollectionGraph;
+import edu.virginia.lib.wsls.fedora.ResourceIndexBarrier;
+import edu.virginia.lib.wsls.fedora.ResourceIndexQuery;
+
 public class PostSolrDocument {
+
+    /**
+     * Reindexes the whole collection, or with the arguments "retry" the
+     * objects left in the retry queue, or with "since yyyy-MM-dd" those
+     * modified since the given date (and the folders that contain them).
+     */
     public static void main(String [] args) throws Exception {
         PostSolrDocument solr = new PostSolrDocument();
-        solr.reindexWSLSCollection(false);
+        if (args.length > 0 && args[0].equals("retry")) {
+            solr.reindexFailures(false);
+        } else if (args.length > 1 && args[0].equals("since")) {
+            solr.reindexModifiedSince(new SimpleDateFormat("yyyy-MM-dd").parse(args[1]), true);
+        } else {
+            solr.reindexWSLSCollection(false);
+        }
     }
 
+    public static final String COLLECTION_PID = "uva-lib:2214294";
+
+    private static final String LAST_MODIFIED = "info:fedora/fedora-system:def/view#lastModifiedDate";
+
+    private static final String IS_ANCHOR_SCRIPT_FOR = "http://fedora.lib.virginia.edu/wsls/relationships#isAnchorScriptFor";
+
     private FedoraClient fc;
 
     private String updateUrl;
     private String servicePid;
     private String serviceMethod;
 
+    private SolrUpdateSink updates;
+
+    /**
+     * If positive, the number of milliseconds within which solr commits each
+     * batch of updates it's sent.
+     */
+    private int commitWithin;
+
+    /**
+     * Generates the documents for items in this process (rather than
+     * requesting servicePid/serviceMethod), or null.
+     */
+    private SolrDocumentGenerator generator;
+
+    /**
+     * Whether the index is optimized after the collection is reindexed.
+     */
+    private boolean optimize;
+
+    private int reindexThreads;
+
+    /**
+     * The objects that couldn't be indexed.
+     */
+    private IndexRetryQueue retries;
+
     public PostSolrDocument() throws IOException {
         Properties p = new Properties();
         p.load(PostSolrDocument.class.getClassLoader().getResourceAsStream("conf/fedora.properties"));
@@ -52,6 +100,17 @@ public class PostSolrDocument {
 
         p.load(PostSolrDocument.class.getClassLoader().getResourceAsStream("conf/solr.properties"));
         updateUrl = p.getProperty("solr.update");
+        commitWithin = Integer.parseInt(p.getProperty("solr.commit-within", "-1"));
+        updates = new SolrUpdateSink(updateUrl,
+                Integer.parseInt(p.getProperty("solr.batch-size", String.valueOf(SolrUpdateSink.DEFAULT_MAX_DOCUMENTS))),
+                Long.parseLong(p.getProperty("solr.batch-bytes", String.valueOf(SolrUpdateSink.DEFAULT_MAX_BYTES))),
+                commitWithin);
+        optimize = Boolean.parseBoolean(p.getProperty("solr.optimize", "false"));
+        reindexThreads = Integer.parseInt(p.getProperty("solr.reindex-threads", "1"));
+        retries = new IndexRetryQueue(new File(p.getProperty("solr.retry-queue", "solr-retry-queue.txt")));
+        if (Boolean.parseBoolean(p.getProperty("solr.generate-in-process", "false"))) {
+            generator = new SolrDocumentGenerator(fc, p.getProperty("fedora-url"));
+        }
         servicePid = "uva-lib:indexableSDef";
         serviceMethod = "getIndexingMetadata";
 
@@ -88,74 +147,198 @@ public class PostSolrDocument {
     }
     
     public void reindexWSLSCollection(boolean regenerate) throws Exception {
-        String collectionPid = "uva-lib:2214294";
-        try {
-            List<String> failedPids = new ArrayList<String>();
-            indexPid(collectionPid, fc, regenerate);
-            for (String yearPid : getSubjects(fc, "info:fedora/fedora-system:def/relations-external#isPartOf", collectionPid)) {
-                try {
-                    indexPid(yearPid, fc, regenerate);
-                } catch (Throwable t) {
-                    System.out.println("failed to index year " + yearPid);
-                    failedPids.add(yearPid);
-                }
-                for (String monthPid : getSubjects(fc, "info:fedora/fedora-system:def/relations-external#isPartOf", yearPid)) {
-                    try {
-                        indexPid(monthPid, fc, regenerate);
-                    } catch (Throwable t) {
-                        System.out.println(" failed to index month " + monthPid);
-                        failedPids.add(monthPid);
-                        t.printStackTrace();
-                    }
-                }
+        reindexWSLSCollection(regenerate, reindexThreads);
+    }
+
+    /**
+     * Reindexes the collection object, then its folders, then its items,
+     * each on the given number of threads.
+     */
+    public void reindexWSLSCollection(boolean regenerate, int threads) throws Exception {
+        // walk the collection in memory rather than querying for the
+        // children of every node
+        CollectionGraph graph = CollectionGraph.load(fc, COLLECTION_PID);
+        List<String> folderPids = new ArrayList<String>();
+        for (String yearPid : graph.getChildren(COLLECTION_PID)) {
+            folderPids.add(yearPid);
+            folderPids.addAll(graph.getChildren(yearPid));
+        }
+        reindex(true, folderPids, graph.getSubjectsWithModel("uva-lib:pbcore2CModel"), regenerate, threads);
+    }
+
+    /**
+     * Reindexes just the given objects (typically those changed by an
+     * ingest), the folders and collection that contain them, and any
+     * objects left in the retry queue by earlier runs.
+     * @param graph the relationships of the objects, used to find their
+     *        ancestors
+     */
+    public void reindexChanged(Collection<String> changedPids, CollectionGraph graph, boolean regenerate) throws Exception {
+        Set<String> pids = new LinkedHashSet<String>(changedPids);
+        pids.addAll(retries.getPids());
+        for (String pid : new ArrayList<String>(pids)) {
+            pids.addAll(graph.getAncestors(pid));
+        }
+        boolean includeCollection = pids.remove(COLLECTION_PID);
+        List<String> folderPids = new ArrayList<String>();
+        List<String> itemPids = new ArrayList<String>();
+        for (String pid : pids) {
+            if (graph.getChildren(pid).isEmpty()) {
+                itemPids.add(pid);
+            } else {
+                folderPids.add(pid);
             }
-    
-            for (String pid : getSubjects(fc, "info:fedora/fedora-system:def/model#hasModel", "uva-lib:pbcore2CModel")) {
-                try {
-                    indexPid(pid, fc, regenerate);
-                } catch (Throwable t) {
-                    failedPids.add(pid);
-                    t.printStackTrace();
-                    System.out.println("Unable to index " + pid);
-                }
+        }
+        System.out.println("Reindexing " + changedPids.size() + " changed objects, with the folders that contain them and any awaiting a retry.");
+        reindex(includeCollection, folderPids, itemPids, regenerate, reindexThreads);
+    }
+
+    /**
+     * Reindexes the objects in fedora modified (directly, or through their
+     * anchor scripts) since the given time, as well as their ancestors.
+     */
+    public void reindexModifiedSince(Date since, boolean regenerate) throws Exception {
+        SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String date = "\"" + f.format(since) + "\"^^<http://www.w3.org/2001/XMLSchema#dateTime>";
+        final Set<String> pids = new LinkedHashSet<String>();
+        ResourceIndexQuery.RowHandler collect = new ResourceIndexQuery.RowHandler() {
+            public void row(String[] values) {
+                pids.add(values[0]);
+            }};
+        ResourceIndexQuery.sparql(fc, "SELECT ?s FROM <#ri> WHERE { ?s <" + LAST_MODIFIED + "> ?d . ?s <info:fedora/fedora-system:def/model#hasModel> <info:fedora/uva-lib:pbcore2CModel> . FILTER (?d >= " + date + ") }", collect);
+        ResourceIndexQuery.sparql(fc, "SELECT ?v FROM <#ri> WHERE { ?s <" + LAST_MODIFIED + "> ?d . ?s <" + IS_ANCHOR_SCRIPT_FOR + "> ?v . FILTER (?d >= " + date + ") }", collect);
+        reindexChanged(pids, CollectionGraph.load(fc, COLLECTION_PID), regenerate);
+    }
+
+    /**
+     * Reindexes the given objects: first the collection object (on its own,
+     * since the documents of the others may include the hierarchy summary
+     * cached in it), then the folders, then the items, each on the given
+     * number of threads.  Objects that fail (many of which are a result of
+     * the resource index not yet reflecting recent changes) are retried once
+     * the resource index has caught up; any that still fail are left in the
+     * retry queue, and the rest of the updates committed.  If the reindex
+     * itself fails, the updates are abandoned (see abandonUpdates()) and the
+     * exception is thrown.
+     */
+    private void reindex(boolean includeCollection, Collection<String> folderPids, Collection<String> itemPids, boolean regenerate, int threads) throws Exception {
+        boolean committed = false;
+        try {
+            ParallelIndexer indexer = getIndexer(regenerate, threads);
+            long start = System.currentTimeMillis();
+            Set<String> failedPids = new LinkedHashSet<String>();
+            if (includeCollection) {
+                failedPids.addAll(indexer.index("collection", Collections.singletonList(COLLECTION_PID)));
             }
+            failedPids.addAll(indexer.index("folders", folderPids));
+            failedPids.addAll(indexer.index("items", itemPids));
+            failedPids.addAll(takeRejectedPids());
+            System.out.println("Reindexed " + ((includeCollection ? 1 : 0) + folderPids.size() + itemPids.size()) + " objects in " + (System.currentTimeMillis() - start) + "ms on " + threads + " thread(s), " + failedPids.size() + " failure(s).");
 
-            //reindex any failures
-            for (String pid : failedPids) {
-                try {
-                    indexPid(pid, fc, regenerate);
-                } catch (Throwable t) {
-                    t.printStackTrace();
-                    System.out.println("Retrying after 30 second...");
-                    Thread.sleep(30000);
-                    try {
-                        indexPid(pid, fc, regenerate);
-                    } catch (Throwable t2) {
-                        System.out.println("Retrying after 5 minutes...");
-                        Thread.sleep(300000);
-                        indexPid(pid, fc, regenerate);
-                    }
-                }
+            retry(failedPids, indexer, new ResourceIndexBarrier(fc));
+
+            commit();
+            committed = true;
+            saveRetries();
+            if (optimize) {
+                optimize();
+            }
+        } finally {
+            if (!committed) {
+                abandonUpdates();
             }
+        }
+    }
 
+    /**
+     * Reindexes the objects in the retry queue (left by earlier runs) and
+     * commits, only then removing those indexed from the queue.
+     */
+    public void reindexFailures(boolean regenerate) throws Exception {
+        List<String> pids = retries.getPids();
+        System.out.println(pids.size() + " objects to reindex from " + retries.getFile() + ".");
+        boolean committed = false;
+        try {
+            retry(pids, getIndexer(regenerate, reindexThreads), new ResourceIndexBarrier(fc));
             commit();
-            optimize();
-        } catch (Throwable t) {
-            System.err.println("Error, rolling back index updates!");
-            rollback();
+            committed = true;
+            saveRetries();
+        } finally {
+            if (!committed) {
+                abandonUpdates();
+            }
+        }
+    }
+
+    private ParallelIndexer getIndexer(final boolean regenerate, int threads) {
+        return new ParallelIndexer(threads, new ParallelIndexer.Indexer() {
+            public void index(String pid) throws Exception {
+                indexPid(pid, fc, regenerate);
+            }}, retries);
+    }
+
+    /**
+     * Reindexes the given objects, waiting for the resource index to catch
+     * up between each of up to three attempts.  Objects that still fail stay
+     * in the retry queue.
+     */
+    private void retry(Collection<String> pids, ParallelIndexer indexer, ResourceIndexBarrier barrier) throws Exception {
+        Set<String> remaining = new LinkedHashSet<String>(pids);
+        for (int attempt = 1; attempt <= 3 && !remaining.isEmpty(); attempt ++) {
+            if (attempt > 1) {
+                System.out.println("Retrying once the resource index has caught up...");
+                barrier.sync();
+            }
+            Set<String> failed = new LinkedHashSet<String>(indexer.index("failures (attempt " + attempt + ")", remaining));
+            failed.addAll(takeRejectedPids());
+            remaining = failed;
+        }
+        if (!remaining.isEmpty()) {
+            System.err.println(remaining.size() + " objects could not be indexed, they are listed in " + retries.getFile() + ".");
         }
     }
 
+    /**
+     * Writes out the retry queue, without the objects that have since been
+     * indexed; to be called only once those updates are committed.
+     */
+    private void saveRetries() throws IOException {
+        retries.save();
+        System.out.println(retries.size() + " objects remain in " + retries.getFile() + ".");
+    }
+
+    /**
+     * Sends any queued updates, and gets the pids of those solr rejected
+     * (adding them to the retry queue).
+     */
+    private List<String> takeRejectedPids() throws IOException {
+        updates.flush();
+        List<String> rejected = updates.takeFailures();
+        for (String pid : rejected) {
+            retries.add(pid);
+        }
+        return rejected;
+    }
+
     public void indexPid(String pid, FedoraClient fc, boolean regenerate) throws Exception {
         indexPid(pid, fc, regenerate, false);
     }
+    /**
+     * Gets the solr document for the object (from its solrArchive datastream
+     * or, if there isn't one or regenerate is set, by generating it and
+     * storing it as the solrArchive) and queues it to be posted.  The
+     * document is validated as UTF-8 as it's read, and only a single copy
+     * of it is held in memory, which is posted as it is.
+     */
     public void indexPid(String pid, FedoraClient fc, boolean regenerate, boolean createCache) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        SolrPayload payload = new SolrPayload();
         if (!regenerate) {
             try {
-                writeStreamToStream(FedoraClient.getDatastreamDissemination(pid, "solrArchive").execute(fc).getEntityInputStream(), baos);
+                copy(FedoraClient.getDatastreamDissemination(pid, "solrArchive").execute(fc).getEntityInputStream(), payload.open(null));
             } catch (Exception ex) {
-                //System.out.println("No solrArchive datastream for " + pid + ", regenerating...");
+                //System.out.println("No (valid) solrArchive datastream for " + pid + ", regenerating...");
+                payload = new SolrPayload();
                 regenerate = true;
             }
         }
@@ -165,72 +348,64 @@ public class PostSolrDocument {
                 regenerateHierarchySummary(pid);
             }
 
+            // the document is written to a file for the solrArchive as it's
+            // read into the payload
+            File archive = File.createTempFile("solrArchive-", ".xml");
             try {
-                writeStreamToStream(FedoraClient.getDissemination(pid, servicePid, serviceMethod).execute(fc).getEntityInputStream(), baos);
-            } catch (FedoraClientException ex) {
-                ByteArrayOutputStream trace = new ByteArrayOutputStream();
-                PrintWriter w = new PrintWriter(new OutputStreamWriter(trace));
-                ex.printStackTrace(w);
-                w.close();
-                if (trace.toString("UTF-8").contains("SocketTimeoutException")) {
-                    if (regenerate) {
-                        if (createCache) {
-                            throw ex;
-                        } else {
-                            System.err.println("SocketTimeout for " + pid + ", triggering cached hierarchy generation.");
-                            indexPid(pid, fc, true, true);
-                            return;
+                OutputStream out = payload.open(new FileOutputStream(archive));
+                try {
+                    if (generator == null || !generator.generate(pid, out)) {
+                        copy(FedoraClient.getDissemination(pid, servicePid, serviceMethod).execute(fc).getEntityInputStream(), out);
+                    }
+                } catch (FedoraClientException ex) {
+                    ByteArrayOutputStream trace = new ByteArrayOutputStream();
+                    PrintWriter w = new PrintWriter(new OutputStreamWriter(trace));
+                    ex.printStackTrace(w);
+                    w.close();
+                    if (trace.toString("UTF-8").contains("SocketTimeoutException")) {
+                        if (regenerate) {
+                            if (createCache) {
+                                throw ex;
+                            } else {
+                                System.err.println("SocketTimeout for " + pid + ", triggering cached hierarchy generation.");
+                                indexPid(pid, fc, true, true);
+                                return;
+                            }
                         }
                     }
+                    throw ex;
+                } finally {
+                    out.close();
                 }
-                throw ex;
+                FedoraClient.addDatastream(pid, "solrArchive").content(archive).controlGroup("M").versionable(true).mimeType("text/xml").dsLabel("Index Data for Posting to Solr").execute(fc);
+            } finally {
+                archive.delete();
             }
-            FedoraClient.addDatastream(pid, "solrArchive").content(new String(baos.toByteArray(), "UTF-8")).controlGroup("M").versionable(true).mimeType("text/xml").dsLabel("Index Data for Posting to Solr").execute(fc);
         }
 
-        // validate encoding
-        CharsetDecoder d = Charset.forName("UTF-8").newDecoder();
-        d.onMalformedInput(CodingErrorAction.REPORT); // this may not be necessary as it may be the default
-        d.onUnmappableCharacter(CodingErrorAction.REPORT); // this may not be necessary as it may be the default
-        InputStreamReader r = new InputStreamReader(new ByteArrayInputStream(baos.toByteArray()), d);
-        IOUtils.readLines(r);
-
-        HttpClient client = new HttpClient();
+        updates.add(pid, payload);
+    }
 
-        PostMethod post = new PostMethod(updateUrl);
-        Part[] parts = {
-                new FilePart("add.xml", new ByteArrayPartSource("add.xml", baos.toByteArray()), "text/xml", "UTF-8")
-        };
-        post.setRequestEntity(
-                new MultipartRequestEntity(parts, post.getParams())
-            );
+    /**
+     * Copies the stream and closes both.
+     */
+    private static void copy(InputStream in, OutputStream out) throws IOException {
         try {
-            client.executeMethod(post);
-            int status = post.getStatusCode();
-            if (status != HttpStatus.SC_OK) {
-                throw new RuntimeException("REST action \"" + updateUrl + "\" failed: " + post.getStatusLine() + " (" + pid + ")");
-            } else {
-                System.out.println("Indexed " + pid);
-            }
+            IOUtils.copy(in, out);
         } finally {
-            post.releaseConnection();
+            in.close();
+            out.close();
         }
     }
 
-    public void purgeRecord(String pid) throws HttpException, IOException {
-        String url = updateUrl + "?stream.body=" + URLEncoder.encode("<delete><query>id:\"" + pid + "\"</query></delete>", "UTF-8");
-        GetMethod get = new GetMethod(url);
-        try {
-            HttpClient client = new HttpClient();
-            client.executeMethod(get);
-            int status = get.getStatusCode();
-            if (status != HttpStatus.SC_OK) {
-                throw new RuntimeException("REST action \"" + url + "\" failed: " + get.getStatusLine());
-            }
-            System.out.println("Purged record for pid " + pid);
-        } finally {
-            get.releaseConnection();
-        }
+    /**
+     * Queues the removal of the record for the given pid from the index;
+     * like added documents it's sent with the next batch, and at the latest
+     * by commit().
+     */
+    public void purgeRecord(String pid) throws IOException {
+        updates.delete(pid);
+        System.out.println("Queued deletion of the record for pid " + pid);
     }
 
     public void postFile(File f) throws HttpException, IOException {
@@ -256,7 +431,14 @@ public class PostSolrDocument {
         }
     }
 
+    /**
+     * Sends any queued updates and commits them.  If solr rejected any of
+     * the updates sent since the rejections were last taken, the rest are
+     * committed and then an exception listing them is thrown.
+     */
     public void commit() throws HttpException, IOException {
+        updates.flush();
+        List<String> rejected = updates.takeFailures();
         String url = updateUrl + "?stream.body=%3Ccommit/%3E";
         GetMethod get = new GetMethod(url);
         try {
@@ -270,9 +452,18 @@ public class PostSolrDocument {
         } finally {
             get.releaseConnection();
         }
+        if (!rejected.isEmpty()) {
+            throw new RuntimeException(rejected.size() + " index updates were not applied: " + rejected + "!");
+        }
     }
 
+    /**
+     * Discards any queued updates and rolls back those already sent.  Note
+     * that when solr.commit-within is set, solr may already have committed
+     * the batches sent, which a rollback can't undo.
+     */
     public void rollback() throws HttpException, IOException {
+        updates.clear();
         String url = updateUrl + "?stream.body=%3Crollback/%3E";
         GetMethod get = new GetMethod(url);
         try {
@@ -287,7 +478,39 @@ public class PostSolrDocument {
         }
     }
 
+    /**
+     * Abandons the updates since the last commit after a failure.  They are
+     * rolled back, unless solr.commit-within is set, in which case the
+     * batches already sent may have been committed by solr and can't be
+     * undone, so only the queued updates are discarded (and the index is
+     * left partially updated until the next reindex).  The retry queue
+     * forgets the objects indexed since it was last saved, so they're still
+     * retried.  Any problem doing so is reported rather than thrown, so as
+     * not to hide the original one.
+     */
+    private void abandonUpdates() {
+        try {
+            retries.revert();
+        } catch (IOException ex) {
+            System.err.println("Unable to reread " + retries.getFile() + "!");
+            ex.printStackTrace();
+        }
+        try {
+            if (commitWithin > 0) {
+                System.err.println("Error, discarding queued index updates (those already sent may have been committed, as solr.commit-within is set)!");
+                updates.clear();
+            } else {
+                System.err.println("Error, rolling back index updates!");
+                rollback();
+            }
+        } catch (Exception ex) {
+            System.err.println("Unable to roll back index updates!");
+            ex.printStackTrace();
+        }
+    }
+
     public void optimize() throws HttpException, IOException {
+        updates.flush();
         String url = updateUrl + "?stream.body=%3Coptimize/%3E";
         GetMethod get = new GetMethod(url);
         try {
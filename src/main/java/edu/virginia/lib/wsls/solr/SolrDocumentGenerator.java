@@ -0,0 +1,139 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraClientException;
+
+/**
+ * Generates the solr add document for a WSLS item in this process, by
+ * applying the stylesheet of the uva-lib:wslsPBCore2IndexableSDep service
+ * deployment to the item's PBCore metadata, rather than requesting the
+ * uva-lib:indexableSDef/getIndexingMetadata dissemination (which has a
+ * remote Saxon servlet recompile the stylesheet for every document).  The
+ * stylesheet is compiled once and shared.  References within it to
+ * "local.fedora.server" are resolved against the configured fedora, as
+ * fedora would when running the deployment.
+ */
+public class SolrDocumentGenerator {
+
+    public static final String DEPLOYMENT_PID = "uva-lib:wslsPBCore2IndexableSDep";
+
+    private static final String LOCAL_FEDORA = "http://local.fedora.server/fedora";
+
+    /**
+     * Compiled stylesheets, by URL.
+     */
+    private static Map<String, Templates> templatesCache = new HashMap<String, Templates>();
+
+    private FedoraClient fc;
+
+    private String fedoraUrl;
+
+    private String stylesheetUrl;
+
+    /**
+     * Uses the stylesheet in the XSLT datastream of the service deployment.
+     * @param fedoraUrl the base URL of fedora (ending in "/fedora")
+     */
+    public SolrDocumentGenerator(FedoraClient fc, String fedoraUrl) {
+        this(fc, fedoraUrl, fedoraUrl + "/get/" + DEPLOYMENT_PID + "/XSLT");
+    }
+
+    public SolrDocumentGenerator(FedoraClient fc, String fedoraUrl, String stylesheetUrl) {
+        this.fc = fc;
+        this.fedoraUrl = fedoraUrl;
+        this.stylesheetUrl = stylesheetUrl;
+    }
+
+    /**
+     * Generates the add document for the object from its "metadata"
+     * datastream.
+     * @return false (having written nothing) if the object has no metadata
+     *         datastream, so isn't an item this stylesheet applies to
+     */
+    public boolean generate(String pid, OutputStream out) throws Exception {
+        InputStream metadata = null;
+        try {
+            metadata = FedoraClient.getDatastreamDissemination(pid, "metadata").execute(fc).getEntityInputStream();
+        } catch (FedoraClientException ex) {
+            if (ex.getStatus() == 404) {
+                return false;
+            }
+            throw ex;
+        }
+        try {
+            generate(pid, new StreamSource(metadata, fedoraUrl + "/objects/" + pid + "/datastreams/metadata/content"), out);
+        } finally {
+            metadata.close();
+        }
+        return true;
+    }
+
+    /**
+     * Generates the add document for the object from the given PBCore
+     * metadata (for instance a document just built for ingest).
+     */
+    public void generate(String pid, Source pbcore, OutputStream out) throws TransformerException {
+        Transformer t = getTemplates().newTransformer();
+        t.setURIResolver(new LocalFedoraResolver(t.getURIResolver()));
+        t.setParameter("pid", pid);
+        t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        t.transform(pbcore, new StreamResult(out));
+    }
+
+    private Templates getTemplates() throws TransformerException {
+        synchronized (templatesCache) {
+            Templates templates = templatesCache.get(stylesheetUrl);
+            if (templates == null) {
+                long start = System.currentTimeMillis();
+                TransformerFactory tFactory = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+                tFactory.setURIResolver(new LocalFedoraResolver(null));
+                templates = tFactory.newTemplates(new StreamSource(rewrite(stylesheetUrl)));
+                templatesCache.put(stylesheetUrl, templates);
+                System.out.println("Compiled " + stylesheetUrl + " in " + (System.currentTimeMillis() - start) + "ms.");
+            }
+            return templates;
+        }
+    }
+
+    private String rewrite(String url) {
+        return fedoraUrl != null && url.startsWith(LOCAL_FEDORA) ? fedoraUrl + url.substring(LOCAL_FEDORA.length()) : url;
+    }
+
+    /**
+     * Resolves URLs (from document() and xsl:include) as the standard
+     * resolver would, after pointing those for "local.fedora.server" at
+     * the configured fedora.
+     */
+    private class LocalFedoraResolver implements URIResolver {
+
+        private URIResolver standard;
+
+        LocalFedoraResolver(URIResolver standard) {
+            this.standard = standard;
+        }
+
+        public Source resolve(String href, String base) throws TransformerException {
+            String url = rewrite(href);
+            if (url.equals(href)) {
+                // null has the processor use its own resolver
+                return standard == null ? null : standard.resolve(href, base);
+            }
+            return new StreamSource(url);
+        }
+    }
+}
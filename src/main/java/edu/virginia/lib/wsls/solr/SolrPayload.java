@@ -0,0 +1,123 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.output.TeeOutputStream;
+
+/**
+ * The one in-memory copy of a solr add document on its way to the index.
+ * It's written through a UTF-8 validator (and optionally copied to another
+ * stream, such as the file that will become the solrArchive datastream)
+ * into fixed size chunks, which (unlike a ByteArrayOutputStream) are never
+ * copied as it grows, and which the SolrUpdateSink writes straight to its
+ * request.
+ */
+public class SolrPayload extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private List<byte[]> chunks;
+
+    /**
+     * The number of bytes used of the last chunk.
+     */
+    private int used;
+
+    private long size;
+
+    public SolrPayload() {
+        chunks = new ArrayList<byte[]>();
+    }
+
+    /**
+     * Wraps (without copying) the given content.
+     */
+    SolrPayload(byte[] content) {
+        this();
+        chunks.add(content);
+        used = content.length;
+        size = content.length;
+    }
+
+    /**
+     * Gets a stream to which to write the document; closing it completes
+     * the validation.
+     * @param tee a stream to which the document is also written, or null
+     */
+    public OutputStream open(OutputStream tee) {
+        return new Utf8ValidatingOutputStream(tee == null ? this : new TeeOutputStream(this, tee));
+    }
+
+    public void write(int b) {
+        if (chunks.isEmpty() || used == chunks.get(chunks.size() - 1).length) {
+            chunks.add(new byte[CHUNK_SIZE]);
+            used = 0;
+        }
+        chunks.get(chunks.size() - 1)[used ++] = (byte) b;
+        size ++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        while (len > 0) {
+            if (chunks.isEmpty() || used == chunks.get(chunks.size() - 1).length) {
+                chunks.add(new byte[CHUNK_SIZE]);
+                used = 0;
+            }
+            byte[] chunk = chunks.get(chunks.size() - 1);
+            int n = Math.min(len, chunk.length - used);
+            System.arraycopy(b, off, chunk, used, n);
+            used += n;
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of bytes at the start of the document (a byte order
+     * mark and xml declaration) that can't appear within another document.
+     */
+    int getDeclarationLength() {
+        if (chunks.isEmpty()) {
+            return 0;
+        }
+        byte[] first = chunks.get(0);
+        int length = chunks.size() == 1 ? used : first.length;
+        int offset = 0;
+        if (length >= 3 && (first[0] & 0xFF) == 0xEF && (first[1] & 0xFF) == 0xBB && (first[2] & 0xFF) == 0xBF) {
+            offset = 3;
+        }
+        while (offset < length && Character.isWhitespace(first[offset])) {
+            offset ++;
+        }
+        if (offset + 5 < length && first[offset] == '<' && first[offset + 1] == '?'
+                && first[offset + 2] == 'x' && first[offset + 3] == 'm' && first[offset + 4] == 'l') {
+            for (int i = offset + 5; i + 1 < length; i ++) {
+                if (first[i] == '?' && first[i + 1] == '>') {
+                    return i + 2;
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Writes the document, less the given number of bytes at the start.
+     */
+    void writeTo(OutputStream out, int skip) throws IOException {
+        for (int i = 0; i < chunks.size(); i ++) {
+            byte[] chunk = chunks.get(i);
+            int length = i == chunks.size() - 1 ? used : chunk.length;
+            int start = Math.min(skip, length);
+            out.write(chunk, start, length - start);
+            skip -= start;
+        }
+    }
+}
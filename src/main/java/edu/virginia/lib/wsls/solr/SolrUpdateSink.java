@@ -0,0 +1,375 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Collects add and delete operations and sends them to a solr update
+ * handler in batches, as a single &lt;update&gt; message per request,
+ * rather than making a request for every document.  A batch is sent once it
+ * holds the maximum number of operations or bytes, or when flush() is
+ * called.  The operations in a batch are applied by solr in the order they
+ * were added, and batches are sent one at a time, in order, without
+ * holding up threads that are adding to the next batch.
+ *
+ * If solr rejects a batch, each of its operations is resent on its own so
+ * that one bad document doesn't cost the rest of the batch; the ids whose
+ * operations still failed (or couldn't be sent at all) are kept and may be
+ * retrieved (and retried) with takeFailures().
+ *
+ * This class is thread safe.
+ */
+public class SolrUpdateSink {
+
+    public static final int DEFAULT_MAX_DOCUMENTS = 100;
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The number of full batches that may wait to be sent before threads
+     * adding operations wait for them.
+     */
+    private static final int MAX_WAITING = 2;
+
+    private static final byte[] UPDATE_START = utf8("<update>");
+
+    private static final byte[] UPDATE_END = utf8("</update>");
+
+    private String updateUrl;
+
+    private int maxDocuments;
+
+    private long maxBytes;
+
+    private int commitWithin;
+
+    private HttpClient client;
+
+    private List<Operation> batch;
+
+    private long batchBytes;
+
+    /**
+     * Full batches waiting to be sent, oldest first.
+     */
+    private List<Batch> ready;
+
+    /**
+     * Held while batches are sent, so that only one is sent at a time.
+     */
+    private ReentrantLock sending;
+
+    private List<String> failures;
+
+    private int posted;
+
+    public SolrUpdateSink(String updateUrl) {
+        this(updateUrl, DEFAULT_MAX_DOCUMENTS, DEFAULT_MAX_BYTES, -1);
+    }
+
+    /**
+     * @param maxDocuments the number of operations after which a batch is
+     *        sent
+     * @param maxBytes the size after which a batch is sent (a single larger
+     *        document is sent in a batch of its own)
+     * @param commitWithin if positive, the number of milliseconds within
+     *        which solr is asked to commit each batch, otherwise the batches
+     *        are only visible once commit() is called on the index
+     */
+    public SolrUpdateSink(String updateUrl, int maxDocuments, long maxBytes, int commitWithin) {
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("Batches must hold at least one document!");
+        }
+        this.updateUrl = updateUrl;
+        this.maxDocuments = maxDocuments;
+        this.maxBytes = maxBytes;
+        this.commitWithin = commitWithin;
+        client = new HttpClient(new MultiThreadedHttpConnectionManager());
+        batch = new ArrayList<Operation>();
+        ready = new ArrayList<Batch>();
+        sending = new ReentrantLock();
+        failures = new ArrayList<String>();
+    }
+
+    /**
+     * Queues the addition of a solr add document.
+     * @param id the id of the document (used in reports of failures)
+     * @param addDocument the UTF-8 encoded &lt;add&gt; message; any xml
+     *        declaration is dropped when it's combined with the others
+     */
+    public void add(String id, byte[] addDocument) throws IOException {
+        add(id, new SolrPayload(addDocument));
+    }
+
+    /**
+     * Queues the addition of a solr add document, which is kept (not copied)
+     * until it's sent.
+     */
+    public void add(String id, SolrPayload addDocument) throws IOException {
+        queue(new Operation(id, addDocument, addDocument.getDeclarationLength()));
+    }
+
+    /**
+     * Queues the deletion of the document with the given id.
+     */
+    public void delete(String id) throws IOException {
+        queue(new Operation(id, new SolrPayload(utf8("<delete><query>id:\"" + escape(id) + "\"</query></delete>")), 0));
+    }
+
+    /**
+     * Adds the operation to the batch and, if that fills it, sends it.  The
+     * request is made without holding the lock on this sink, so that other
+     * threads may go on adding to the next batch meanwhile, and only waits
+     * for another thread's request if MAX_WAITING batches are already
+     * waiting to be sent (which bounds the memory they hold).
+     */
+    private void queue(Operation op) throws IOException {
+        int waiting;
+        synchronized (this) {
+            if (!batch.isEmpty() && batchBytes + op.length() > maxBytes) {
+                detach();
+            }
+            batch.add(op);
+            batchBytes += op.length();
+            if (batch.size() >= maxDocuments || batchBytes >= maxBytes) {
+                detach();
+            }
+            waiting = ready.size();
+        }
+        if (waiting > 0) {
+            send(waiting > MAX_WAITING);
+        }
+    }
+
+    /**
+     * Moves the current batch to the end of those waiting to be sent.
+     */
+    private synchronized void detach() {
+        if (!batch.isEmpty()) {
+            ready.add(new Batch(batch, batchBytes));
+            batch = new ArrayList<Operation>();
+            batchBytes = 0;
+        }
+    }
+
+    /**
+     * Sends any queued operations, returning once they (and any being sent
+     * by other threads) have been.  If solr can't be reached the exception
+     * is rethrown, once the ids of the operations that weren't sent have
+     * been added to the failures.
+     */
+    public void flush() throws IOException {
+        detach();
+        send(true);
+    }
+
+    /**
+     * Sends the waiting batches, one at a time and in the order they were
+     * detached.  Unless wait is set, this returns at once if another thread
+     * is already sending them; that thread checks for batches added in the
+     * meantime after it releases the lock, so none are left behind.
+     */
+    private void send(boolean wait) throws IOException {
+        while (true) {
+            if (wait) {
+                sending.lock();
+            } else if (!sending.tryLock()) {
+                return;
+            }
+            try {
+                Batch b;
+                while ((b = nextBatch()) != null) {
+                    send(b);
+                }
+            } finally {
+                sending.unlock();
+            }
+            synchronized (this) {
+                if (ready.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized Batch nextBatch() {
+        return ready.isEmpty() ? null : ready.remove(0);
+    }
+
+    private void send(Batch b) throws IOException {
+        List<Operation> operations = b.operations;
+        // the number of operations whose outcome is known; if solr can't be
+        // reached, the rest are reported as failures rather than lost
+        int done = 0;
+        try {
+            long start = System.currentTimeMillis();
+            String error = post(operations);
+            if (error == null) {
+                done = operations.size();
+                System.out.println("Posted " + operations.size() + " updates (" + b.bytes + " bytes) to solr in " + (System.currentTimeMillis() - start) + "ms, " + posted(done) + " in total.");
+            } else if (operations.size() == 1) {
+                System.err.println("Solr update for " + operations.get(0).id + " failed: " + error);
+                failed(operations);
+                done = 1;
+            } else {
+                System.err.println("Solr update batch of " + operations.size() + " failed (" + error + "), posting its updates individually.");
+                for (Operation op : operations) {
+                    List<Operation> single = Collections.singletonList(op);
+                    error = post(single);
+                    if (error == null) {
+                        posted(1);
+                    } else {
+                        System.err.println("Solr update for " + op.id + " failed: " + error);
+                        failed(single);
+                    }
+                    done ++;
+                }
+            }
+        } finally {
+            if (done < operations.size()) {
+                System.err.println((operations.size() - done) + " solr updates couldn't be sent.");
+                failed(operations.subList(done, operations.size()));
+            }
+        }
+    }
+
+    private synchronized int posted(int count) {
+        posted += count;
+        return posted;
+    }
+
+    private synchronized void failed(List<Operation> operations) {
+        for (Operation op : operations) {
+            failures.add(op.id);
+        }
+    }
+
+    /**
+     * Discards any queued operations (for instance before a rollback).
+     */
+    public synchronized void clear() {
+        batch.clear();
+        batchBytes = 0;
+        ready.clear();
+    }
+
+    /**
+     * Gets (and forgets) the ids whose operations solr has rejected.
+     */
+    public synchronized List<String> takeFailures() {
+        List<String> result = failures;
+        failures = new ArrayList<String>();
+        return result;
+    }
+
+    /**
+     * Gets the number of operations that solr has accepted.
+     */
+    public synchronized int getPostedCount() {
+        return posted;
+    }
+
+    /**
+     * Posts the operations as a single update message.
+     * @return null if it succeeded, otherwise a description of the problem
+     * @throws IOException if solr couldn't be reached
+     */
+    private String post(List<Operation> operations) throws IOException {
+        PostMethod post = new PostMethod(updateUrl + (commitWithin > 0 ? "?commitWithin=" + commitWithin : ""));
+        post.setRequestEntity(new UpdateRequestEntity(operations));
+        try {
+            client.executeMethod(post);
+            if (post.getStatusCode() != HttpStatus.SC_OK) {
+                return post.getStatusLine().toString();
+            }
+            return null;
+        } finally {
+            post.releaseConnection();
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "\\\"");
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static class Batch {
+        List<Operation> operations;
+        long bytes;
+
+        Batch(List<Operation> operations, long bytes) {
+            this.operations = operations;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Operation {
+        String id;
+        SolrPayload content;
+        int skip;
+
+        Operation(String id, SolrPayload content, int skip) {
+            this.id = id;
+            this.content = content;
+            this.skip = skip;
+        }
+
+        long length() {
+            return content.size() - skip;
+        }
+    }
+
+    /**
+     * Writes the queued operations, wrapped in an update element, straight
+     * to the request without first combining them into one array.
+     */
+    private static class UpdateRequestEntity implements RequestEntity {
+
+        private List<Operation> operations;
+
+        UpdateRequestEntity(List<Operation> operations) {
+            this.operations = operations;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public void writeRequest(OutputStream out) throws IOException {
+            out.write(UPDATE_START);
+            for (Operation op : operations) {
+                op.content.writeTo(out, op.skip);
+            }
+            out.write(UPDATE_END);
+        }
+
+        public long getContentLength() {
+            long length = UPDATE_START.length + UPDATE_END.length;
+            for (Operation op : operations) {
+                length += op.length();
+            }
+            return length;
+        }
+
+        public String getContentType() {
+            return "text/xml; charset=UTF-8";
+        }
+    }
+}
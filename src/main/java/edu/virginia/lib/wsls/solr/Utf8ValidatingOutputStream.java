@@ -0,0 +1,85 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes bytes through, failing as soon as they stop being valid UTF-8
+ * (including overlong forms, surrogates and values beyond U+10FFFF, which
+ * a decoder set to report malformed input would reject) or, on close(), if
+ * they end part way through a character.  Nothing is decoded or copied.
+ */
+public class Utf8ValidatingOutputStream extends FilterOutputStream {
+
+    /**
+     * The number of continuation bytes the current character still needs.
+     */
+    private int needed;
+
+    /**
+     * The range allowed for the next continuation byte.
+     */
+    private int lower = 0x80;
+    private int upper = 0xBF;
+
+    private long offset;
+
+    private boolean closed;
+
+    public Utf8ValidatingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    public void write(int b) throws IOException {
+        check(b);
+        out.write(b);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i ++) {
+            check(b[i]);
+        }
+        out.write(b, off, len);
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        super.close();
+        if (needed > 0) {
+            throw new IOException("Invalid UTF-8: the content ends part way through a character!");
+        }
+    }
+
+    private void check(int b) throws IOException {
+        b &= 0xFF;
+        if (needed == 0) {
+            if (b < 0x80) {
+                // ASCII
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                needed = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                needed = 2;
+                lower = b == 0xE0 ? 0xA0 : 0x80;
+                upper = b == 0xED ? 0x9F : 0xBF;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                needed = 3;
+                lower = b == 0xF0 ? 0x90 : 0x80;
+                upper = b == 0xF4 ? 0x8F : 0xBF;
+            } else {
+                throw new IOException("Invalid UTF-8 at byte " + offset + "!");
+            }
+        } else {
+            if (b < lower || b > upper) {
+                throw new IOException("Invalid UTF-8 at byte " + offset + "!");
+            }
+            lower = 0x80;
+            upper = 0xBF;
+            needed --;
+        }
+        offset ++;
+    }
+}
@@ -353,35 +353,43 @@ public class PBCoreDocument {
     }
 
     public static class VariablePrecisionDate {
-        Integer year;
-        Integer month;
-        Integer day;
+        int year;
+        int month;
+        /**
+         * The day, or zero if it isn't known.
+         */
+        int day;
 
         public boolean equals(Object o) {
             if (o instanceof VariablePrecisionDate) {
                 VariablePrecisionDate d = (VariablePrecisionDate) o;
-                return toString().equals(d.toString());
+                return year == d.year && month == d.month && day == d.day;
             }
             return false;
         }
 
         public int hashCode() {
-            return year + (month*10000) + (day * 1000000);
+            return year + (month * 10000) + (day * 1000000);
         }
 
 
         public VariablePrecisionDate(int y, int m) {
             year = y;
             month = m;
-            day = null;
+            day = 0;
         }
         
         public VariablePrecisionDate(int y, int m, int d) {
             year = y;
             month = m;
-            if (d > 0) {
-                day = d;
-            }
+            day = Math.max(d, 0);
+        }
+
+        /**
+         * Gets the date packed into a SortKey (with no ordinal).
+         */
+        public long getSortKey() {
+            return SortKey.pack(year, month, day);
         }
 
         public int getYear() {
@@ -393,11 +401,14 @@ public class PBCoreDocument {
         }
 
         public boolean hasDay() {
-            return day != null;
+            return day != 0;
         }
 
+        /**
+         * @return the day, or null if it isn't known
+         */
         public Integer getDay() {
-            return day;
+            return day == 0 ? null : Integer.valueOf(day);
         }
 
         public String toWC3DTF() {
@@ -411,7 +422,7 @@ public class PBCoreDocument {
         }
 
         public String toString() {
-            return year + "-" + month + "-" + (day == null ? "00" : String.valueOf(day));
+            return year + "-" + month + "-" + (day == 0 ? "00" : String.valueOf(day));
         }
     }
 }
@@ -0,0 +1,77 @@
+package edu.virginia.lib.wsls.spreadsheet;
+
+/**
+ * Packs a year, month, day and ordinal into a single long that sorts (as a
+ * plain long) in the order the objects appear in the collection hierarchy,
+ * so that hierarchy ordering can be done by comparing primitives rather
+ * than by formatting and comparing strings.  Unknown components are zero
+ * and so sort first; values too large for their field (such as the
+ * Integer.MAX_VALUE used to mean "after everything") sort last.
+ *
+ * From the most significant bit: one (zero) sign bit, 20 bits of year,
+ * 5 of month, 6 of day and 32 of ordinal.
+ */
+public final class SortKey {
+
+    private static final int ORDINAL_BITS = 32;
+    private static final int DAY_BITS = 6;
+    private static final int MONTH_BITS = 5;
+    private static final int YEAR_BITS = 20;
+
+    private static final int DAY_SHIFT = ORDINAL_BITS;
+    private static final int MONTH_SHIFT = DAY_SHIFT + DAY_BITS;
+    private static final int YEAR_SHIFT = MONTH_SHIFT + MONTH_BITS;
+
+    private static final long ORDINAL_MASK = (1L << ORDINAL_BITS) - 1;
+
+    private SortKey() {
+    }
+
+    public static long pack(int year, int month, int day) {
+        return pack(year, month, day, 0);
+    }
+
+    /**
+     * @param ordinal a non-negative tie breaker, for instance the position
+     *        of the object's pid amongst those of its siblings
+     */
+    public static long pack(int year, int month, int day, long ordinal) {
+        return ((long) clamp(year, YEAR_BITS) << YEAR_SHIFT)
+                | ((long) clamp(month, MONTH_BITS) << MONTH_SHIFT)
+                | ((long) clamp(day, DAY_BITS) << DAY_SHIFT)
+                | Math.min(Math.max(ordinal, 0), ORDINAL_MASK);
+    }
+
+    public static int getYear(long key) {
+        return (int) (key >>> YEAR_SHIFT);
+    }
+
+    public static int getMonth(long key) {
+        return (int) (key >>> MONTH_SHIFT) & ((1 << MONTH_BITS) - 1);
+    }
+
+    public static int getDay(long key) {
+        return (int) (key >>> DAY_SHIFT) & ((1 << DAY_BITS) - 1);
+    }
+
+    public static long getOrdinal(long key) {
+        return key & ORDINAL_MASK;
+    }
+
+    /**
+     * Returns the key with only the year (depth 1), year and month (depth 2)
+     * or date (depth 3) retained, for ordering at that precision.
+     */
+    public static long truncate(long key, int depth) {
+        int shift = depth <= 0 ? 64 : depth == 1 ? YEAR_SHIFT : depth == 2 ? MONTH_SHIFT : DAY_SHIFT;
+        return shift == 64 ? 0 : (key >>> shift) << shift;
+    }
+
+    public static int compare(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static int clamp(int value, int bits) {
+        return Math.min(Math.max(value, 0), (1 << bits) - 1);
+    }
+}
@@ -0,0 +1,83 @@
+package edu.virginia.lib.wsls.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.virginia.lib.wsls.fedora.IngestPipeline;
+
+/**
+ * A timing harness for the IngestPipeline that stands in for fedora and
+ * ImageMagick with fixed delays: every record spends the given number of
+ * milliseconds generating a thumbnail and then makes the given number of
+ * fedora requests of the given latency.  Records are spread across the
+ * months of the WSLS collection and the harness verifies that those of
+ * each month are written in order.  The batch is run once with a single
+ * worker and once with each of the given worker counts.
+ *
+ * Usage: IngestPipelineBenchmark [records] [thumbnail-ms] [requests] [request-ms] [workers...]
+ */
+public class IngestPipelineBenchmark {
+
+    public static void main(String [] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int thumbnailMs = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int requestMs = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        long baseline = run(records, thumbnailMs, requests, requestMs, 1);
+        if (args.length > 4) {
+            for (int i = 4; i < args.length; i ++) {
+                run(records, thumbnailMs, requests, requestMs, Integer.parseInt(args[i]), baseline);
+            }
+        } else {
+            run(records, thumbnailMs, requests, requestMs, 4, baseline);
+            run(records, thumbnailMs, requests, requestMs, 8, baseline);
+        }
+    }
+
+    private static long run(int records, int thumbnailMs, int requests, int requestMs, int workers) throws Exception {
+        return run(records, thumbnailMs, requests, requestMs, workers, -1);
+    }
+
+    private static long run(int records, final int thumbnailMs, final int requests, final int requestMs, int workers, long baseline) throws Exception {
+        final Map<String, Integer> lastWritten = new HashMap<String, Integer>();
+        IngestPipeline<Integer> pipeline = new IngestPipeline<Integer>(workers,
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer record) throws Exception {
+                        Thread.sleep(thumbnailMs);
+                    }},
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer record) throws Exception {
+                        for (int i = 0; i < requests; i ++) {
+                            Thread.sleep(requestMs);
+                        }
+                    }},
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer record) throws Exception {
+                        Integer previous = lastWritten.put(getMonth(record), record);
+                        if (previous != null && previous > record) {
+                            throw new IllegalStateException("Record " + record + " written after " + previous + "!");
+                        }
+                    }});
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < records; i ++) {
+            pipeline.submit(i, getMonth(i));
+        }
+        pipeline.finish();
+        long ms = System.currentTimeMillis() - start;
+        System.out.println(workers + " worker(s): " + records + " records in " + ms + "ms ("
+                + (ms == 0 ? "-" : String.valueOf((records * 1000L) / ms)) + "/s)"
+                + (baseline > 0 && ms > 0 ? ", " + String.format("%.1f", (double) baseline / ms) + "x" : ""));
+        return ms;
+    }
+
+    /**
+     * Spreads the records across the 264 months from 1950 through 1971 in
+     * runs of 5, roughly the way consecutive master spreadsheet rows share
+     * a month.
+     */
+    private static String getMonth(int record) {
+        int month = (record / 5) % 264;
+        return (1950 + month / 12) + "-" + (1 + month % 12);
+    }
+}
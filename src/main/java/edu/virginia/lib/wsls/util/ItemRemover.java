@@ -4,8 +4,12 @@ import static edu.virginia.lib.wsls.fedora.FedoraHelper.getSubjects;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -13,10 +17,9 @@ import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraCredentials;
 
 import edu.virginia.lib.wsls.datasources.FedoraRepository;
+import edu.virginia.lib.wsls.fedora.ResourceIndexQuery;
 import edu.virginia.lib.wsls.solr.PostSolrDocument;
 
-import static edu.virginia.lib.wsls.fedora.FedoraHelper.getObjects;
-
 public class ItemRemover {
 
     public static final String IS_PART_OF = "info:fedora/fedora-system:def/relations-external#isPartOf";
@@ -47,26 +50,24 @@ public class ItemRemover {
 
 
     public void removeItems(String[] pids) throws Exception {
-        Set<String> ancestorPids = new HashSet<String>();
-        for (String pid : pids) {
-            findAncestors(pid, ancestorPids);
-        }
+        Map<String, List<String>> parents = ResourceIndexQuery.getObjects(fc, Arrays.asList(pids), IS_PART_OF);
+        Set<String> ancestorPids = findAncestors(parents);
         System.out.println(ancestorPids.size() + " ancestors found");
 
         for (String pid : pids) {
-            FedoraClient.purgeRelationship(pid).object("info:fedora/" + getObjects(fc, pid, IS_PART_OF).get(0)).predicate(IS_PART_OF).execute(fc);
+            FedoraClient.purgeRelationship(pid).object("info:fedora/" + parents.get(pid).get(0)).predicate(IS_PART_OF).execute(fc);
             FedoraClient.purgeRelationship(pid).object("info:fedora/uva-lib:pbcore2CModel").predicate("info:fedora/fedora-system:def/model#hasModel").execute(fc); // this will prevent it from being indexed later
             System.out.println("Deleting " + pid + " from index.");
             solr.purgeRecord(pid);
         }
 
         System.out.println("Waiting for RI...");
-        Thread.sleep(30000);
         FedoraRepository fedora = new FedoraRepository(fc, new File("/home/md5wz/Documents/projects/WSLS/Analysis/ProductionPidRegistries"));
+        fedora.waitForResourceIndex();
         fedora.fixRelationships();
 
         System.out.println("Waiting for RI...");
-        Thread.sleep(30000);
+        fedora.waitForResourceIndex();
         for (String pid : ancestorPids) {
             System.out.println("Reindexing " + pid);
             solr.indexPid(pid, fc, true);
@@ -77,17 +78,29 @@ public class ItemRemover {
     private String findAnchorScriptPid(String pid) throws Exception {
         return getSubjects(fc, "http://fedora.lib.virginia.edu/wsls/relationships#isAnchorScriptFor", pid).get(0);
     }
-    private void findAncestors(String pid, Set<String> ancestors) throws Exception {
-        List<String> parents = getObjects(fc, pid, "info:fedora/fedora-system:def/relations-external#isPartOf");
-        if (!parents.isEmpty()) {
-            for (String parentPid : parents) {
-                if (ancestors.contains(parentPid)) {
-                    // already found
-                } else {
-                    findAncestors(parentPid, ancestors);
-                    ancestors.add(parentPid);
+
+    /**
+     * Finds the ancestors of the objects with the given parents, with one
+     * (batched) query per generation rather than one per object.
+     */
+    private Set<String> findAncestors(Map<String, List<String>> parents) throws Exception {
+        Set<String> ancestors = new HashSet<String>();
+        Collection<String> generation = new ArrayList<String>();
+        for (List<String> parentPids : parents.values()) {
+            generation.addAll(parentPids);
+        }
+        while (!generation.isEmpty()) {
+            List<String> next = new ArrayList<String>();
+            for (String parentPid : generation) {
+                if (ancestors.add(parentPid)) {
+                    next.add(parentPid);
                 }
             }
+            generation = new ArrayList<String>();
+            for (List<String> parentPids : ResourceIndexQuery.getObjects(fc, next, IS_PART_OF).values()) {
+                generation.addAll(parentPids);
+            }
         }
+        return ancestors;
     }
 }
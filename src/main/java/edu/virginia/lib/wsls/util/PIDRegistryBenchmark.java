@@ -0,0 +1,144 @@
+package edu.virginia.lib.wsls.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.virginia.lib.wsls.datasources.PIDRegistry;
+import edu.virginia.lib.wsls.datasources.PIDRegistryFactory;
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
+
+/**
+ * A simple timing harness for the PIDRegistry.  It populates a throw-away
+ * registry with the given number of entries (100,000 by default) spread
+ * across years and months the way the WSLS collection is, then times the
+ * lookups that the ingest performs for every record.  Each of the given
+ * backends (both "lucene" and "mapped" by default) is measured in turn so
+ * their insert and lookup throughput can be compared.
+ *
+ * Usage: PIDRegistryBenchmark [entries] [lookups] [backend...]
+ */
+public class PIDRegistryBenchmark {
+
+    public static void main(String [] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+
+        String[] backends = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[] { PIDRegistryFactory.LUCENE, PIDRegistryFactory.MAPPED };
+
+        for (String backend : backends) {
+            File dir = File.createTempFile("pid-registry-benchmark", "");
+            dir.delete();
+            dir.mkdirs();
+            try {
+                System.out.println(backend + ":");
+                new PIDRegistryBenchmark(dir, backend).run(entries, lookups);
+            } finally {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+    }
+
+    private File registryDir;
+
+    private String backend;
+
+    public PIDRegistryBenchmark(File dir, String backend) {
+        registryDir = dir;
+        this.backend = backend;
+    }
+
+    private PIDRegistry open() throws IOException {
+        return PIDRegistryFactory.open(registryDir, backend, new Properties());
+    }
+
+    public void run(int entries, int lookups) throws IOException {
+        PIDRegistry pids = open();
+        try {
+            long start = System.currentTimeMillis();
+            populate(pids, entries);
+            pids.flush();
+            report("populate", entries, System.currentTimeMillis() - start);
+
+            Random r = new Random(1);
+            start = System.currentTimeMillis();
+            for (int i = 0; i < lookups; i ++) {
+                if (pids.getPIDForWSLSID(getId(300 + r.nextInt(entries - 300))) == null) {
+                    throw new IllegalStateException("Missing entry!");
+                }
+            }
+            report("getPIDForWSLSID", lookups, System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < lookups; i ++) {
+                pids.getDateForPid(getPid(300 + r.nextInt(entries - 300)));
+            }
+            report("getDateForPid", lookups, System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < lookups; i ++) {
+                pids.getMonthInsertionPoint("new-month", new VariablePrecisionDate(getYear(i), getMonth(i)));
+            }
+            report("getMonthInsertionPoint", lookups, System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < lookups; i ++) {
+                pids.getYearInsertionPoint("new-year", getYear(i));
+            }
+            report("getYearInsertionPoint", lookups, System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            pids.listAllPids();
+            report("listAllPids", 1, System.currentTimeMillis() - start);
+        } finally {
+            pids.close();
+        }
+
+        long start = System.currentTimeMillis();
+        open().close();
+        report("reopen", 1, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Registers every year and month folder once, then fills the rest of the
+     * registry with item and anchor script entries.
+     */
+    private void populate(PIDRegistry pids, int entries) throws IOException {
+        int i = 0;
+        for (int year = 1950; year < 1972 && i < entries; year ++) {
+            pids.setYearPid(year, "year:" + year);
+            i ++;
+            for (int month = 1; month <= 12 && i < entries; month ++) {
+                pids.setMonthPid(year, month, "month:" + year + "-" + month);
+                i ++;
+            }
+        }
+        for (; i < entries; i ++) {
+            pids.writeKeyPair(getId(i), getPid(i), i % 2 == 0 ? "item" : "script");
+        }
+    }
+
+    private static String getId(int i) {
+        return "benchmark-" + i;
+    }
+
+    private static String getPid(int i) {
+        return "benchmark:" + i;
+    }
+
+    private static int getYear(int i) {
+        return 1950 + (i % 22);
+    }
+
+    private static int getMonth(int i) {
+        return 1 + (i % 12);
+    }
+
+    private static void report(String operation, int count, long ms) {
+        System.out.println("  " + operation + ": " + count + " operations in " + ms + "ms (" + (ms == 0 ? "-" : String.valueOf((count * 1000L) / ms)) + "/s)");
+    }
+}
@@ -0,0 +1,54 @@
+package edu.virginia.lib.wsls.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import edu.virginia.lib.wsls.datasources.PIDRegistry;
+import edu.virginia.lib.wsls.datasources.PIDRegistryFactory;
+
+/**
+ * Exports a PID registry to (or imports one from) a gzipped file in the
+ * format written by PIDRegistry.exportEntries(), for backups or to seed the
+ * registry for a second fedora host.  An import adds to (or replaces
+ * entries in) whatever the target registry already contains.
+ *
+ * Usage: PidRegistryBackup export|import registry-dir backend file
+ */
+public class PidRegistryBackup {
+
+    public static void main(String [] args) throws Exception {
+        if (args.length != 4 || !(args[0].equals("export") || args[0].equals("import"))) {
+            System.err.println("Usage: PidRegistryBackup export|import registry-dir backend file");
+            System.exit(1);
+        }
+        File file = new File(args[3]);
+        PIDRegistry pids = PIDRegistryFactory.open(new File(args[1]), args[2], new Properties());
+        try {
+            long start = System.currentTimeMillis();
+            if (args[0].equals("export")) {
+                OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+                try {
+                    pids.exportEntries(os);
+                } finally {
+                    os.close();
+                }
+                System.out.println("Exported registry to " + file.getPath() + " in " + (System.currentTimeMillis() - start) + "ms.");
+            } else {
+                InputStream is = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    System.out.println("Imported " + pids.importEntries(is) + " entries in " + (System.currentTimeMillis() - start) + "ms.");
+                } finally {
+                    is.close();
+                }
+            }
+        } finally {
+            pids.close();
+        }
+    }
+}
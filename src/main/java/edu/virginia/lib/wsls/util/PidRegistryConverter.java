@@ -0,0 +1,41 @@
+package edu.virginia.lib.wsls.util;
+
+import java.io.File;
+import java.util.Properties;
+
+import edu.virginia.lib.wsls.datasources.PIDRegistry;
+import edu.virginia.lib.wsls.datasources.PIDRegistryFactory;
+
+/**
+ * Copies every entry from a PID registry with one backend into a new
+ * registry with another, for example to switch a host's registry from
+ * lucene to the memory-mapped implementation.  The source is left as it is.
+ *
+ * Usage: PidRegistryConverter source-dir source-backend target-dir target-backend
+ */
+public class PidRegistryConverter {
+
+    public static void main(String [] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: PidRegistryConverter source-dir source-backend target-dir target-backend");
+            System.exit(1);
+        }
+        File targetDir = new File(args[2]);
+        if (targetDir.exists() && targetDir.list().length > 0) {
+            throw new IllegalArgumentException(targetDir.getPath() + " is not empty!");
+        }
+        PIDRegistry source = PIDRegistryFactory.open(new File(args[0]), args[1], new Properties());
+        try {
+            PIDRegistry target = PIDRegistryFactory.open(targetDir, args[3], new Properties());
+            try {
+                long start = System.currentTimeMillis();
+                source.copyTo(target);
+                System.out.println("Copied " + target.listAllPids().size() + " entries in " + (System.currentTimeMillis() - start) + "ms.");
+            } finally {
+                target.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+}
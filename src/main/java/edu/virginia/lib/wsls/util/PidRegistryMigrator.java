@@ -0,0 +1,40 @@
+package edu.virginia.lib.wsls.util;
+
+import java.io.File;
+import java.util.Properties;
+
+import edu.virginia.lib.wsls.datasources.LucenePIDRegistry;
+
+/**
+ * Upgrades every lucene PID registry under the configured "pid-registry-root" (one
+ * per fedora host) to the current index schema.  The original index for each
+ * is left beside it with a ".v1" suffix.
+ *
+ * Usage: PidRegistryMigrator [pid-registry-root]
+ */
+public class PidRegistryMigrator {
+
+    public static void main(String [] args) throws Exception {
+        File root = null;
+        if (args.length > 0) {
+            root = new File(args[0]);
+        } else {
+            Properties p = new Properties();
+            p.load(PidRegistryMigrator.class.getClassLoader().getResourceAsStream("conf/ingest.properties"));
+            root = new File(p.getProperty("pid-registry-root"));
+        }
+        File[] registries = root.listFiles();
+        if (registries == null) {
+            throw new IllegalArgumentException(root.getPath() + " is not a directory!");
+        }
+        for (File dir : registries) {
+            if (dir.isDirectory() && !dir.getName().endsWith(".v1")) {
+                try {
+                    System.out.println("Migrated " + LucenePIDRegistry.migrate(dir) + " entries in " + dir.getPath() + ".");
+                } catch (IllegalStateException ex) {
+                    System.out.println("Skipped " + dir.getPath() + ": " + ex.getMessage());
+                }
+            }
+        }
+    }
+}
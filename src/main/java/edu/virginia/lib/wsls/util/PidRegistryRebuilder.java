@@ -46,29 +46,34 @@ public class PidRegistryRebuilder {
          */
         StringBuffer report = new StringBuffer();
         int i = 0;
-        for (PBCoreSpreadsheetRow r : rows) {
-            String pid = pids.getPIDForWSLSID(r.getId());
-            if (pid != null && r.getProcessingCode() != 4) {
-                PBCoreDocument d = new PBCoreDocument(r);
-                PBCoreDocument.VariablePrecisionDate d1 = d.getAssetVariablePrecisionDate();
-                PBCoreDocument.VariablePrecisionDate d2 = pids.getDateForPid(pid);
-                if (((d1 == null || d2 == null) && d1 != d2) || !d1.equals(d2)) {
-                    if (!testRun) {
-                        System.out.print("O");
-                        pids.setPIDforWSLSID(r.getId(), pid, d);
-                        report.append(r.getId() + " (" + pid + "): " + d2 + " => " + d1 + "\n");
+        pids.beginBulkWrite();
+        try {
+            for (PBCoreSpreadsheetRow r : rows) {
+                String pid = pids.getPIDForWSLSID(r.getId());
+                if (pid != null && r.getProcessingCode() != 4) {
+                    PBCoreDocument d = new PBCoreDocument(r);
+                    PBCoreDocument.VariablePrecisionDate d1 = d.getAssetVariablePrecisionDate();
+                    PBCoreDocument.VariablePrecisionDate d2 = pids.getDateForPid(pid);
+                    if (((d1 == null || d2 == null) && d1 != d2) || !d1.equals(d2)) {
+                        if (!testRun) {
+                            System.out.print("O");
+                            pids.setPIDforWSLSID(r.getId(), pid, d);
+                            report.append(r.getId() + " (" + pid + "): " + d2 + " => " + d1 + "\n");
+                        } else {
+                            System.out.print("X");
+                            report.append(r.getId() + " (" + pid + "): " + d1 + " != " + d2 + "\n");
+                        }
                     } else {
-                        System.out.print("X");
-                        report.append(r.getId() + " (" + pid + "): " + d1 + " != " + d2 + "\n");
+                        System.out.print(".");
                     }
-                } else {
-                    System.out.print(".");
-                }
-                if (++ i % 80 == 0) {
-                    System.out.println();
+                    if (++ i % 80 == 0) {
+                        System.out.println();
+                    }
+                    System.out.flush();
                 }
-                System.out.flush();
             }
+        } finally {
+            pids.endBulkWrite();
         }
         System.out.println("\n\n" + report.toString());
     }
@@ -0,0 +1,86 @@
+package edu.virginia.lib.wsls.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.virginia.lib.wsls.solr.ParallelIndexer;
+import edu.virginia.lib.wsls.solr.SolrUpdateSink;
+
+/**
+ * A timing harness for the ParallelIndexer that stands in for fedora with
+ * fixed delays (the given number of milliseconds for the dissemination of
+ * each document and again for writing it back to its solrArchive) and for
+ * solr with an update handler running in this process.  The documents are
+ * indexed once on a single thread and once with each of the given thread
+ * counts.
+ *
+ * Usage: ReindexBenchmark [documents] [dissemination-ms] [archive-ms] [threads...]
+ */
+public class ReindexBenchmark {
+
+    public static void main(String [] args) throws Exception {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int disseminationMs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int archiveMs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        HttpServer solr = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        solr.createContext("/solr/update", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                IOUtils.toByteArray(in);
+                in.close();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }});
+        solr.start();
+        try {
+            String url = "http://localhost:" + solr.getAddress().getPort() + "/solr/update";
+            long baseline = run(url, documents, disseminationMs, archiveMs, 1, -1);
+            if (args.length > 3) {
+                for (int i = 3; i < args.length; i ++) {
+                    run(url, documents, disseminationMs, archiveMs, Integer.parseInt(args[i]), baseline);
+                }
+            } else {
+                run(url, documents, disseminationMs, archiveMs, 4, baseline);
+                run(url, documents, disseminationMs, archiveMs, 8, baseline);
+            }
+        } finally {
+            solr.stop(0);
+        }
+    }
+
+    private static long run(String url, int documents, final int disseminationMs, final int archiveMs, int threads, long baseline) throws Exception {
+        final SolrUpdateSink sink = new SolrUpdateSink(url);
+        final byte[] document = "<add><doc><field name=\"id\">test</field></doc></add>".getBytes("UTF-8");
+        ParallelIndexer indexer = new ParallelIndexer(threads, new ParallelIndexer.Indexer() {
+            public void index(String pid) throws Exception {
+                Thread.sleep(disseminationMs);
+                Thread.sleep(archiveMs);
+                sink.add(pid, document);
+            }}, null);
+        List<String> pids = new ArrayList<String>();
+        for (int i = 0; i < documents; i ++) {
+            pids.add("test:" + i);
+        }
+        long start = System.currentTimeMillis();
+        indexer.index("documents", pids);
+        sink.flush();
+        long ms = System.currentTimeMillis() - start;
+        if (sink.getPostedCount() != documents) {
+            throw new IllegalStateException(sink.getPostedCount() + " of " + documents + " documents were posted!");
+        }
+        System.out.println(threads + " thread(s): " + documents + " documents in " + ms + "ms ("
+                + (ms == 0 ? "-" : String.valueOf((documents * 1000L) / ms)) + "/s)"
+                + (baseline > 0 && ms > 0 ? ", " + String.format("%.1f", (double) baseline / ms) + "x" : ""));
+        return ms;
+    }
+}
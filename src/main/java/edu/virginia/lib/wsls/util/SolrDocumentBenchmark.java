@@ -0,0 +1,65 @@
+package edu.virginia.lib.wsls.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.virginia.lib.wsls.solr.SolrDocumentGenerator;
+
+/**
+ * A timing harness for generating solr add documents from a PBCore record,
+ * comparing compiling the stylesheet for every document (as the Saxon
+ * servlet behind the getIndexingMetadata dissemination does, because it's
+ * called with clear-stylesheet-cache=yes) with the SolrDocumentGenerator,
+ * which compiles it once.  The stylesheet would typically be a copy of the
+ * XSLT datastream of uva-lib:wslsPBCore2IndexableSDep and the record a
+ * metadata datastream; fedora isn't involved.
+ *
+ * Usage: SolrDocumentBenchmark stylesheet pbcore-file [documents]
+ */
+public class SolrDocumentBenchmark {
+
+    public static void main(String [] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: SolrDocumentBenchmark stylesheet pbcore-file [documents]");
+            return;
+        }
+        String stylesheet = new File(args[0]).exists() ? new File(args[0]).toURI().toString() : args[0];
+        byte[] pbcore = FileUtils.readFileToByteArray(new File(args[1]));
+        int documents = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        for (int i = 0; i < documents; i ++) {
+            TransformerFactory tFactory = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+            Transformer t = tFactory.newTemplates(new StreamSource(stylesheet)).newTransformer();
+            t.setParameter("pid", "test:" + i);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            t.transform(new StreamSource(new ByteArrayInputStream(pbcore)), new StreamResult(out));
+            bytes += out.size();
+        }
+        report("compiled per document", documents, bytes, System.currentTimeMillis() - start);
+
+        SolrDocumentGenerator generator = new SolrDocumentGenerator(null, null, stylesheet);
+        start = System.currentTimeMillis();
+        bytes = 0;
+        for (int i = 0; i < documents; i ++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            generator.generate("test:" + i, new StreamSource(new ByteArrayInputStream(pbcore)), out);
+            bytes += out.size();
+        }
+        report("compiled once", documents, bytes, System.currentTimeMillis() - start);
+    }
+
+    private static void report(String name, int documents, long bytes, long ms) {
+        System.out.println(name + ": " + documents + " documents (" + bytes + " bytes) in " + ms + "ms ("
+                + (ms == 0 ? "-" : String.valueOf((documents * 1000L) / ms)) + "/s)");
+    }
+}
@@ -0,0 +1,103 @@
+package edu.virginia.lib.wsls.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import edu.virginia.lib.wsls.solr.SolrPayload;
+
+/**
+ * Measures the time taken and memory allocated to read a solr document of
+ * the given size on its way to the index, the way PostSolrDocument.indexPid
+ * used to (buffering it, then copying it for the solrArchive, to decode it
+ * line by line to validate it and for the request) and through a
+ * SolrPayload (validating it as it's read into the chunks that are
+ * posted).  The solrArchive write-back, which now goes to a file, is
+ * discarded.  Allocation is only reported where the JVM can measure it.
+ *
+ * Usage: SolrPayloadBenchmark [document-kb] [documents]
+ */
+public class SolrPayloadBenchmark {
+
+    public static void main(String [] args) throws Exception {
+        int kb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int documents = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        StringBuffer text = new StringBuffer("<add><doc>");
+        while (text.length() < kb * 1024) {
+            text.append("<field name=\"text\">Caf\u00e9 news film, Roanoke \u2013 1962</field>\n");
+        }
+        text.append("</doc></add>");
+        final byte[] document = text.toString().getBytes("UTF-8");
+
+        // warm up
+        for (int i = 0; i < 100; i ++) {
+            buffered(document);
+            streamed(document);
+        }
+
+        run("buffered", document, documents, false);
+        run("streamed", document, documents, true);
+    }
+
+    private static void run(String name, byte[] document, int documents, boolean streamed) throws Exception {
+        long allocated = getAllocatedBytes();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < documents; i ++) {
+            if (streamed) {
+                streamed(document);
+            } else {
+                buffered(document);
+            }
+        }
+        long ms = System.currentTimeMillis() - start;
+        allocated = allocated < 0 ? -1 : (getAllocatedBytes() - allocated) / documents;
+        System.out.println(name + ": " + documents + " documents of " + document.length + " bytes in " + ms + "ms"
+                + (allocated < 0 ? "" : ", " + allocated + " bytes allocated per document ("
+                + String.format("%.1f", (double) allocated / document.length) + " times its size)"));
+    }
+
+    /**
+     * What indexPid used to do.
+     */
+    private static Object buffered(byte[] document) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IOUtils.copy(new ByteArrayInputStream(document), baos);
+        String archive = new String(baos.toByteArray(), "UTF-8");
+        CharsetDecoder d = Charset.forName("UTF-8").newDecoder();
+        d.onMalformedInput(CodingErrorAction.REPORT);
+        d.onUnmappableCharacter(CodingErrorAction.REPORT);
+        IOUtils.readLines(new InputStreamReader(new ByteArrayInputStream(baos.toByteArray()), d));
+        return new Object[] { archive, baos.toByteArray() };
+    }
+
+    private static Object streamed(byte[] document) throws Exception {
+        SolrPayload payload = new SolrPayload();
+        OutputStream out = payload.open(new NullOutputStream());
+        IOUtils.copy(new ByteArrayInputStream(document), out);
+        out.close();
+        return payload;
+    }
+
+    /**
+     * Gets the bytes allocated so far by this thread, or -1 if the JVM
+     * doesn't report it (it's an extension of the standard ThreadMXBean).
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package edu.virginia.lib.wsls.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import com.ibm.icu.text.DecimalFormat;
+
+import edu.virginia.lib.wsls.spreadsheet.SortKey;
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
+
+/**
+ * A timing harness comparing the two ways of ordering the children of a
+ * folder by date (to the day) and then pid: formatting each date and
+ * comparing strings, as RelationshipValidator used to on every comparison,
+ * and comparing SortKeys computed once per child.  Each is used to sort
+ * the given number of children (spread over a month) the given number of
+ * times, and the time taken and (where the JVM can measure it) the memory
+ * allocated are reported.
+ *
+ * Usage: SortKeyBenchmark [children] [sorts]
+ */
+public class SortKeyBenchmark {
+
+    public static void main(String [] args) throws Exception {
+        int children = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int sorts = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Random r = new Random(1);
+        List<Child> list = new ArrayList<Child>();
+        for (int i = 0; i < children; i ++) {
+            list.add(new Child("uva-lib:" + (2000000 + r.nextInt(1000000)), new VariablePrecisionDate(1960, 8, 1 + r.nextInt(31))));
+        }
+
+        Comparator<Child> formatted = new Comparator<Child>() {
+            public int compare(Child a, Child b) {
+                DecimalFormat YF = new DecimalFormat("0000");
+                DecimalFormat DF = new DecimalFormat("00");
+                return (YF.format(a.d.getYear()) + DF.format(a.d.getMonth()) + DF.format(a.d.getDay()) + a.pid).compareTo(YF.format(b.d.getYear()) + DF.format(b.d.getMonth()) + DF.format(b.d.getDay()) + b.pid);
+            }};
+        Comparator<Child> packed = new Comparator<Child>() {
+            public int compare(Child a, Child b) {
+                int result = SortKey.compare(a.key, b.key);
+                return result != 0 ? result : a.pid.compareTo(b.pid);
+            }};
+
+        // warm up, and check that both give the same order
+        List<Child> expected = sort(list, formatted, new Random(2));
+        if (!expected.equals(sort(list, packed, new Random(2)))) {
+            throw new IllegalStateException("The orders differ!");
+        }
+
+        run("formatted strings", list, formatted, sorts);
+        run("packed keys", list, packed, sorts);
+    }
+
+    private static void run(String name, List<Child> list, Comparator<Child> comparator, int sorts) {
+        Random r = new Random(3);
+        long allocated = getAllocatedBytes();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < sorts; i ++) {
+            sort(list, comparator, r);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        allocated = allocated < 0 ? -1 : getAllocatedBytes() - allocated;
+        System.out.println(name + ": " + sorts + " sorts of " + list.size() + " children in " + elapsed + "ms ("
+                + ((double) elapsed / sorts) + "ms per sort)" + (allocated < 0 ? "" : ", " + (allocated / sorts) + " bytes allocated per sort"));
+    }
+
+    private static List<Child> sort(List<Child> list, Comparator<Child> comparator, Random r) {
+        List<Child> copy = new ArrayList<Child>(list);
+        Collections.shuffle(copy, r);
+        Collections.sort(copy, comparator);
+        return copy;
+    }
+
+    /**
+     * Gets the bytes allocated so far by this thread, or -1 if the JVM
+     * doesn't report it (it's an extension of the standard ThreadMXBean).
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return -1;
+        }
+    }
+
+    private static class Child {
+        String pid;
+        VariablePrecisionDate d;
+        long key;
+
+        Child(String pid, VariablePrecisionDate d) {
+            this.pid = pid;
+            this.d = d;
+            key = d.getSortKey();
+        }
+    }
+}
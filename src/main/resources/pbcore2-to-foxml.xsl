@@ -12,6 +12,11 @@
     <xsl:param name="label" />
     <xsl:param name="metadataCModel">uva-lib:pbcore2CModel</xsl:param>
     <xsl:param name="structuralCModel">uva-lib:eadItemCModel</xsl:param>
+    <!-- the base64 encoded bytes of the metadata datastream, exactly as they
+         would be uploaded to update it, so that fedora's checksum of them
+         matches -->
+    <xsl:param name="metadata" required="yes" />
+    <xsl:param name="metadataLabel" required="yes" />
 
     <xsl:output encoding="UTF-8" version="1.0" />
     
@@ -71,8 +76,10 @@
                 </foxml:datastreamVersion>
             </foxml:datastream>
             <foxml:datastream ID="metadata" STATE="A" CONTROL_GROUP="M" VERSIONABLE="true">
-                <foxml:datastreamVersion ID="metadata1.0" LABEL="PBCore 2.0 metadata" MIMETYPE="text/xml">
-                    <foxml:xmlContent><xsl:copy-of select="current()" /></foxml:xmlContent>
+                <foxml:datastreamVersion ID="metadata1.0" MIMETYPE="text/xml">
+                    <xsl:attribute name="LABEL" select="$metadataLabel" />
+                    <foxml:contentDigest TYPE="MD5" />
+                    <foxml:binaryContent><xsl:value-of select="$metadata" /></foxml:binaryContent>
                 </foxml:datastreamVersion>
             </foxml:datastream>
         </foxml:digitalObject>
@@ -0,0 +1,109 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+
+import junit.framework.Assert;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument;
+
+public class FoxmlBuilderTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testVideoObjectFoxml() throws Exception {
+        byte[] pbcore = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<pbcoreDescriptionDocument xmlns=\"" + PBCoreDocument.PBCORE_NS + "\">\n"
+                + "    <pbcoreTitle>Test Title \u00e9</pbcoreTitle>\n</pbcoreDescriptionDocument>\n").getBytes("UTF-8");
+
+        Document foxml = parse(FoxmlBuilder.getVideoObjectFoxml("test:1", "1234_1", pbcore, "test:month").getBytes("UTF-8"));
+        XPath xpath = getXPath();
+        Assert.assertEquals("test:1", xpath.evaluate("/foxml:digitalObject/@PID", foxml));
+        Assert.assertEquals("info:fedora/test:month", xpath.evaluate("//rdf:Description/fedora:isPartOf/@rdf:resource", foxml));
+        Assert.assertEquals("2", xpath.evaluate("count(//rdf:Description/model:hasModel)", foxml));
+        Assert.assertTrue("The metadata must be stored exactly as it would be uploaded.", java.util.Arrays.equals(pbcore, Base64.decodeBase64(xpath.evaluate("//foxml:datastream[@ID='metadata']//foxml:binaryContent", foxml))));
+        Assert.assertEquals(FoxmlBuilder.METADATA_LABEL, xpath.evaluate("//foxml:datastream[@ID='metadata']/foxml:datastreamVersion/@LABEL", foxml));
+
+        // the compiled stylesheet is reused
+        foxml = parse(FoxmlBuilder.getVideoObjectFoxml("test:2", "1234_2", pbcore, "test:month").getBytes("UTF-8"));
+        Assert.assertEquals("info:fedora/test:2", xpath.evaluate("//rdf:Description/@rdf:about", foxml));
+        Assert.assertEquals("The first object follows nothing.", "0", xpath.evaluate("count(//rdf:Description/*[local-name()='follows'])", foxml));
+
+        foxml = parse(FoxmlBuilder.getVideoObjectFoxml("test:3", "1234_3", pbcore, "test:month", "test:2").getBytes("UTF-8"));
+        Assert.assertEquals("info:fedora/test:2", xpath.evaluate("//rdf:Description/*[local-name()='follows']/@rdf:resource", foxml));
+    }
+
+    @Test
+    public void testAnchorScriptFoxml() throws Exception {
+        byte[] pdfBytes = new byte[100000];
+        new Random(1).nextBytes(pdfBytes);
+        File pdf = tempFolder.newFile("script.pdf");
+        FileUtils.writeByteArrayToFile(pdf, pdfBytes);
+        File txt = tempFolder.newFile("script.txt");
+        FileUtils.writeStringToFile(txt, "Anchor script text", "UTF-8");
+        File thumbnail = tempFolder.newFile("thumbnail.png");
+        FileUtils.writeByteArrayToFile(thumbnail, new byte[] { 1, 2 });
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        FoxmlBuilder.writeAnchorScriptFoxml("test:3", "test:1", pdf, txt, thumbnail, baos);
+        Document foxml = parse(baos.toByteArray());
+        XPath xpath = getXPath();
+        Assert.assertEquals("info:fedora/test:1", xpath.evaluate("//rdf:Description/wsls:isAnchorScriptFor/@rdf:resource", foxml));
+        Assert.assertEquals("info:fedora/" + FoxmlBuilder.SCRIPT_CMODEL, xpath.evaluate("//rdf:Description/model:hasModel/@rdf:resource", foxml));
+        Assert.assertTrue("PDF content must be preserved.", java.util.Arrays.equals(pdfBytes, Base64.decodeBase64(xpath.evaluate("//foxml:datastream[@ID='scriptPDF']//foxml:binaryContent", foxml))));
+        Assert.assertEquals("Anchor script text", new String(Base64.decodeBase64(xpath.evaluate("//foxml:datastream[@ID='scriptTXT']//foxml:binaryContent", foxml)), "UTF-8"));
+        Assert.assertEquals(2, Base64.decodeBase64(xpath.evaluate("//foxml:datastream[@ID='thumbnail']//foxml:binaryContent", foxml)).length);
+    }
+
+    private Document parse(byte[] xml) throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        return f.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+    }
+
+    private XPath getXPath() {
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(new NamespaceContext() {
+            public String getNamespaceURI(String prefix) {
+                if (prefix.equals("foxml")) {
+                    return FoxmlBuilder.FOXML_NS;
+                } else if (prefix.equals("rdf")) {
+                    return FoxmlBuilder.RDF_NS;
+                } else if (prefix.equals("fedora")) {
+                    return FedoraRepository.FEDORA_RELS;
+                } else if (prefix.equals("model")) {
+                    return FedoraRepository.FEDORA_MODEL;
+                } else if (prefix.equals("wsls")) {
+                    return FedoraRepository.WSLS_RELS;
+                } else if (prefix.equals("pbcore")) {
+                    return PBCoreDocument.PBCORE_NS;
+                }
+                return null;
+            }
+
+            public String getPrefix(String uri) {
+                return null;
+            }
+
+            public Iterator getPrefixes(String uri) {
+                return null;
+            }});
+        return xpath;
+    }
+}
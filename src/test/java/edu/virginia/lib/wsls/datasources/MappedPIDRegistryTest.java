@@ -0,0 +1,154 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
+
+public class MappedPIDRegistryTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testLookups() throws IOException {
+        PIDRegistry pidReg = new MappedPIDRegistry(tempFolder.newFolder("lookups"));
+        try {
+            Assert.assertNull("Collection PID must be null before set.", pidReg.getWSLSCollectionPid());
+            pidReg.setWSLSCollectionPid("uva-lib:collection");
+            pidReg.setMonthPid(1960, 8, "uva-lib:aug");
+            Assert.assertEquals("The collection pid must be stored accurately.", "uva-lib:collection", pidReg.getWSLSCollectionPid());
+            Assert.assertEquals("The month pid must be stored accurately.", "uva-lib:aug", pidReg.getMonthPid(1960, 8));
+            Assert.assertEquals("The month date must be stored accurately.", new VariablePrecisionDate(1960, 8), pidReg.getDateForPid("uva-lib:aug"));
+            try {
+                pidReg.getDateForPid("uva-lib:missing");
+                Assert.fail("An unknown PID must be rejected.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        } finally {
+            pidReg.close();
+        }
+    }
+
+    @Test
+    public void testReplacementAndGrowth() throws IOException {
+        File dir = tempFolder.newFolder("growth");
+        PIDRegistry pidReg = new MappedPIDRegistry(dir);
+        for (int i = 0; i < 5000; i ++) {
+            pidReg.writeKeyPair("id-" + i, "old:" + i, "item");
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            pidReg.writeKeyPair("id-" + i, "new:" + i, "item");
+        }
+        pidReg.close();
+
+        pidReg = new MappedPIDRegistry(dir);
+        try {
+            Assert.assertEquals("Replaced entries must be found.", "new:0", pidReg.getPIDForWSLSID("id-0"));
+            Assert.assertEquals("Other entries must be found.", "old:4999", pidReg.getPIDForWSLSID("id-4999"));
+            Assert.assertEquals("Replaced entries must only be listed once.", 5000, pidReg.listAllPids().size());
+            try {
+                pidReg.getDateForPid("old:0");
+                Assert.fail("A replaced PID must no longer be known.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        } finally {
+            pidReg.close();
+        }
+    }
+
+    @Test
+    public void testOrderingAcrossFlushes() throws IOException {
+        File dir = tempFolder.newFolder("ordering");
+        PIDRegistry pidReg = new MappedPIDRegistry(dir);
+        pidReg.setYearPid(1900, "1900");
+        pidReg.flush();
+        pidReg.setYearPid(1950, "1950");
+        Assert.assertEquals("1920 is after 1900.", "1900", pidReg.getYearInsertionPoint("1920", 1920)[0]);
+        Assert.assertEquals("1920 is before 1950.", "1950", pidReg.getYearInsertionPoint("1920", 1920)[1]);
+        pidReg.close();
+
+        pidReg = new MappedPIDRegistry(dir);
+        try {
+            pidReg.setYearPid(1930, "1930");
+            Assert.assertEquals("1920 is before 1930.", "1930", pidReg.getYearInsertionPoint("1920", 1920)[1]);
+            pidReg.setYearPid(1930, "1930-moved");
+            Assert.assertEquals("A replaced PID must not be a neighbour.", "1930-moved", pidReg.getYearInsertionPoint("1920", 1920)[1]);
+            Assert.assertEquals("An entry is never its own neighbour.", "1950", pidReg.getYearInsertionPoint("1930-moved", 1930)[1]);
+        } finally {
+            pidReg.close();
+        }
+    }
+
+    @Test
+    public void testHashTableRecovery() throws IOException {
+        File dir = tempFolder.newFolder("recovery");
+        PIDRegistry pidReg = new MappedPIDRegistry(dir);
+        for (int i = 0; i < 100; i ++) {
+            pidReg.writeKeyPair("id-" + i, "pid:" + i, "item");
+        }
+        pidReg.flush();
+        File staleIds = new File(tempFolder.getRoot(), "ids.hash");
+        FileUtils.copyFile(new File(dir, "ids.hash"), staleIds);
+        // enough to rehash the tables
+        for (int i = 100; i < 2000; i ++) {
+            pidReg.writeKeyPair("id-" + i, "pid:" + i, "item");
+        }
+        pidReg.writeKeyPair("id-0", "pid:moved", "item");
+        pidReg.close();
+
+        // as though the process stopped before the tables were written
+        FileUtils.copyFile(staleIds, new File(dir, "ids.hash"));
+        pidReg = new MappedPIDRegistry(dir);
+        try {
+            Assert.assertEquals("Entries missing from a stale table must be found.", "pid:1999", pidReg.getPIDForWSLSID("id-1999"));
+            Assert.assertEquals("Entries replaced since a table was written must be found.", "pid:moved", pidReg.getPIDForWSLSID("id-0"));
+            Assert.assertEquals("Entries must only be listed once.", 2000, pidReg.listAllPids().size());
+        } finally {
+            pidReg.close();
+        }
+
+        // as though the process stopped while a table was being replaced
+        // (an unknown PID would be rejected)
+        new File(dir, "pids.hash").delete();
+        pidReg = new MappedPIDRegistry(dir);
+        try {
+            pidReg.getDateForPid("pid:1999");
+            Assert.assertEquals("Entries must be found.", "pid:1", pidReg.getPIDForWSLSID("id-1"));
+            try {
+                pidReg.getDateForPid("pid:0");
+                Assert.fail("A replaced PID must not be found in a rebuilt table.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        } finally {
+            pidReg.close();
+        }
+    }
+
+    @Test
+    public void testConversion() throws IOException {
+        PIDRegistry lucene = new LucenePIDRegistry(tempFolder.newFolder("lucene"));
+        lucene.setYearPid(1961, "uva-lib:1961");
+        lucene.setAnchorPIDForWSLSID("0001", "uva-lib:anchor");
+        PIDRegistry mapped = new MappedPIDRegistry(tempFolder.newFolder("mapped"));
+        try {
+            lucene.copyTo(mapped);
+            Assert.assertEquals("Entries must be copied.", lucene.listAllPids(), mapped.listAllPids());
+            Assert.assertEquals("Dates must be copied.", new VariablePrecisionDate(1961, 0), mapped.getDateForPid("uva-lib:1961"));
+            Assert.assertEquals("Ids must be copied.", "uva-lib:anchor", mapped.getAnchorPIDForWSLSID("0001"));
+        } finally {
+            mapped.close();
+            lucene.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package edu.virginia.lib.wsls.datasources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PIDAllocatorTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testLuceneReservations() throws Exception {
+        testReservations(tempFolder.newFolder("lucene"), PIDRegistryFactory.LUCENE);
+    }
+
+    @Test
+    public void testMappedReservations() throws Exception {
+        testReservations(tempFolder.newFolder("mapped"), PIDRegistryFactory.MAPPED);
+    }
+
+    private void testReservations(File dir, String backend) throws Exception {
+        PIDRegistry registry = PIDRegistryFactory.open(dir, backend, new java.util.Properties());
+        try {
+            registry.setWSLSCollectionPid("test:collection");
+            TestAllocator allocator = new TestAllocator(registry, 3);
+            Assert.assertEquals("test:1", allocator.nextPid());
+            Assert.assertEquals("test:2", allocator.nextPid());
+            Assert.assertEquals("One block must have been reserved.", 1, allocator.requests);
+            allocator.release();
+            Assert.assertEquals("The unused PID must be recorded.", Arrays.asList("test:3"), registry.getReservedPids());
+            Assert.assertEquals("Reserved PIDs aren't listed.", Arrays.asList("test:collection"), registry.listAllPids());
+            ByteArrayOutputStream dump = new ByteArrayOutputStream();
+            registry.dumpIndex(dump);
+            Assert.assertFalse("Reserved PIDs aren't entries.", dump.toString("UTF-8").contains("test:3"));
+        } finally {
+            registry.close();
+        }
+
+        registry = PIDRegistryFactory.open(dir, backend, new java.util.Properties());
+        try {
+            TestAllocator allocator = new TestAllocator(registry, 3);
+            allocator.next = 4;
+            Assert.assertEquals("Unused PIDs must be handed out first.", "test:3", allocator.nextPid());
+            Assert.assertTrue("PIDs in use must not be recorded as reserved.", registry.getReservedPids().isEmpty());
+            Assert.assertEquals("test:4", allocator.nextPid());
+            Assert.assertEquals(1, allocator.requests);
+            allocator.release();
+            Assert.assertEquals(Arrays.asList("test:5", "test:6"), registry.getReservedPids());
+        } finally {
+            registry.close();
+        }
+    }
+
+    private static class TestAllocator extends PIDAllocator {
+
+        private int next = 1;
+
+        private int requests = 0;
+
+        public TestAllocator(PIDRegistry registry, int blockSize) {
+            super(null, registry, blockSize);
+        }
+
+        protected List<String> reserve(int count) {
+            requests ++;
+            List<String> pids = new ArrayList<String>();
+            for (int i = 0; i < count; i ++) {
+                pids.add("test:" + next ++);
+            }
+            return pids;
+        }
+    }
+}
@@ -1,15 +1,33 @@
 package edu.virginia.lib.wsls.datasources;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import junit.framework.Assert;
 
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -31,7 +49,7 @@ public class PIDRegistryTest {
     @Before
     public void setUpPIDRegistry() throws IOException, ParserConfigurationException, URISyntaxException {
         File luceneDir = tempFolder.newFolder("luceneDir");
-        pidReg = new PIDRegistry(luceneDir);
+        pidReg = new LucenePIDRegistry(luceneDir);
 
         m = new GoogleMetadata(new File(getClass().getClassLoader().getResource("5record.xlsx").toURI()));
     }
@@ -162,4 +180,243 @@ public class PIDRegistryTest {
         pidReg.setMonthPid(1980, 1, "Jan-1980");
         
     }
+
+    @Test
+    public void testUncommittedWritesAreVisible() throws IOException {
+        PIDRegistry batched = new LucenePIDRegistry(tempFolder.newFolder("batched"), 100, Long.MAX_VALUE);
+        try {
+            batched.setYearPid(1960, "year-1960");
+            Assert.assertEquals("Writes must be visible before they are committed.", "year-1960", batched.getYearPid(1960));
+            batched.flush();
+            Assert.assertEquals("Writes must be visible after they are committed.", "year-1960", batched.getYearPid(1960));
+        } finally {
+            batched.close();
+        }
+    }
+
+    @Test
+    public void testJournalRecovery() throws IOException {
+        File dir = tempFolder.newFolder("crashed");
+        FileOutputStream journal = new FileOutputStream(new File(dir, "registry.journal"));
+        journal.write("year-1961\tuva-lib:1961\tyear\t1961\t0\t0\nyear-1962\tuva-lib:19".getBytes("UTF-8"));
+        journal.close();
+
+        PIDRegistry recovered = new LucenePIDRegistry(dir);
+        try {
+            Assert.assertEquals("Journaled writes must be recovered.", "uva-lib:1961", recovered.getYearPid(1961));
+            Assert.assertNull("Partially journaled writes must be ignored.", recovered.getYearPid(1962));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    public void testEntriesAreReloaded() throws IOException {
+        File dir = tempFolder.newFolder("reopened");
+        PIDRegistry first = new LucenePIDRegistry(dir);
+        first.setMonthPid(1963, 5, "uva-lib:old-may");
+        first.setMonthPid(1963, 5, "uva-lib:may");
+        first.close();
+
+        PIDRegistry second = new LucenePIDRegistry(dir);
+        try {
+            Assert.assertEquals("Entries must be loaded when the registry is opened.", "uva-lib:may", second.getMonthPid(1963, 5));
+            Assert.assertEquals("Dates must be loaded when the registry is opened.", new VariablePrecisionDate(1963, 5), second.getDateForPid("uva-lib:may"));
+            try {
+                second.getDateForPid("uva-lib:old-may");
+                Assert.fail("A replaced PID must no longer be known.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void testUndatedItemOrdering() throws IOException {
+        pidReg.writeKeyPair("b", "test:b", "item");
+        pidReg.writeKeyPair("d", "test:d", "item");
+        Assert.assertEquals("Undated items are sorted by pid.", "test:b", pidReg.getItemInsertionPoint("test:c", null)[0]);
+        Assert.assertEquals("Undated items are sorted by pid.", "test:d", pidReg.getItemInsertionPoint("test:c", null)[1]);
+        Assert.assertNull("test:a should be the first undated item.", pidReg.getItemInsertionPoint("test:a", null)[0]);
+        Assert.assertEquals("An item is never its own neighbour.", "test:d", pidReg.getItemInsertionPoint("test:b", null)[1]);
+        Assert.assertNull("An item is never its own neighbour.", pidReg.getItemInsertionPoint("test:b", null)[0]);
+    }
+
+    @Test
+    public void testItemDates() throws IOException {
+        pidReg.writeKeyPair("a", "test:a", new VariablePrecisionDate(1975, 3, 12), "item");
+        pidReg.writeKeyPair("b", "test:b", "item");
+        pidReg.setMonthPid(1975, 3, "test:month");
+        Map<String, VariablePrecisionDate> dates = pidReg.getItemDates();
+        Assert.assertEquals("Only items should be included.", 2, dates.size());
+        Assert.assertEquals(Integer.valueOf(12), dates.get("test:a").getDay());
+        Assert.assertEquals("Undated items have a year of zero.", 0, dates.get("test:b").getYear());
+    }
+
+    @Test
+    public void testMigration() throws IOException {
+        File dir = tempFolder.newFolder("v1");
+        IndexWriter w = new IndexWriter(FSDirectory.open(dir), new IndexWriterConfig(Version.LUCENE_43, new StandardAnalyzer(Version.LUCENE_43)));
+        Document doc = new Document();
+        doc.add(new StringField("id", "year-1964", Field.Store.YES));
+        doc.add(new StringField("pid", "uva-lib:1964", Field.Store.YES));
+        doc.add(new IntField("year", 1964, Field.Store.YES));
+        doc.add(new IntField("month", 0, Field.Store.YES));
+        doc.add(new IntField("day", 0, Field.Store.YES));
+        doc.add(new StringField("type", "year", Field.Store.YES));
+        w.addDocument(doc);
+        w.close();
+
+        try {
+            new LucenePIDRegistry(dir);
+            Assert.fail("A registry with the old schema must not be opened.");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        Assert.assertEquals("Every entry must be migrated.", 1, LucenePIDRegistry.migrate(dir));
+        Assert.assertTrue("The old registry must be kept.", new File(dir.getParentFile(), "v1.v1").isDirectory());
+        PIDRegistry migrated = new LucenePIDRegistry(dir);
+        try {
+            Assert.assertEquals("Migrated entries must be found.", "uva-lib:1964", migrated.getYearPid(1964));
+            Assert.assertEquals("Migrated dates must be kept.", new VariablePrecisionDate(1964, 0), migrated.getDateForPid("uva-lib:1964"));
+            Assert.assertEquals("Migrated entries must be listed.", 1, migrated.listAllPids().size());
+        } finally {
+            migrated.close();
+        }
+    }
+
+    @Test
+    public void testExportImport() throws IOException {
+        pidReg.setYearPid(1965, "uva-lib:1965");
+        pidReg.setMonthPid(1965, 2, "uva-lib:1965-02");
+        pidReg.writeKeyPair("0001", "uva-lib:item", new VariablePrecisionDate(1965, 2, 14), "item");
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        pidReg.exportEntries(export);
+
+        PIDRegistry restored = new LucenePIDRegistry(tempFolder.newFolder("restored"));
+        try {
+            Assert.assertEquals("Every entry must be imported.", 3, restored.importEntries(new ByteArrayInputStream(export.toByteArray())));
+            Assert.assertEquals("Imported entries must be listed.", pidReg.listAllPids(), restored.listAllPids());
+            Assert.assertEquals("Imported dates must be kept.", new VariablePrecisionDate(1965, 2, 14), restored.getDateForPid("uva-lib:item"));
+            Assert.assertEquals("Imported entries must be ordered.", "uva-lib:item", restored.getItemInsertionPoint("uva-lib:item2", new VariablePrecisionDate(1965, 2, 20))[0]);
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void testMalformedImport() throws IOException {
+        pidReg.setYearPid(1965, "uva-lib:1965");
+        pidReg.writeKeyPair("0001", "uva-lib:item", new VariablePrecisionDate(1965, 2, 14), "item");
+        ByteArrayOutputStream export = new ByteArrayOutputStream();
+        pidReg.exportEntries(export);
+        byte[] complete = export.toByteArray();
+
+        testMalformedImport(complete, tempFolder.newFolder("malformed-lucene"), PIDRegistryFactory.LUCENE);
+        testMalformedImport(complete, tempFolder.newFolder("malformed-mapped"), PIDRegistryFactory.MAPPED);
+    }
+
+    private void testMalformedImport(byte[] complete, File dir, String backend) throws IOException {
+        PIDRegistry restored = PIDRegistryFactory.open(dir, backend, new Properties());
+        try {
+            restored.setYearPid(1970, "uva-lib:1970");
+            byte[] truncated = new byte[complete.length - 8];
+            System.arraycopy(complete, 0, truncated, 0, truncated.length);
+            try {
+                restored.importEntries(new ByteArrayInputStream(truncated));
+                Assert.fail("A truncated export must be rejected.");
+            } catch (IOException ex) {
+                // expected
+            }
+            ByteArrayOutputStream bad = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(bad);
+            gzip.write((AbstractPIDRegistry.EXPORT_FORMAT + "\t" + AbstractPIDRegistry.EXPORT_VERSION + "\n"
+                    + "year-1965\tuva-lib:1965\tyear\t1965\t0\t0\n"
+                    + "0001\tuva-lib:item\titem\t1965\tFeb\t14\n").getBytes("UTF-8"));
+            gzip.close();
+            try {
+                restored.importEntries(new ByteArrayInputStream(bad.toByteArray()));
+                Assert.fail("A malformed export must be rejected.");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            Assert.assertEquals("Nothing must be imported from a rejected export (" + backend + ").", Collections.singletonList("uva-lib:1970"), restored.listAllPids());
+            Assert.assertNull(restored.getYearPid(1965));
+            restored.setYearPid(1971, "uva-lib:1971");
+        } finally {
+            restored.close();
+        }
+
+        restored = PIDRegistryFactory.open(dir, backend, new Properties());
+        try {
+            Assert.assertEquals("The registry must remain usable after a rejected import (" + backend + ").", Arrays.asList("uva-lib:1970", "uva-lib:1971"), restored.listAllPids());
+            Assert.assertNull(restored.getPIDForWSLSID("0001"));
+        } finally {
+            restored.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentGetOrCreate() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final PIDRegistry.PIDCreator creator = new PIDRegistry.PIDCreator() {
+            public String create() throws Exception {
+                Thread.sleep(50);
+                return "uva-lib:created-" + created.incrementAndGet();
+            }
+            public void initialize(String pid) {
+            }};
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i ++) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        results.add(pidReg.getOrCreateMonthPid(1970, 1, creator));
+                        pidReg.writeKeyPair("item-" + getName(), "uva-lib:item-" + getName(), "item");
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }};
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals("Only one folder must be created.", 1, created.get());
+        Assert.assertEquals("Every caller must get a PID.", 8, results.size());
+        for (String pid : results) {
+            Assert.assertEquals("Every caller must get the same PID.", "uva-lib:created-1", pid);
+        }
+        Assert.assertEquals("The created folder must be registered.", new VariablePrecisionDate(1970, 1), pidReg.getDateForPid("uva-lib:created-1"));
+        Assert.assertEquals("Concurrent writes must all be kept.", 9, pidReg.listAllPids().size());
+    }
+
+    @Test
+    public void testGetOrCreateRegistersOnlyInitializedObjects() throws Exception {
+        try {
+            pidReg.getOrCreateYearPid(1971, new PIDRegistry.PIDCreator() {
+                public String create() {
+                    return "uva-lib:broken";
+                }
+                public void initialize(String pid) throws Exception {
+                    Assert.assertNull("An object must not be registered before it's initialized.", pidReg.getYearPid(1971));
+                    throw new IOException("fedora is unavailable");
+                }});
+            Assert.fail("A failure to initialize must be reported.");
+        } catch (IOException ex) {
+            // expected
+        }
+        Assert.assertNull("An object that couldn't be initialized must not be registered.", pidReg.getYearPid(1971));
+        Assert.assertEquals("The next caller must create the object again.", "uva-lib:1971", pidReg.getOrCreateYearPid(1971, new PIDRegistry.PIDCreator() {
+            public String create() {
+                return "uva-lib:1971";
+            }
+            public void initialize(String pid) {
+            }}));
+    }
 }
@@ -0,0 +1,64 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class CollectionGraphTest {
+
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void testOrderedChildren() {
+        CollectionGraph g = new CollectionGraph();
+        g.setRelationships("test:b", Arrays.asList("test:month"), Arrays.asList("test:a"), Arrays.asList("uva-lib:pbcore2CModel"));
+        g.setRelationships("test:c", Arrays.asList("test:month"), Arrays.asList("test:b"), Arrays.asList("uva-lib:pbcore2CModel"));
+        g.setRelationships("test:a", Arrays.asList("test:month"), NONE, Arrays.asList("uva-lib:pbcore2CModel"));
+        Assert.assertEquals(Arrays.asList("test:a", "test:b", "test:c"), g.getOrderedChildren("test:month"));
+        Assert.assertEquals(Arrays.asList("test:b"), g.getNext("test:a"));
+        Assert.assertTrue(g.getNext("test:c").isEmpty());
+        Assert.assertEquals(3, g.getSubjectsWithModel("uva-lib:pbcore2CModel").size());
+        Assert.assertTrue(g.getOrderedChildren("test:a").isEmpty());
+
+        // two "first" children
+        g.setRelationships("test:c", Arrays.asList("test:month"), NONE, Arrays.asList("uva-lib:pbcore2CModel"));
+        Assert.assertTrue("test:c no longer follows test:b.", g.getNext("test:b").isEmpty());
+        try {
+            g.getOrderedChildren("test:month");
+            Assert.fail("The chain is broken.");
+        } catch (RuntimeException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        CollectionGraph g = new CollectionGraph();
+        g.setRelationships("test:1", Arrays.asList("test:month1"), NONE, Arrays.asList("uva-lib:pbcore2CModel"));
+        g.update(RelsExt.create("test:1").setObject(RelsExt.IS_PART_OF, "test:month2").setObject(RelsExt.FOLLOWS, "test:0").setObject(RelsExt.HAS_MODEL, "uva-lib:eadItemCModel"));
+        Assert.assertTrue("The old parent has no children.", g.getChildren("test:month1").isEmpty());
+        Assert.assertEquals(Arrays.asList("test:1"), g.getChildren("test:month2"));
+        Assert.assertEquals(Arrays.asList("test:month2"), g.getParents("test:1"));
+        Assert.assertEquals(Arrays.asList("test:0"), g.getPrevious("test:1"));
+        Assert.assertTrue(g.getSubjectsWithModel("uva-lib:pbcore2CModel").isEmpty());
+        Assert.assertEquals(Arrays.asList("test:1"), g.getSubjectsWithModel("uva-lib:eadItemCModel"));
+
+        g.remove("test:1");
+        Assert.assertTrue(g.getChildren("test:month2").isEmpty());
+        Assert.assertTrue(g.getParents("test:1").isEmpty());
+    }
+
+    @Test
+    public void testAncestors() {
+        CollectionGraph g = new CollectionGraph();
+        g.setRelationships("test:year", Arrays.asList("test:collection"), NONE, NONE);
+        g.setRelationships("test:month", Arrays.asList("test:year"), NONE, NONE);
+        g.setRelationships("test:item", Arrays.asList("test:month"), NONE, Arrays.asList("uva-lib:pbcore2CModel"));
+        Assert.assertEquals(Arrays.asList("test:month", "test:year", "test:collection"), g.getAncestors("test:item"));
+        Assert.assertTrue(g.getAncestors("test:collection").isEmpty());
+    }
+}
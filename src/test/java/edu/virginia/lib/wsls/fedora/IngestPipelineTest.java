@@ -0,0 +1,90 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class IngestPipelineTest {
+
+    @Test
+    public void testPartitionOrdering() throws Exception {
+        final Map<Integer, List<Integer>> written = new HashMap<Integer, List<Integer>>();
+        final List<Integer> recorded = Collections.synchronizedList(new ArrayList<Integer>());
+        IngestPipeline<Integer> pipeline = new IngestPipeline<Integer>(4,
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer item) throws Exception {
+                        // finish the derivatives out of order
+                        Thread.sleep(item % 3);
+                    }},
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer item) throws Exception {
+                        List<Integer> partition = null;
+                        synchronized (written) {
+                            partition = written.get(item % 7);
+                            if (partition == null) {
+                                partition = new ArrayList<Integer>();
+                                written.put(item % 7, partition);
+                            }
+                        }
+                        partition.add(item);
+                    }},
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer item) throws Exception {
+                        recorded.add(item);
+                    }});
+        for (int i = 0; i < 500; i ++) {
+            pipeline.submit(i, i % 7);
+        }
+        pipeline.finish();
+        Assert.assertEquals("Every item must be recorded.", 500, recorded.size());
+        for (Map.Entry<Integer, List<Integer>> partition : written.entrySet()) {
+            int last = -1;
+            for (Integer item : partition.getValue()) {
+                Assert.assertTrue("Items in partition " + partition.getKey() + " must be written in order.", item > last);
+                last = item;
+            }
+        }
+    }
+
+    @Test
+    public void testFailurePropagation() throws Exception {
+        final List<Integer> recorded = Collections.synchronizedList(new ArrayList<Integer>());
+        IngestPipeline.Stage<Integer> nothing = new IngestPipeline.Stage<Integer>() {
+            public void process(Integer item) throws Exception {
+            }};
+        IngestPipeline<Integer> pipeline = new IngestPipeline<Integer>(2, nothing,
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer item) throws Exception {
+                        if (item == 10) {
+                            throw new IllegalStateException("write failed");
+                        }
+                    }},
+                new IngestPipeline.Stage<Integer>() {
+                    public void process(Integer item) throws Exception {
+                        recorded.add(item);
+                    }});
+        try {
+            try {
+                for (int i = 0; i < 100; i ++) {
+                    pipeline.submit(i, "partition");
+                }
+            } catch (IllegalStateException ex) {
+                // the failure may already be reported on submission
+                pipeline.abort();
+                throw ex;
+            }
+            pipeline.finish();
+            Assert.fail("The write failure must be thrown.");
+        } catch (IllegalStateException ex) {
+            Assert.assertEquals("write failed", ex.getMessage());
+        }
+        Assert.assertFalse("The failed item must not be recorded.", recorded.contains(10));
+        Assert.assertFalse("Items after the failure must not be recorded.", recorded.contains(11));
+    }
+}
@@ -0,0 +1,50 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RelsExtTest {
+
+    private static final String STORED = "<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+            + "<rdf:Description rdf:about=\"info:fedora/test:1\">"
+            + "<hasModel xmlns=\"info:fedora/fedora-system:def/model#\" rdf:resource=\"info:fedora/uva-lib:pbcore2CModel\"/>"
+            + "<follows xmlns=\"http://fedora.lib.virginia.edu/relationships#\" rdf:resource=\"info:fedora/test:0\"/>"
+            + "<isPartOf xmlns=\"info:fedora/fedora-system:def/relations-external#\" rdf:resource=\"info:fedora/test:month\"/>"
+            + "<visibility xmlns=\"http://fedora.lib.virginia.edu/relationships#\">UNDISCOVERABLE</visibility>"
+            + "</rdf:Description></rdf:RDF>";
+
+    @Test
+    public void testRead() throws Exception {
+        RelsExt rels = RelsExt.read("test:1", new ByteArrayInputStream(STORED.getBytes("UTF-8")));
+        Assert.assertEquals(Arrays.asList("test:month"), rels.getObjects(RelsExt.IS_PART_OF));
+        Assert.assertEquals(Arrays.asList("test:0"), rels.getObjects(RelsExt.FOLLOWS));
+        Assert.assertEquals(Arrays.asList("uva-lib:pbcore2CModel"), rels.getObjects(RelsExt.HAS_MODEL));
+        Assert.assertFalse("Nothing has changed.", rels.isModified());
+
+        // the stored content is the canonical serialization
+        Assert.assertEquals(rels.serialize(), RelsExt.read("test:1", new ByteArrayInputStream(rels.serialize().getBytes("UTF-8"))).serialize());
+    }
+
+    @Test
+    public void testModification() throws Exception {
+        RelsExt rels = RelsExt.read("test:1", new ByteArrayInputStream(STORED.getBytes("UTF-8")));
+        rels.setObject(RelsExt.IS_PART_OF, "test:month");
+        Assert.assertFalse("Setting an existing relationship is not a change.", rels.isModified());
+
+        // the same relationships set in a different order are not a change
+        rels.clear().setLiteral(RelsExt.VISIBILITY, "UNDISCOVERABLE").setObject(RelsExt.IS_PART_OF, "test:month").setObject(RelsExt.FOLLOWS, "test:0").setObject(RelsExt.HAS_MODEL, "uva-lib:pbcore2CModel");
+        Assert.assertFalse("Reordered relationships are not a change.", rels.isModified());
+
+        rels.setObject(RelsExt.FOLLOWS, "test:2");
+        Assert.assertTrue("A new previous object is a change.", rels.isModified());
+        Assert.assertEquals(Arrays.asList("test:2"), rels.getObjects(RelsExt.FOLLOWS));
+
+        rels.setObject(RelsExt.FOLLOWS, null);
+        Assert.assertTrue(rels.getObjects(RelsExt.FOLLOWS).isEmpty());
+        Assert.assertTrue("A new object has not been saved.", RelsExt.create("test:3").isModified());
+    }
+}
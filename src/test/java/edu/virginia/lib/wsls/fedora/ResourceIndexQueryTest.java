@@ -0,0 +1,77 @@
+package edu.virginia.lib.wsls.fedora;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ResourceIndexQueryTest {
+
+    @Test
+    public void testParseFedoraFormat() throws Exception {
+        String xml = "<sparql xmlns=\"http://www.w3.org/2001/sw/DataAccess/rf1/result\">"
+                + "<head><variable name=\"object\"/><variable name=\"previous\"/></head>"
+                + "<results>"
+                + "<result><object uri=\"info:fedora/test:2\"/><previous uri=\"info:fedora/test:1\"/></result>"
+                + "<result><object uri=\"info:fedora/test:1\"/><previous bound=\"false\"/></result>"
+                + "<result><object>a literal</object><previous uri=\"http://example.com/x\"/></result>"
+                + "</results></sparql>";
+        List<String[]> rows = parse(xml);
+        Assert.assertEquals(3, rows.size());
+        Assert.assertEquals("test:2", rows.get(0)[0]);
+        Assert.assertEquals("test:1", rows.get(0)[1]);
+        Assert.assertEquals("test:1", rows.get(1)[0]);
+        Assert.assertNull("Unbound variables should be null.", rows.get(1)[1]);
+        Assert.assertEquals("a literal", rows.get(2)[0]);
+        Assert.assertEquals("http://example.com/x", rows.get(2)[1]);
+    }
+
+    @Test
+    public void testParseW3CFormat() throws Exception {
+        String xml = "<sparql xmlns=\"http://www.w3.org/2005/sparql-results#\">"
+                + "<head><variable name=\"s\"/><variable name=\"o\"/></head>"
+                + "<results>"
+                + "<result><binding name=\"o\"><uri>info:fedora/test:year</uri></binding><binding name=\"s\"><uri>info:fedora/test:month</uri></binding></result>"
+                + "<result><binding name=\"s\"><literal>text</literal></binding></result>"
+                + "</results></sparql>";
+        List<String[]> rows = parse(xml);
+        Assert.assertEquals(2, rows.size());
+        Assert.assertEquals("Values should be in the order selected.", "test:month", rows.get(0)[0]);
+        Assert.assertEquals("test:year", rows.get(0)[1]);
+        Assert.assertEquals("text", rows.get(1)[0]);
+        Assert.assertNull(rows.get(1)[1]);
+    }
+
+    @Test
+    public void testGetObjectsQueries() {
+        List<String> subjects = new ArrayList<String>();
+        for (int i = 0; i < ResourceIndexQuery.MAX_BATCH_SIZE + 1; i ++) {
+            subjects.add("test:" + i);
+        }
+        List<String> queries = ResourceIndexQuery.getObjectsQueries(subjects, RelsExt.IS_PART_OF);
+        Assert.assertEquals("Subjects must be split into batches.", 2, queries.size());
+        Assert.assertTrue(queries.get(0).startsWith("select $s $o from <#ri> where $s <" + RelsExt.IS_PART_OF + "> $o and ($s <http://mulgara.org/mulgara#is> <info:fedora/test:0> or "));
+        Assert.assertTrue(queries.get(0).endsWith(" or $s <http://mulgara.org/mulgara#is> <info:fedora/test:" + (ResourceIndexQuery.MAX_BATCH_SIZE - 1) + ">)"));
+        Assert.assertEquals("select $s $o from <#ri> where $s <" + RelsExt.IS_PART_OF + "> $o and ($s <http://mulgara.org/mulgara#is> <info:fedora/test:" + ResourceIndexQuery.MAX_BATCH_SIZE + ">)", queries.get(1));
+        Assert.assertTrue("No subjects need no queries.", ResourceIndexQuery.getObjectsQueries(Arrays.<String>asList(), RelsExt.FOLLOWS).isEmpty());
+    }
+
+    @Test
+    public void testWalkPartsQuery() {
+        Assert.assertEquals("select $child $parent from <#ri> where walk($child <" + RelsExt.IS_PART_OF + "> <info:fedora/test:collection> and $child <" + RelsExt.IS_PART_OF + "> $parent)",
+                ResourceIndexQuery.getWalkPartsQuery("test:collection", RelsExt.IS_PART_OF));
+    }
+
+    private List<String[]> parse(String xml) throws Exception {
+        final List<String[]> rows = new ArrayList<String[]>();
+        ResourceIndexQuery.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), new ResourceIndexQuery.RowHandler() {
+            public void row(String[] values) {
+                rows.add(values);
+            }});
+        return rows;
+    }
+}
@@ -0,0 +1,70 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelIndexerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testFailuresAreQueued() throws Exception {
+        File file = new File(tempFolder.getRoot(), "retry.txt");
+        IndexRetryQueue retries = new IndexRetryQueue(file);
+        retries.add("test:1");
+        final List<String> indexed = Collections.synchronizedList(new ArrayList<String>());
+        ParallelIndexer indexer = new ParallelIndexer(4, new ParallelIndexer.Indexer() {
+            public void index(String pid) throws Exception {
+                if (pid.endsWith("3") || pid.endsWith("7")) {
+                    throw new RuntimeException("Unable to index " + pid);
+                }
+                indexed.add(pid);
+            }}, retries);
+        List<String> pids = new ArrayList<String>();
+        for (int i = 0; i < 10; i ++) {
+            pids.add("test:" + i);
+        }
+        List<String> failed = indexer.index("test objects", pids);
+        Collections.sort(failed);
+        Assert.assertEquals(Arrays.asList("test:3", "test:7"), failed);
+        Assert.assertEquals(8, indexed.size());
+        Assert.assertFalse("Indexed objects should leave the queue.", retries.contains("test:1"));
+
+        Assert.assertEquals("Failures are written as they happen.", 3, new IndexRetryQueue(file).size());
+        retries.save();
+        List<String> queued = new IndexRetryQueue(file).getPids();
+        Collections.sort(queued);
+        Assert.assertEquals(Arrays.asList("test:3", "test:7"), queued);
+    }
+
+    @Test
+    public void testRevertKeepsUnsavedRemovals() throws Exception {
+        File file = new File(tempFolder.getRoot(), "retry.txt");
+        IndexRetryQueue retries = new IndexRetryQueue(file);
+        retries.add("test:1");
+        retries.save();
+        ParallelIndexer indexer = new ParallelIndexer(1, new ParallelIndexer.Indexer() {
+            public void index(String pid) throws Exception {
+                if (pid.equals("test:2")) {
+                    throw new RuntimeException("Unable to index " + pid);
+                }
+            }}, retries);
+        indexer.index("test objects", Arrays.asList("test:1", "test:2"));
+        Assert.assertFalse(retries.contains("test:1"));
+
+        // as when the updates are rolled back rather than committed
+        retries.revert();
+        Assert.assertEquals(Arrays.asList("test:1", "test:2"), retries.getPids());
+        Assert.assertEquals(Arrays.asList("test:1", "test:2"), new IndexRetryQueue(file).getPids());
+    }
+}
@@ -0,0 +1,44 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SolrDocumentGeneratorTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testGenerate() throws Exception {
+        File fedora = tempFolder.newFolder("fedora");
+        FileUtils.writeStringToFile(new File(fedora, "summary.xml"), "<summary>WSLS</summary>", "UTF-8");
+        File xsl = new File(fedora, "index.xsl");
+        FileUtils.writeStringToFile(xsl, "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+                + "<xsl:param name=\"pid\"/>"
+                + "<xsl:template match=\"/\"><add><doc>"
+                + "<field name=\"id\"><xsl:value-of select=\"$pid\"/></field>"
+                + "<field name=\"title\"><xsl:value-of select=\"//title\"/></field>"
+                + "<field name=\"collection\"><xsl:value-of select=\"document('http://local.fedora.server/fedora/summary.xml')/summary\"/></field>"
+                + "</doc></add></xsl:template></xsl:stylesheet>", "UTF-8");
+
+        SolrDocumentGenerator g = new SolrDocumentGenerator(null, fedora.toURI().toString().replaceAll("/$", ""), xsl.toURI().toString());
+        for (int i = 0; i < 2; i ++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            g.generate("test:" + i, new StreamSource(new StringReader("<pbcore><title>Caf\u00e9</title></pbcore>")), out);
+            String doc = out.toString("UTF-8");
+            Assert.assertTrue(doc, doc.contains("<field name=\"id\">test:" + i + "</field>"));
+            Assert.assertTrue(doc, doc.contains("<field name=\"title\">Caf\u00e9</field>"));
+            Assert.assertTrue("local.fedora.server should be resolved against fedora: " + doc, doc.contains("<field name=\"collection\">WSLS</field>"));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SolrUpdateSinkTest {
+
+    private HttpServer server;
+
+    private String url;
+
+    private List<String> requests;
+
+    private CountDownLatch slowRequestReceived;
+
+    private CountDownLatch slowRequestReleased;
+
+    @Before
+    public void startServer() throws IOException {
+        requests = new ArrayList<String>();
+        slowRequestReceived = new CountDownLatch(1);
+        slowRequestReleased = new CountDownLatch(1);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/solr/update", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                String body = IOUtils.toString(in, "UTF-8");
+                in.close();
+                String query = exchange.getRequestURI().getQuery();
+                synchronized (requests) {
+                    requests.add((query == null ? "" : query + " ") + body);
+                }
+                if (body.contains("slow")) {
+                    slowRequestReceived.countDown();
+                    try {
+                        slowRequestReleased.await();
+                    } catch (InterruptedException ex) {
+                        throw new IOException(ex);
+                    }
+                }
+                // a stand in for a document solr can't accept
+                exchange.sendResponseHeaders(body.contains("bad") ? 400 : 200, -1);
+                exchange.close();
+            }});
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() + "/solr/update";
+    }
+
+    @After
+    public void stopServer() {
+        slowRequestReleased.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testBatchesByCount() throws Exception {
+        SolrUpdateSink sink = new SolrUpdateSink(url, 2, 1024 * 1024, 5000);
+        sink.add("test:1", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<add><doc>1</doc></add>".getBytes("UTF-8"));
+        Assert.assertTrue("Nothing should be sent until the batch is full.", requests.isEmpty());
+        sink.delete("test:2");
+        sink.add("test:3", "<add><doc>3</doc></add>".getBytes("UTF-8"));
+        sink.flush();
+        sink.flush();
+        Assert.assertEquals(Arrays.asList(
+                "commitWithin=5000 <update>\n<add><doc>1</doc></add><delete><query>id:\"test:2\"</query></delete></update>",
+                "commitWithin=5000 <update><add><doc>3</doc></add></update>"), requests);
+        Assert.assertEquals(3, sink.getPostedCount());
+    }
+
+    @Test
+    public void testBatchesBySize() throws Exception {
+        SolrUpdateSink sink = new SolrUpdateSink(url, 100, 30, -1);
+        sink.add("test:1", "<add><doc>1</doc></add>".getBytes("UTF-8"));
+        sink.add("test:2", "<add><doc>2</doc></add>".getBytes("UTF-8"));
+        sink.add("test:3", "<add><doc>the third document</doc></add>".getBytes("UTF-8"));
+        Assert.assertEquals(Arrays.asList(
+                "<update><add><doc>1</doc></add></update>",
+                "<update><add><doc>2</doc></add></update>",
+                "<update><add><doc>the third document</doc></add></update>"), requests);
+    }
+
+    @Test
+    public void testRejectedDocument() throws Exception {
+        SolrUpdateSink sink = new SolrUpdateSink(url, 3, 1024 * 1024, -1);
+        sink.add("test:1", "<add><doc>1</doc></add>".getBytes("UTF-8"));
+        sink.add("test:2", "<add><doc>bad</doc></add>".getBytes("UTF-8"));
+        sink.add("test:3", "<add><doc>3</doc></add>".getBytes("UTF-8"));
+        Assert.assertEquals("The batch and then each document should have been posted.", 4, requests.size());
+        Assert.assertEquals(Arrays.asList("test:2"), sink.takeFailures());
+        Assert.assertTrue(sink.takeFailures().isEmpty());
+        Assert.assertEquals(2, sink.getPostedCount());
+    }
+
+    @Test
+    public void testUnreachable() throws Exception {
+        server.stop(0);
+        SolrUpdateSink sink = new SolrUpdateSink(url, 3, 1024 * 1024, -1);
+        sink.add("test:1", "<add><doc>1</doc></add>".getBytes("UTF-8"));
+        sink.delete("test:2");
+        try {
+            sink.flush();
+            Assert.fail("The failure to reach solr should be reported.");
+        } catch (IOException ex) {
+            // expected
+        }
+        Assert.assertEquals("The batch that couldn't be sent shouldn't be lost.", Arrays.asList("test:1", "test:2"), sink.takeFailures());
+        Assert.assertEquals(0, sink.getPostedCount());
+    }
+
+    @Test
+    public void testAddDuringPost() throws Exception {
+        final SolrUpdateSink sink = new SolrUpdateSink(url, 1, 1024 * 1024, -1);
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    sink.add("test:1", "<add><doc>slow</doc></add>".getBytes("UTF-8"));
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }};
+        t.start();
+        Assert.assertTrue(slowRequestReceived.await(10, TimeUnit.SECONDS));
+        sink.add("test:2", "<add><doc>2</doc></add>".getBytes("UTF-8"));
+        Assert.assertEquals("Adding shouldn't wait for the request in progress.", 1, requests.size());
+        slowRequestReleased.countDown();
+        t.join();
+        sink.flush();
+        Assert.assertEquals("Batches should be sent in order.", Arrays.asList(
+                "<update><add><doc>slow</doc></add></update>",
+                "<update><add><doc>2</doc></add></update>"), requests);
+        Assert.assertEquals(2, sink.getPostedCount());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        SolrUpdateSink sink = new SolrUpdateSink(url);
+        sink.add("test:1", "<add><doc>1</doc></add>".getBytes("UTF-8"));
+        sink.clear();
+        sink.flush();
+        Assert.assertTrue(requests.isEmpty());
+    }
+
+    @Test
+    public void testPayload() throws Exception {
+        SolrUpdateSink sink = new SolrUpdateSink(url);
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        SolrPayload payload = new SolrPayload();
+        OutputStream out = payload.open(archive);
+        out.write("<?xml version=\"1.0\"?><add><doc>1</doc></add>".getBytes("UTF-8"));
+        out.close();
+        sink.add("test:1", payload);
+        sink.flush();
+        Assert.assertEquals("<?xml version=\"1.0\"?><add><doc>1</doc></add>", archive.toString("UTF-8"));
+        Assert.assertEquals(Arrays.asList("<update><add><doc>1</doc></add></update>"), requests);
+    }
+
+    @Test
+    public void testLargePayload() throws Exception {
+        StringBuffer doc = new StringBuffer("<add><doc>");
+        for (int i = 0; i < 5000; i ++) {
+            doc.append(i % 10);
+        }
+        doc.append("</doc></add>");
+        SolrUpdateSink sink = new SolrUpdateSink(url);
+        SolrPayload payload = new SolrPayload();
+        OutputStream out = payload.open(null);
+        out.write("\n<?xml version=\"1.0\"?>".getBytes("UTF-8"));
+        // in pieces spanning several chunks
+        for (int i = 0; i < 4; i ++) {
+            out.write(doc.toString().getBytes("UTF-8"));
+        }
+        out.close();
+        sink.add("test:1", payload);
+        sink.flush();
+        Assert.assertEquals("<update>" + doc + doc + doc + doc + "</update>", requests.get(0));
+    }
+}
@@ -0,0 +1,51 @@
+package edu.virginia.lib.wsls.solr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class Utf8ValidatingOutputStreamTest {
+
+    @Test
+    public void testValid() throws Exception {
+        String text = "<add><doc>Caf\u00e9 \u20ac \ud83d\udcfa</doc></add>";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Utf8ValidatingOutputStream v = new Utf8ValidatingOutputStream(out);
+        byte[] bytes = text.getBytes("UTF-8");
+        // split part way through characters
+        for (int i = 0; i < bytes.length; i += 3) {
+            v.write(bytes, i, Math.min(3, bytes.length - i));
+        }
+        v.close();
+        Assert.assertEquals(text, out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        assertInvalid(new byte[] { 'a', (byte) 0xFF });
+        assertInvalid(new byte[] { (byte) 0x80 });
+        assertInvalid("Overlong forms are invalid.", new byte[] { (byte) 0xC0, (byte) 0xAF });
+        assertInvalid("Overlong forms are invalid.", new byte[] { (byte) 0xE0, (byte) 0x80, (byte) 0xAF });
+        assertInvalid("Surrogates are invalid.", new byte[] { (byte) 0xED, (byte) 0xA0, (byte) 0x80 });
+        assertInvalid("Values beyond U+10FFFF are invalid.", new byte[] { (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80 });
+        assertInvalid("A character may not be cut short.", new byte[] { 'a', (byte) 0xC3 });
+    }
+
+    private void assertInvalid(byte[] bytes) {
+        assertInvalid("Invalid UTF-8 should be reported.", bytes);
+    }
+
+    private void assertInvalid(String message, byte[] bytes) {
+        Utf8ValidatingOutputStream v = new Utf8ValidatingOutputStream(new ByteArrayOutputStream());
+        try {
+            v.write(bytes);
+            v.close();
+            Assert.fail(message);
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package edu.virginia.lib.wsls.spreadsheet;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import edu.virginia.lib.wsls.spreadsheet.PBCoreDocument.VariablePrecisionDate;
+
+public class SortKeyTest {
+
+    @Test
+    public void testRoundTrip() {
+        long key = SortKey.pack(1962, 11, 30, 123456);
+        Assert.assertEquals(1962, SortKey.getYear(key));
+        Assert.assertEquals(11, SortKey.getMonth(key));
+        Assert.assertEquals(30, SortKey.getDay(key));
+        Assert.assertEquals(123456, SortKey.getOrdinal(key));
+    }
+
+    @Test
+    public void testOrdering() {
+        Assert.assertTrue(SortKey.pack(1962, 1, 1) > SortKey.pack(1961, 12, 31, Integer.MAX_VALUE));
+        Assert.assertTrue(SortKey.pack(1962, 2, 0) > SortKey.pack(1962, 1, 31));
+        Assert.assertTrue("An unknown day sorts first.", SortKey.pack(1962, 2, 0) < SortKey.pack(1962, 2, 1));
+        Assert.assertTrue("Out of range values sort last.", SortKey.pack(Integer.MAX_VALUE, 0, 0) > SortKey.pack(9999, 12, 31));
+        Assert.assertEquals(-1, SortKey.compare(SortKey.pack(1962, 2, 1, 1), SortKey.pack(1962, 2, 1, 2)));
+    }
+
+    @Test
+    public void testTruncate() {
+        long key = new VariablePrecisionDate(1962, 2, 14).getSortKey();
+        Assert.assertEquals(SortKey.pack(1962, 0, 0), SortKey.truncate(key, 1));
+        Assert.assertEquals(SortKey.pack(1962, 2, 0), SortKey.truncate(key, 2));
+        Assert.assertEquals(SortKey.pack(1962, 2, 14), SortKey.truncate(key, 3));
+        Assert.assertEquals(SortKey.truncate(key, 2), new VariablePrecisionDate(1962, 2).getSortKey());
+    }
+}